@@ -0,0 +1,215 @@
+package nl.wur.bis.kcftools.Data;
+
+import nl.wur.bis.kcftools.Utils.Logger;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/***
+ * This class reads byte ranges (in uncompressed coordinates) from a bgzip compressed file, using the block offsets of
+ * its .gzi index (as written by bgzip -i or samtools faidx). Only the BGZF blocks that hold the range are read and
+ * inflated, with positional reads so all threads share one file channel. Every thread keeps its last inflated blocks
+ * in a small LRU cache, so the neighbouring windows of a worker do not inflate the same block again.
+ */
+public class BgzfReader implements AutoCloseable {
+    // a BGZF block is at most 64 KB, compressed and uncompressed
+    private static final int MAX_BLOCK_SIZE = 1 << 16;
+    // blocks cached per thread
+    private static final int CACHED_BLOCKS = 16;
+    private static final String CLASS_NAME = BgzfReader.class.getSimpleName();
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    // compressed and uncompressed start offset of every block, the first block (0, 0) included
+    private final long[] compressedOffsets;
+    private final long[] uncompressedOffsets;
+    private final ThreadLocal<BlockCache> caches = ThreadLocal.withInitial(this::newCache);
+    // the caches of all threads, so close() can release their inflaters
+    private final Queue<BlockCache> allCaches = new ConcurrentLinkedQueue<>();
+    private final LongAdder inflatedBlocks = new LongAdder();
+    private final LongAdder cachedReads = new LongAdder();
+
+    /***
+     * The inflated blocks of a thread (least recently used first), with its read buffer and inflater
+     */
+    private static class BlockCache {
+        private final byte[] compressed = new byte[MAX_BLOCK_SIZE];
+        private final Inflater inflater = new Inflater(true);
+        // in access order, the least recently used block is evicted first
+        private final Map<Integer, byte[]> blocks = new LinkedHashMap<>(CACHED_BLOCKS * 2, 0.75f, true);
+
+        private void put(int block, byte[] data) {
+            blocks.put(block, data);
+            if (blocks.size() > CACHED_BLOCKS) {
+                Iterator<Integer> eldest = blocks.keySet().iterator();
+                eldest.next();
+                eldest.remove();
+            }
+        }
+    }
+
+    private BlockCache newCache() {
+        BlockCache cache = new BlockCache();
+        allCaches.add(cache);
+        return cache;
+    }
+
+    public BgzfReader(File bgzfFile, File gziFile) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(gziFile)))) {
+            long entries = Long.reverseBytes(in.readLong());
+            if (entries < 0 || entries >= Integer.MAX_VALUE) {
+                Logger.error(CLASS_NAME, "Invalid gzi index file: " + gziFile);
+            }
+            compressedOffsets = new long[(int) entries + 1];
+            uncompressedOffsets = new long[(int) entries + 1];
+            for (int i = 1; i <= entries; i++) {
+                compressedOffsets[i] = Long.reverseBytes(in.readLong());
+                uncompressedOffsets[i] = Long.reverseBytes(in.readLong());
+            }
+        } catch (EOFException e) {
+            Logger.error(CLASS_NAME, "Truncated gzi index file: " + gziFile);
+            throw e;
+        }
+        this.file = new RandomAccessFile(bgzfFile, "r");
+        this.channel = file.getChannel();
+    }
+
+    /***
+     * Check if a file starts with a BGZF block (a gzip member with the 'BC' extra subfield)
+     */
+    public static boolean isBgzf(File fileName) throws IOException {
+        byte[] header = new byte[16];
+        try (DataInputStream in = new DataInputStream(new FileInputStream(fileName))) {
+            in.readFully(header);
+        } catch (EOFException e) {
+            return false;
+        }
+        return (header[0] & 0xff) == 31 && (header[1] & 0xff) == 139 && (header[3] & 4) != 0
+                && header[12] == 'B' && header[13] == 'C';
+    }
+
+    /***
+     * Copy length bytes, starting at the uncompressed offset, into the destination
+     */
+    public void read(long offset, byte[] destination, int destinationOffset, int length) throws IOException {
+        BlockCache cache = caches.get();
+        int block = findBlock(offset);
+        while (length > 0) {
+            if (block >= uncompressedOffsets.length) {
+                throw new EOFException("Offset " + offset + " is beyond the end of the compressed file");
+            }
+            byte[] data = cache.blocks.get(block);
+            if (data == null) {
+                data = inflate(block, cache);
+                cache.put(block, data);
+            } else {
+                cachedReads.increment();
+            }
+            int start = (int) (offset - uncompressedOffsets[block]);
+            int n = Math.min(length, data.length - start);
+            if (n > 0) {
+                System.arraycopy(data, start, destination, destinationOffset, n);
+                offset += n;
+                destinationOffset += n;
+                length -= n;
+            }
+            block++;
+        }
+    }
+
+    /***
+     * Last block that starts at or before the uncompressed offset
+     */
+    private int findBlock(long offset) {
+        int low = 0;
+        int high = uncompressedOffsets.length - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (uncompressedOffsets[mid] <= offset) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    /***
+     * Read and inflate one BGZF block
+     */
+    private byte[] inflate(int block, BlockCache cache) throws IOException {
+        byte[] compressed = cache.compressed;
+        ByteBuffer target = ByteBuffer.wrap(compressed);
+        long position = compressedOffsets[block];
+        while (target.hasRemaining()) {
+            int read = channel.read(target, position + target.position());
+            if (read < 0) {
+                break;
+            }
+        }
+        ByteBuffer header = ByteBuffer.wrap(compressed, 0, target.position()).order(ByteOrder.LITTLE_ENDIAN);
+        if (target.position() < 18 || (compressed[0] & 0xff) != 31 || (compressed[1] & 0xff) != 139 || (compressed[3] & 4) == 0) {
+            throw new IOException("Invalid BGZF block at offset " + position);
+        }
+
+        // find the block size in the 'BC' subfield of the extra field
+        int extraLength = header.getShort(10) & 0xffff;
+        int blockSize = -1;
+        for (int i = 12; i + 4 <= 12 + extraLength; ) {
+            int subfieldLength = header.getShort(i + 2) & 0xffff;
+            if (compressed[i] == 'B' && compressed[i + 1] == 'C' && subfieldLength == 2) {
+                blockSize = (header.getShort(i + 4) & 0xffff) + 1;
+            }
+            i += 4 + subfieldLength;
+        }
+        if (blockSize < 0 || blockSize > target.position()) {
+            throw new IOException("Invalid BGZF block at offset " + position);
+        }
+        int dataLength = header.getInt(blockSize - 4);
+        byte[] data = new byte[dataLength];
+        Inflater inflater = cache.inflater;
+        inflater.reset();
+        inflater.setInput(compressed, 12 + extraLength, blockSize - 12 - extraLength - 8);
+        try {
+            int inflated = 0;
+            while (inflated < dataLength && !inflater.finished()) {
+                int n = inflater.inflate(data, inflated, dataLength - inflated);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                inflated += n;
+            }
+            if (inflated != dataLength) {
+                throw new IOException("Truncated BGZF block at offset " + position);
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt BGZF block at offset " + position + ": " + e.getMessage());
+        }
+        inflatedBlocks.increment();
+        return data;
+    }
+
+    public void printStatistics() {
+        Logger.info(CLASS_NAME, "BGZF blocks inflated: " + inflatedBlocks.sum() + ", block reads from the thread caches: " + cachedReads.sum());
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (BlockCache cache : allCaches) {
+            cache.inflater.end();
+        }
+        allCaches.clear();
+        channel.close();
+        file.close();
+    }
+}
+//EOF
@@ -5,70 +5,82 @@ import nl.wur.bis.kcftools.Utils.Logger;
 
 import java.io.*;
 import java.nio.MappedByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.nio.channels.FileChannel;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 
 /***
  * This class represents a FastaIndex object which is used to index a fasta file (somewhat similar to samtools faidx)
+ * A bgzip compressed fasta file is read through its samtools .fai and .gzi index files (see BgzfReader)
+ * Files and sequence positions are long, so a file may exceed 2 GB and a sequence 2^31 bases, only a single
+ * extracted subsequence is limited to an array
  */
 public class FastaIndex implements AutoCloseable {
     private final Map<String, FastaIndexEntry> index;
     private final List<String> sequenceNames;
-    private final MappedByteBuffer[] buffer;
-    private final Object bufferLock = new Object();
+    // memory mapped segments of the fasta file (null for a bgzip compressed file)
+    private final MappedByteBuffer[] segments;
+    private static final long SEGMENT_SIZE = 1L << 30;
+    // reader of a bgzip compressed fasta file (null for plain fasta files, which are memory mapped)
+    private final BgzfReader bgzf;
     private final String CLASS_NAME = this.getClass().getSimpleName();
-    private static final Set<Character> VALID_BASES = Set.of(
-            'A','C','G','T','Y','R','W','S','M','K','H','B','V','D','N',
-            'a','c','g','t','y','r','w','s','m','k','h','b','v','d','n'
-    );
 
     public FastaIndex(String fastaFilePath) throws IOException {
         File fastaFile = new File(fastaFilePath);
         String faiFilePath = fastaFilePath + ".faidx";
         File indexFile = new File(faiFilePath);
 
-        if (!indexFile.exists() || HelperFunctions.isOlder(indexFile, fastaFile)) {
+        // an up to date samtools index has the same layout, and is used as is
+        File samtoolsIndexFile = new File(fastaFilePath + ".fai");
+        boolean compressed = HelperFunctions.isCompressed(fastaFile);
+        BgzfReader reader = null;
+
+        if (compressed) {
+            // bgzip compressed: the samtools index (in uncompressed coordinates) and the block index are required
+            File gziFile = new File(fastaFilePath + ".gzi");
+            if (!BgzfReader.isBgzf(fastaFile)) {
+                Logger.error(CLASS_NAME, "Fasta file is compressed, but not with bgzip. Please decompress or bgzip it: " + fastaFile);
+            }
+            if (!samtoolsIndexFile.exists() || !gziFile.exists()) {
+                Logger.error(CLASS_NAME, "bgzip compressed fasta file needs its .fai and .gzi index files, create them with: samtools faidx " + fastaFilePath);
+            }
+            if (HelperFunctions.isOlder(samtoolsIndexFile, fastaFile) || HelperFunctions.isOlder(gziFile, fastaFile)) {
+                Logger.error(CLASS_NAME, "The .fai or .gzi index file is older than the fasta file, recreate them with: samtools faidx " + fastaFilePath);
+            }
+            Logger.info(CLASS_NAME, "Using existing samtools index files: " + samtoolsIndexFile.getPath() + ", " + gziFile.getPath());
+            indexFile = samtoolsIndexFile;
+            reader = new BgzfReader(fastaFile, gziFile);
+        } else if ((!indexFile.exists() || HelperFunctions.isOlder(indexFile, fastaFile))
+                && samtoolsIndexFile.exists() && !HelperFunctions.isOlder(samtoolsIndexFile, fastaFile)) {
+            Logger.info(CLASS_NAME, "Using existing samtools index file: " + samtoolsIndexFile.getPath());
+            indexFile = samtoolsIndexFile;
+        } else if (!indexFile.exists() || HelperFunctions.isOlder(indexFile, fastaFile)) {
             Logger.info(CLASS_NAME, "Generating/Updating index file: " + faiFilePath);
             generateIndexFile(fastaFile, indexFile);
         } else {
             Logger.info(CLASS_NAME, "Using existing index file: " + faiFilePath);
         }
 
+        this.bgzf = reader;
         // sort this.index by entry.seqId
         this.index = sortByValue(Collections.unmodifiableMap(loadIndex(indexFile)));
         // create an immutable list of sequence names in the same order as in the index
         this.sequenceNames = Collections.unmodifiableList(new ArrayList<>(index.keySet()));
 
+        if (compressed) {
+            this.segments = null;
+            return;
+        }
         try (RandomAccessFile randomAccessFile = new RandomAccessFile(fastaFile, "r");
              FileChannel fileChannel = randomAccessFile.getChannel()) {
 
+            // memory-map the whole file in segments, addressed with long file offsets
             long fileSize = fileChannel.size();
-            int numBuffers = this.sequenceNames.size();
-            this.buffer = new MappedByteBuffer[numBuffers];
-
-            for (int i = 0; i < numBuffers; i++) {
-                String sequenceName = this.sequenceNames.get(i);
-                FastaIndexEntry entry = this.index.get(sequenceName);
-
-                long sequenceStartOffset = entry.getOffset();
-                long sequenceEndOffset;
-                if (i + 1 < numBuffers) {
-                    FastaIndexEntry nextEntry = this.index.get(this.sequenceNames.get(i + 1));
-                    sequenceEndOffset = nextEntry.getOffset();
-                } else {
-                    sequenceEndOffset = fileSize;
-                }
-
-                // offset length of the sequence
-                int sequenceOffsetLength = (int) (sequenceEndOffset - sequenceStartOffset);
-
-                // memory-map for each sequence
-                if (sequenceOffsetLength > 0) {
-                    this.buffer[i] = fileChannel.map(FileChannel.MapMode.READ_ONLY, sequenceStartOffset, sequenceOffsetLength);
-                } else {
-                    this.buffer[i] = null;
-                }
+            this.segments = new MappedByteBuffer[(int) ((fileSize + SEGMENT_SIZE - 1) / SEGMENT_SIZE)];
+            for (int i = 0; i < segments.length; i++) {
+                long segmentStart = i * SEGMENT_SIZE;
+                segments[i] = fileChannel.map(FileChannel.MapMode.READ_ONLY, segmentStart, Math.min(SEGMENT_SIZE, fileSize - segmentStart));
             }
         } catch (IOException e) {
             Logger.error(CLASS_NAME, "Error memory-mapping fasta file: " + e.getMessage());
@@ -88,7 +100,7 @@ public class FastaIndex implements AutoCloseable {
                 String[] fields = line.split("\t");
                 FastaIndexEntry entry = new FastaIndexEntry(seqId,
                         fields[0],
-                        Integer.parseInt(fields[1]),
+                        Long.parseLong(fields[1]),
                         Long.parseLong(fields[2]),
                         Integer.parseInt(fields[3]),
                         Integer.parseInt(fields[4])
@@ -113,14 +125,28 @@ public class FastaIndex implements AutoCloseable {
      * Get a sequence from the fasta file by name
      */
     public String getSequence(String sequenceName) {
-        return getSequence(sequenceName, 0, getEntry(sequenceName).getLength());
+        long length = getEntry(sequenceName).getLength();
+        if (length > Integer.MAX_VALUE - 8) {
+            Logger.error(CLASS_NAME, "Sequence " + sequenceName + " is too long (" + length + " bases) to extract at once");
+        }
+        return getSequence(sequenceName, 0, (int) length);
     }
 
     /***
      * Get a subsequence from the fasta file by name, start and length
      */
-    public String getSequence(String name, int start, int length) {
-        int end = start + length;
+    public String getSequence(String name, long start, int length) {
+        byte[] bases = getBases(name, start, length);
+        return bases == null ? null : new String(bases, StandardCharsets.ISO_8859_1);
+    }
+
+    /***
+     * Get the bases of a subsequence by name, start and length, as bytes.
+     * The mapped segments are only read with absolute bulk gets (their positions are never moved), one copy per fasta line,
+     * so any number of threads can extract sequences at the same time without a lock.
+     */
+    public byte[] getBases(String name, long start, int length) {
+        long end = start + length;
         FastaIndexEntry entry = getEntry(name);
         if (entry == null) {
             Logger.error(CLASS_NAME, "Sequence not found in index: " + name);
@@ -133,52 +159,58 @@ public class FastaIndex implements AutoCloseable {
             return null;
         }
 
-        StringBuilder sequence = new StringBuilder(end - start);
-
-        synchronized (bufferLock) {
-            try {
-
-                // get the buffer for the sequence, and calculate the start and end positions in the buffer
-                MappedByteBuffer buf = buffer[entry.getSeqId()];
-
-                int lineBases = entry.getLineBases();
-                int lineWidth = entry.getLineWidth();
-
-                // get the line at which the start position is located
-                int startLine = start / lineBases;
-                int startLineBaseIndex = start % lineBases;
-
-                // get the offset of the start position in the line
-                long startOffset = ((long) startLine * lineWidth) + startLineBaseIndex;
-
-                buf.position((int) (startOffset));
-
-                // read the sequence from the buffer
-                int basesToExtract = end - start;
-                while (basesToExtract > 0) {
-                    // get number of bases to read in the current line (or remaining bases in the line)
-                    int remainingBasesInLine = lineBases - (startLineBaseIndex % lineBases);
-                    int basesToRead = Math.min(basesToExtract, remainingBasesInLine);
-
-                    // read the bases
-                    for (int i = 0; i < basesToRead; i++) {
-                        sequence.append((char) buf.get());
-                    }
-
-                    // move to the next line
-                    buf.position(buf.position() + (lineWidth - lineBases));
-                    basesToExtract -= basesToRead;
+        byte[] bases = new byte[length];
+        try {
+            int lineBases = entry.getLineBases();
+            int lineWidth = entry.getLineWidth();
+
+            // offset of the start position in the sequence, from its line and its index in the line
+            int lineBaseIndex = (int) (start % lineBases);
+            long offset = (start / lineBases) * lineWidth + lineBaseIndex;
+
+            // a compressed fasta is inflated once for the whole range (line ends included), a plain one is mapped
+            byte[] raw = null;
+            long rawStart = offset;
+            if (bgzf != null) {
+                long last = end - 1;
+                long rawEnd = (last / lineBases) * lineWidth + (last % lineBases) + 1;
+                raw = new byte[(int) (rawEnd - rawStart)];
+                bgzf.read(entry.getOffset() + rawStart, raw, 0, raw.length);
+            }
 
-                    // reset the startLineBaseIndex
-                    startLineBaseIndex = 0;
+            int copied = 0;
+            while (copied < length) {
+                // copy the rest of the current line (or the remaining bases) in one go, then skip the line end
+                int basesToRead = Math.min(length - copied, lineBases - lineBaseIndex);
+                if (raw != null) {
+                    System.arraycopy(raw, (int) (offset - rawStart), bases, copied, basesToRead);
+                } else {
+                    readMapped(entry.getOffset() + offset, bases, copied, basesToRead);
                 }
-            } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
-                Logger.error(CLASS_NAME, "Error reading sequence: " + e.getMessage());
-                return null;
+                copied += basesToRead;
+                offset += basesToRead + (lineWidth - lineBases);
+                lineBaseIndex = 0;
             }
+        } catch (IllegalArgumentException | IndexOutOfBoundsException | IOException e) {
+            Logger.error(CLASS_NAME, "Error reading sequence: " + e.getMessage());
+            return null;
         }
+        return bases;
+    }
 
-        return sequence.toString();
+    /***
+     * Copy length bytes from the memory mapped file, starting at the file offset (the range may span two segments)
+     */
+    private void readMapped(long fileOffset, byte[] destination, int destinationOffset, int length) {
+        while (length > 0) {
+            MappedByteBuffer segment = segments[(int) (fileOffset / SEGMENT_SIZE)];
+            int position = (int) (fileOffset % SEGMENT_SIZE);
+            int n = Math.min(length, segment.limit() - position);
+            segment.get(position, destination, destinationOffset, n);
+            fileOffset += n;
+            destinationOffset += n;
+            length -= n;
+        }
     }
 
     /***
@@ -190,10 +222,13 @@ public class FastaIndex implements AutoCloseable {
 
     @Override
     public void close() throws IOException {
-        for (MappedByteBuffer buf : buffer) {
-            if (buf != null) {
-                buf.clear();
-            }
+        if (bgzf != null) {
+            bgzf.printStatistics();
+            bgzf.close();
+            return;
+        }
+        for (MappedByteBuffer segment : segments) {
+            segment.clear();
         }
     }
 
@@ -201,10 +236,8 @@ public class FastaIndex implements AutoCloseable {
      * Get a Fasta object for a given sequence name
      */
     public Fasta getFasta(String tr) {
-        synchronized (bufferLock) {
-            int seqId = sequenceNames.indexOf(tr);
-            return new Fasta(seqId, tr, getSequence(tr));
-        }
+        int seqId = sequenceNames.indexOf(tr);
+        return new Fasta(seqId, tr, getSequence(tr));
     }
 
     /***
@@ -224,7 +257,7 @@ public class FastaIndex implements AutoCloseable {
     /***
      * Get the length of a sequence
      */
-    public int getSequenceLength(String name) {
+    public long getSequenceLength(String name) {
         FastaIndexEntry entry = getEntry(name);
         if (entry == null) {
             Logger.error(CLASS_NAME, "Sequence not found in index: " + name);
@@ -234,68 +267,14 @@ public class FastaIndex implements AutoCloseable {
     }
 
     /***
-     * Generate an index file for the fasta file
+     * Generate an index file for the fasta file, in parallel (see FastaIndexer)
      */
     private void generateIndexFile(File fastaFile, File indexFile) throws IOException {
         if (HelperFunctions.isCompressed(fastaFile)) {
             Logger.error(CLASS_NAME, "Fasta file is compressed. Please decompress before indexing: " + fastaFile);
             throw new IllegalArgumentException("Fasta file is compressed. Please decompress before indexing: " + fastaFile);
         }
-
-        try (BufferedReader reader = new BufferedReader(new FileReader(fastaFile));
-             BufferedWriter writer = new BufferedWriter(new FileWriter(indexFile))) {
-
-            String line;
-            int lineNumber = 0;
-            long offset = 0;
-            String currentName = null;
-            int lineBases = 0;
-            int lineWidth = 0;
-            int seqLength = 0;
-            long sequenceStartOffset = 0;
-            boolean inSequence = false;
-            List<String> sequenceNames = new ArrayList<>();
-
-            while ((line = reader.readLine()) != null) {
-                lineNumber++;
-                if (offset == 0 && !line.startsWith(">")) {
-                    Logger.error(CLASS_NAME, "Invalid fasta file: " + fastaFile);
-                }
-                if (line.startsWith(">")) {
-                    if (inSequence) {
-                        writer.write(currentName + "\t" + seqLength + "\t" + sequenceStartOffset + "\t" + lineBases + "\t" + lineWidth + "\n");
-                    }
-                    currentName = line.substring(1).split(" ")[0];
-                    offset += line.length() + System.lineSeparator().length();
-                    sequenceStartOffset = offset;
-                    inSequence = true;
-                    seqLength = 0;
-                    if (sequenceNames.contains(currentName)) {
-                        Logger.error(CLASS_NAME, "Duplicate sequence name in fasta file: " + currentName + " at line " + lineNumber);
-                    } else {
-                        sequenceNames.add(currentName);
-                    }
-                } else {
-                    for (int i = 0; i < line.length(); i++) {
-                        if (!VALID_BASES.contains(line.charAt(i))) {
-                            Logger.error(CLASS_NAME,
-                                    "Invalid character '" + line.charAt(i) +
-                                            "' in fasta file: " + fastaFile + " at line " + lineNumber);
-                            break;
-                        }
-                    }
-                    if (seqLength == 0) {
-                        lineBases = line.length();
-                        lineWidth = line.length() + System.lineSeparator().length();
-                    }
-                    seqLength += line.length();
-                    offset += line.length() + System.lineSeparator().length();
-                }
-            }
-            if (inSequence && currentName != null) {
-                writer.write(currentName + "\t" + seqLength + "\t" + sequenceStartOffset + "\t" + lineBases + "\t" + lineWidth + "\n");
-            }
-        }
+        new FastaIndexer(fastaFile, Runtime.getRuntime().availableProcessors()).writeIndex(indexFile);
     }
 
     /***
@@ -9,12 +9,12 @@ import org.jetbrains.annotations.NotNull;
 public class FastaIndexEntry implements Comparable<FastaIndexEntry> {
     private final String sequenceName;
     private final long offset;
-    private final int length;
+    private final long length;
     private final int lineBases;
     private final int lineWidth;
     private final int seqId;
 
-    public FastaIndexEntry(int seqId, String sequenceName, int length, long offset, int lineBases, int lineWidth) {
+    public FastaIndexEntry(int seqId, String sequenceName, long length, long offset, int lineBases, int lineWidth) {
         this.seqId = seqId;
         this.sequenceName = sequenceName;
         this.offset = offset;
@@ -31,7 +31,7 @@ public class FastaIndexEntry implements Comparable<FastaIndexEntry> {
         return offset;
     }
 
-    public int getLength() {
+    public long getLength() {
         return length;
     }
 
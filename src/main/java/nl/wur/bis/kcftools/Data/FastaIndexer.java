@@ -0,0 +1,302 @@
+package nl.wur.bis.kcftools.Data;
+
+import nl.wur.bis.kcftools.Utils.Logger;
+
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/***
+ * This class writes the index of a fasta file (same layout as samtools faidx: name, length, offset, line bases and
+ * line width per sequence) by scanning the memory mapped file in parallel chunks.
+ * The first pass finds the header lines ('>' at the start of a line) chunk by chunk. The header lines and the first
+ * line of every sequence are read serially, which gives the line layout of the sequence. The second pass counts and
+ * validates the bases of all sequences chunk by chunk: every base has to be at a base column of the layout, and only
+ * the last line of a sequence may be shorter. Lines may end with LF or CRLF.
+ */
+public class FastaIndexer {
+    // size of the mapped segments, and of the pieces scanned by one task
+    private static final int CHUNK_SIZE = 64 << 20;
+    private static final boolean[] VALID_BASES = new boolean[256];
+    private final File fastaFile;
+    private final long fileSize;
+    private final MappedByteBuffer[] segments;
+    private final int threads;
+    private static final String CLASS_NAME = FastaIndexer.class.getSimpleName();
+
+    static {
+        for (char base : "ACGTYRWSMKHBVDNacgtyrwsmkhbvdn".toCharArray()) {
+            VALID_BASES[base] = true;
+        }
+    }
+
+    /***
+     * A sequence of the fasta file: its header line, bases and line layout
+     */
+    private static class Sequence {
+        private final String name;
+        private final long start;
+        private final long end;
+        private final int lineBases;
+        private final int lineWidth;
+        private long length = 0;
+        private long invalidBase = Long.MAX_VALUE;
+        private long misplacedBase = Long.MAX_VALUE;
+        private long shortLineEnd = Long.MAX_VALUE;
+        private long lastBase = -1;
+
+        private Sequence(String name, long start, long end, int lineBases, int lineWidth) {
+            this.name = name;
+            this.start = start;
+            this.end = end;
+            this.lineBases = lineBases;
+            this.lineWidth = lineWidth;
+        }
+
+        private synchronized void add(Piece piece) {
+            length += piece.bases;
+            invalidBase = Math.min(invalidBase, piece.invalidBase);
+            misplacedBase = Math.min(misplacedBase, piece.misplacedBase);
+            shortLineEnd = Math.min(shortLineEnd, piece.shortLineEnd);
+            lastBase = Math.max(lastBase, piece.lastBase);
+        }
+    }
+
+    /***
+     * The counts of a chunk of the bases of a sequence
+     */
+    private static class Piece {
+        private long bases = 0;
+        private long invalidBase = Long.MAX_VALUE;
+        private long misplacedBase = Long.MAX_VALUE;
+        private long shortLineEnd = Long.MAX_VALUE;
+        private long lastBase = -1;
+    }
+
+    public FastaIndexer(File fastaFile, int threads) throws IOException {
+        this.fastaFile = fastaFile;
+        this.threads = Math.max(1, threads);
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(fastaFile, "r");
+             FileChannel fileChannel = randomAccessFile.getChannel()) {
+            this.fileSize = fileChannel.size();
+            this.segments = new MappedByteBuffer[(int) ((fileSize + CHUNK_SIZE - 1) / CHUNK_SIZE)];
+            for (int i = 0; i < segments.length; i++) {
+                long offset = (long) i * CHUNK_SIZE;
+                segments[i] = fileChannel.map(FileChannel.MapMode.READ_ONLY, offset, Math.min(CHUNK_SIZE, fileSize - offset));
+            }
+        }
+    }
+
+    /***
+     * Index the fasta file and write the index file
+     */
+    public void writeIndex(File indexFile) throws IOException {
+        long startTime = System.currentTimeMillis();
+        if (fileSize == 0 || byteAt(0) != '>') {
+            Logger.error(CLASS_NAME, "Invalid fasta file: " + fastaFile);
+        }
+        List<Sequence> sequences = readHeaders(findHeaders());
+        countBases(sequences);
+        // validate everything before writing, so a broken fasta never leaves an index file behind
+        for (Sequence sequence : sequences) {
+            checkSequence(sequence);
+        }
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(indexFile))) {
+            for (Sequence sequence : sequences) {
+                if (sequence.length == 0) {
+                    writer.write(sequence.name + "\t0\t" + sequence.start + "\t0\t0\n");
+                } else {
+                    writer.write(sequence.name + "\t" + sequence.length + "\t" + sequence.start + "\t" + sequence.lineBases + "\t" + sequence.lineWidth + "\n");
+                }
+            }
+        }
+        Logger.info(CLASS_NAME, "Indexed " + sequences.size() + " sequences in " + (System.currentTimeMillis() - startTime) + " ms using " + threads + " threads");
+    }
+
+    /***
+     * First pass: the offsets of the header lines, in file order
+     */
+    private long[] findHeaders() {
+        List<long[]> found = runParallel(segments.length, i -> {
+            MappedByteBuffer segment = segments[i];
+            long base = (long) i * CHUNK_SIZE;
+            long[] headers = new long[16];
+            int count = 0;
+            byte previous = base == 0 ? (byte) '\n' : byteAt(base - 1);
+            for (int j = 0; j < segment.limit(); j++) {
+                byte b = segment.get(j);
+                if (b == '>' && previous == '\n') {
+                    if (count == headers.length) {
+                        headers = Arrays.copyOf(headers, count * 2);
+                    }
+                    headers[count++] = base + j;
+                }
+                previous = b;
+            }
+            return Arrays.copyOf(headers, count);
+        });
+        return found.stream().flatMapToLong(Arrays::stream).toArray();
+    }
+
+    /***
+     * Read the header line and the first line of every sequence
+     */
+    private List<Sequence> readHeaders(long[] headers) {
+        List<Sequence> sequences = new ArrayList<>(headers.length);
+        Set<String> names = new HashSet<>();
+        for (int i = 0; i < headers.length; i++) {
+            long lineEnd = findLineEnd(headers[i], fileSize);
+            String header = new String(getBytes(headers[i] + 1, lineEnd), StandardCharsets.UTF_8).strip();
+            String name = header.split("[ \t]", 2)[0];
+            if (!names.add(name)) {
+                Logger.error(CLASS_NAME, "Duplicate sequence name in fasta file: " + name + " at line " + lineNumber(headers[i]));
+            }
+            long start = Math.min(lineEnd + 1, fileSize);
+            long end = i + 1 < headers.length ? headers[i + 1] : fileSize;
+
+            // the first line gives the line layout of the sequence
+            long firstLineEnd = findLineEnd(start, end);
+            int lineBases = (int) (firstLineEnd - start);
+            int terminator = firstLineEnd < end ? 1 : 0;
+            if (lineBases > 0 && byteAt(firstLineEnd - 1) == '\r') {
+                lineBases--;
+                terminator++;
+            }
+            sequences.add(new Sequence(name, start, end, lineBases, lineBases + Math.max(1, terminator)));
+        }
+        return sequences;
+    }
+
+    /***
+     * Second pass: count and validate the bases of all sequences, in pieces that do not cross a mapped segment
+     */
+    private void countBases(List<Sequence> sequences) {
+        List<Sequence> pieceSequences = new ArrayList<>();
+        List<long[]> pieceRanges = new ArrayList<>();
+        for (Sequence sequence : sequences) {
+            long from = sequence.start;
+            while (from < sequence.end) {
+                long to = Math.min(sequence.end, (from / CHUNK_SIZE + 1) * CHUNK_SIZE);
+                pieceSequences.add(sequence);
+                pieceRanges.add(new long[]{from, to});
+                from = to;
+            }
+        }
+        runParallel(pieceRanges.size(), i -> {
+            Sequence sequence = pieceSequences.get(i);
+            long[] range = pieceRanges.get(i);
+            sequence.add(scanPiece(sequence, range[0], range[1]));
+            return null;
+        });
+    }
+
+    private Piece scanPiece(Sequence sequence, long from, long to) {
+        Piece piece = new Piece();
+        int lineBases = sequence.lineBases;
+        int lineWidth = sequence.lineWidth;
+        int column = (int) ((from - sequence.start) % lineWidth);
+        MappedByteBuffer segment = segments[(int) (from / CHUNK_SIZE)];
+        long segmentStart = from / CHUNK_SIZE * CHUNK_SIZE;
+        for (long offset = from; offset < to; offset++) {
+            int b = segment.get((int) (offset - segmentStart)) & 0xff;
+            if (b == '\n' || b == '\r') {
+                // a line ending before the end of the layout line is a short line, only the last one may be
+                if ((b == '\n' && column != lineWidth - 1) || (b == '\r' && column < lineBases)) {
+                    piece.shortLineEnd = Math.min(piece.shortLineEnd, offset);
+                }
+            } else {
+                if (!VALID_BASES[b]) {
+                    piece.invalidBase = Math.min(piece.invalidBase, offset);
+                } else if (column >= lineBases) {
+                    piece.misplacedBase = Math.min(piece.misplacedBase, offset);
+                }
+                piece.bases++;
+                piece.lastBase = offset;
+            }
+            if (++column == lineWidth) {
+                column = 0;
+            }
+        }
+        return piece;
+    }
+
+    private void checkSequence(Sequence sequence) {
+        if (sequence.invalidBase != Long.MAX_VALUE) {
+            Logger.error(CLASS_NAME, "Invalid character '" + (char) (byteAt(sequence.invalidBase) & 0xff) + "' in fasta file: "
+                    + fastaFile + " at line " + lineNumber(sequence.invalidBase));
+        }
+        if (sequence.misplacedBase != Long.MAX_VALUE || sequence.lastBase > sequence.shortLineEnd) {
+            long offset = Math.min(sequence.misplacedBase, sequence.shortLineEnd);
+            Logger.error(CLASS_NAME, "Different line lengths in sequence " + sequence.name + " of fasta file: " + fastaFile
+                    + " at line " + lineNumber(offset) + ", only the last line of a sequence may be shorter");
+        }
+    }
+
+    private interface Task<T> {
+        T run(int i);
+    }
+
+    /***
+     * Run the tasks 0..count-1 on the indexer threads, and return their results in order
+     */
+    private <T> List<T> runParallel(int count, Task<T> task) {
+        List<T> results = new ArrayList<>(count);
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, count)));
+        try {
+            List<Future<T>> futures = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                int index = i;
+                futures.add(executor.submit(() -> task.run(index)));
+            }
+            for (Future<T> future : futures) {
+                results.add(future.get());
+            }
+        } catch (Exception e) {
+            Logger.error(CLASS_NAME, "Error indexing fasta file " + fastaFile + ": " + e.getMessage());
+        } finally {
+            executor.shutdown();
+        }
+        return results;
+    }
+
+    private byte byteAt(long offset) {
+        return segments[(int) (offset / CHUNK_SIZE)].get((int) (offset % CHUNK_SIZE));
+    }
+
+    /***
+     * Offset of the first '\n' at or after the offset, or the limit
+     */
+    private long findLineEnd(long offset, long limit) {
+        while (offset < limit && byteAt(offset) != '\n') {
+            offset++;
+        }
+        return offset;
+    }
+
+    private byte[] getBytes(long from, long to) {
+        byte[] bytes = new byte[(int) (to - from)];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = byteAt(from + i);
+        }
+        return bytes;
+    }
+
+    /***
+     * Line number (1-based) of an offset, only used for the error messages
+     */
+    private long lineNumber(long offset) {
+        long line = 1;
+        for (long o = 0; o < offset; o++) {
+            if (byteAt(o) == '\n') {
+                line++;
+            }
+        }
+        return line;
+    }
+}
+//EOF
@@ -61,7 +61,7 @@ public class GTF {
                         // in case the GTF file does not have gene feature, we create a gene feature
                         if (!features.containsVertex(parentID)) {
                             features.addVertex(parentID);
-                            Feature geneFeature = new Feature(chromID, Integer.parseInt(fields[3]), Integer.parseInt(fields[4]),
+                            Feature geneFeature = new Feature(chromID, Long.parseLong(fields[3]), Long.parseLong(fields[4]),
                                     fields[6].charAt(0), "gene", parentID);
                             features.addEdge(chromID, parentID);
                             featureMap.put(parentID, geneFeature);
@@ -69,8 +69,8 @@ public class GTF {
                         // update start and end of the gene feature in featureMap and assign them back to the featureMap
                         Feature geneFeature = featureMap.get(parentID);
                         if (geneFeature != null) {
-                            geneFeature.updateStart(Integer.parseInt(fields[3]));
-                            geneFeature.updateEnd(Integer.parseInt(fields[4]));
+                            geneFeature.updateStart(Long.parseLong(fields[3]));
+                            geneFeature.updateEnd(Long.parseLong(fields[4]));
                             featureMap.put(parentID, geneFeature);
                         }
                         break;
@@ -84,7 +84,7 @@ public class GTF {
                         continue;
                 }
 
-                Feature feature = new Feature(fields[0], Integer.parseInt(fields[3]), Integer.parseInt(fields[4]),
+                Feature feature = new Feature(fields[0], Long.parseLong(fields[3]), Long.parseLong(fields[4]),
                         fields[6].charAt(0), type, featureID);
                 features.addVertex(featureID);
                 featureMap.put(featureID, feature);
@@ -310,13 +310,13 @@ public class GTF {
      */
     public static class Feature implements Comparable<Feature> {
         private final String chromosome;
-        private int start;
-        private int end;
+        private long start;
+        private long end;
         private char strand;
         private final String type;
         private final String id;
 
-        public Feature(String chromosome, int start, int end, char strand, String type, String id) {
+        public Feature(String chromosome, long start, long end, char strand, String type, String id) {
             this.chromosome = chromosome;
             this.start = start;
             this.end = end;
@@ -328,7 +328,7 @@ public class GTF {
         @Override
         public int compareTo(Feature other) {
             if (this.chromosome.equals(other.chromosome)) {
-                return Integer.compare(this.start, other.start);
+                return Long.compare(this.start, other.start);
             }
             return this.chromosome.compareTo(other.chromosome);
         }
@@ -355,11 +355,11 @@ public class GTF {
             return new Loci(chromosome, start, end, String.valueOf(strand)).toString();
         }
 
-        public void updateStart(int start) {
+        public void updateStart(long start) {
             if (start < this.start) this.start = start;
         }
 
-        public void updateEnd(int end) {
+        public void updateEnd(long end) {
             if (end > this.end) this.end = end;
         }
 
@@ -371,11 +371,11 @@ public class GTF {
      */
     public static class Loci implements Comparable<Loci> {
         private final String chromosome;
-        private final int start;
-        private final int end;
+        private final long start;
+        private final long end;
         private final String strand;
 
-        public Loci(String chromosome, int start, int end, String strand) {
+        public Loci(String chromosome, long start, long end, String strand) {
             this.chromosome = chromosome;
             this.start = start;
             this.end = end;
@@ -386,11 +386,11 @@ public class GTF {
             return chromosome;
         }
 
-        public int getStart() {
+        public long getStart() {
             return start;
         }
 
-        public int getEnd() {
+        public long getEnd() {
             return end;
         }
 
@@ -405,15 +405,15 @@ public class GTF {
         }
 
         public Loci mergeWith(Loci other) {
-            int mergedStart = Math.min(this.start, other.start);
-            int mergedEnd = Math.max(this.end, other.end);
+            long mergedStart = Math.min(this.start, other.start);
+            long mergedEnd = Math.max(this.end, other.end);
             return new Loci(this.chromosome, mergedStart, mergedEnd, this.strand);
         }
 
         @Override
         public int compareTo(Loci other) {
             if (this.chromosome.equals(other.chromosome)) {
-                return Integer.compare(this.start, other.start);
+                return Long.compare(this.start, other.start);
             }
             return this.chromosome.compareTo(other.chromosome);
         }
@@ -432,14 +432,14 @@ public class GTF {
         @Override
         public int hashCode() {
             int result = chromosome.hashCode();
-            result = 31 * result + Integer.hashCode(start);
-            result = 31 * result + Integer.hashCode(end);
+            result = 31 * result + Long.hashCode(start);
+            result = 31 * result + Long.hashCode(end);
             result = 31 * result + strand.hashCode();
             return result;
         }
 
         public int getLength() {
-            return end - start + 1;
+            return (int) (end - start + 1);
         }
     }
 }
@@ -0,0 +1,74 @@
+package nl.wur.bis.kcftools.Data;
+
+import java.util.function.IntBinaryOperator;
+
+/***
+ * This class sorts an index array (e.g. the lookup order of a KmerBatch) by comparing the items the indices point to,
+ * so the items themselves stay in place. It is a three way quick sort, so the repeated kmers of windows and references
+ * are grouped in one pass, with an insertion sort for the small ranges.
+ */
+final class IndexSort {
+    private static final int INSERTION_SORT_THRESHOLD = 16;
+
+    private IndexSort() {
+    }
+
+    /***
+     * Sort order[low..high] (inclusive) by the items the indices point to, compared with the given comparator
+     */
+    static void sort(int[] order, int low, int high, IntBinaryOperator comparator) {
+        while (high - low >= INSERTION_SORT_THRESHOLD) {
+            swap(order, low, medianOfThree(order, low, low + (high - low) / 2, high, comparator));
+            int pivot = order[low];
+            int lt = low;
+            int gt = high;
+            int i = low + 1;
+            while (i <= gt) {
+                int c = comparator.applyAsInt(order[i], pivot);
+                if (c < 0) {
+                    swap(order, lt++, i++);
+                } else if (c > 0) {
+                    swap(order, i, gt--);
+                } else {
+                    i++;
+                }
+            }
+            // recurse into the smaller part, loop on the larger one
+            if (lt - low < high - gt) {
+                sort(order, low, lt - 1, comparator);
+                low = gt + 1;
+            } else {
+                sort(order, gt + 1, high, comparator);
+                high = lt - 1;
+            }
+        }
+        for (int i = low + 1; i <= high; i++) {
+            int value = order[i];
+            int j = i - 1;
+            while (j >= low && comparator.applyAsInt(order[j], value) > 0) {
+                order[j + 1] = order[j];
+                j--;
+            }
+            order[j + 1] = value;
+        }
+    }
+
+    private static int medianOfThree(int[] order, int a, int b, int c, IntBinaryOperator comparator) {
+        int x = order[a];
+        int y = order[b];
+        int z = order[c];
+        if (comparator.applyAsInt(x, y) < 0) {
+            if (comparator.applyAsInt(y, z) < 0) return b;
+            return comparator.applyAsInt(x, z) < 0 ? c : a;
+        }
+        if (comparator.applyAsInt(x, z) < 0) return a;
+        return comparator.applyAsInt(y, z) < 0 ? c : b;
+    }
+
+    private static void swap(int[] order, int i, int j) {
+        int tmp = order[i];
+        order[i] = order[j];
+        order[j] = tmp;
+    }
+}
+//EOF
@@ -19,7 +19,7 @@ public class KCFHeader implements Comparable<KCFHeader> {
     private String source;
     private final String date;
     private String reference;
-    private LinkedHashMap<String, Integer> contigs;
+    private LinkedHashMap<String, Long> contigs;
     private final String infoLines;
     private final String formatLines;
     private List<String> commandLines;
@@ -31,7 +31,7 @@ public class KCFHeader implements Comparable<KCFHeader> {
         this("", null); // default to empty reference and no contigs
     }
 
-    public KCFHeader(String reference, LinkedHashMap<String, Integer> contigs) {
+    public KCFHeader(String reference, LinkedHashMap<String, Long> contigs) {
         this.version = Configs.KCF_VERSION.getValue();
         this.source = Configs.KCF_SOURCE.getValue();
         this.date = HelperFunctions.getTodayDate();
@@ -56,7 +56,7 @@ public class KCFHeader implements Comparable<KCFHeader> {
             } else if (line.startsWith("##contig=")){
                 String[] contigLine = line.substring(10, line.length()-1).split(",");
                 String contigName = contigLine[0].substring(3);
-                int contigLength = Integer.parseInt(contigLine[1].substring(7));
+                long contigLength = Long.parseLong(contigLine[1].substring(7));
                 addContig(contigName, contigLength);
             } else if (line.startsWith("##CMD=")){
                 addCommandLine(line.substring(6));
@@ -261,7 +261,7 @@ public class KCFHeader implements Comparable<KCFHeader> {
     /***
      * Add a contig name and length to the list of contigs
      */
-    public void addContig(String name, int length){
+    public void addContig(String name, long length){
         if (contigs == null){
             contigs = new LinkedHashMap<>();
         }
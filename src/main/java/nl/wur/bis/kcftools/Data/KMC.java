@@ -8,10 +8,23 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.LongBuffer;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import static nl.wur.bis.kcftools.Data.Kmer.binaryToKmer;
 
@@ -19,9 +32,17 @@ import static nl.wur.bis.kcftools.Data.Kmer.binaryToKmer;
  * This class represents a KMC object that is used to read a KMC database and query the database for kmer counts
  * This class is heavily based on the documentation here: https://github.com/refresh-bio/KMC/blob/master/API.pdf
  */
-public class KMC implements AutoCloseable {
+public class KMC implements KmerLookup {
     private final String kmcPrefixFile;
     private final String kmcSuffixFile;
+    // open cache of the prefix file (native byte order copy of the header, signature map and prefix array)
+    public static final String PREFIX_CACHE_EXTENSION = ".kcfpre";
+    private static final byte[] PREFIX_CACHE_MAGIC = "KCFPRE\0\0".getBytes(StandardCharsets.US_ASCII);
+    private static final int PREFIX_CACHE_VERSION = 1;
+    private static final int PREFIX_CACHE_HEADER_SIZE = 128;
+    // largest prefix array (in bytes) that fits one LongBuffer
+    private static final long MAX_PREFIX_ARRAY_BYTES = Integer.MAX_VALUE / 8 * 8L;
+    private static final int BYTE_ORDER_MARK = 0x01020304;
     private int kmerLength;
     private int mode;
     private int counterSize;
@@ -36,16 +57,35 @@ public class KMC implements AutoCloseable {
     private int version;
     // 120 mb
     int MAX_BYTE_COUNT = 1 << 24;
+    // 1 gb, upper bound of a chunk when the suffix file is mapped as one segment
+    private static final int MAX_SEGMENT_CHUNK_BYTES = 1 << 30;
+    // assumed OS page size when warming up the mapping
+    private static final int OS_PAGE_SIZE = 4096;
     private MappedByteBuffer[] suffixBuffers;
     private final Signature signatureReference;
     private final int record_size;
-    private final long recordsPerPage;
+    private long recordsPerPage;
     private int lutPrefixArraySize;
 
-    private long[] prefixArray;
+    // cumulative record counts per (signature bin, LUT prefix) slot, a heap array or a view on a mapped file
+    private LongBuffer prefixArray;
+    private String prefixArraySource;
+    // time taken to open the database (ms)
+    private long openTime;
     private int[] signatureMap;
     private ThreadLocal<MappedByteBuffer[]> threadLocalBuffers;
-    private byte[][] inMemorySuffixBuffers;
+    // true when the suffix file is mapped as one segment, shared by all threads
+    private boolean segmentMapped;
+    private ByteBuffer[] inMemorySuffixBuffers;
+    private final ThreadLocal<KMCCursor> threadLocalCursor = ThreadLocal.withInitial(this::newCursor);
+    // sampled suffix index: first suffix word of every (1 << sampleShift)th record
+    private long[] sampledIndex;
+    private int sampleShift;
+    // optional bloom filter prefilter, consulted by the cursors before the suffix search
+    // read by the cursors at every lookup
+    private volatile KmerBloomFilter bloomFilter;
+    // kmers per interleaved search group of the cursors (0: sorted merge)
+    private int searchGroupSize;
 
     private final String CLASS_NAME = this.getClass().getSimpleName();
 
@@ -54,14 +94,28 @@ public class KMC implements AutoCloseable {
     }
 
     public KMC(String kmcDBName, boolean inMemory) throws IOException {
+        this(kmcDBName, inMemoryOptions(inMemory));
+    }
+
+    public KMC(String kmcDBName, KMCOptions options) throws IOException {
         this.kmcPrefixFile = kmcDBName + ".kmc_pre";
         this.kmcSuffixFile = kmcDBName + ".kmc_suf";
-        readPrefixFile(kmcPrefixFile);
+        long startTime = System.currentTimeMillis();
+        String cacheFile = kmcDBName + PREFIX_CACHE_EXTENSION;
+        if (!options.isPrefixCache() || !readPrefixCache(cacheFile, options.isMapPrefixArray())) {
+            readPrefixFile(kmcPrefixFile, options.isMapPrefixArray());
+            if (options.isPrefixCache()) {
+                writePrefixCache(cacheFile);
+            }
+        }
         this.signatureReference = new Signature(signatureLength);
         record_size = counterSize + sufixLength / 4;
         recordsPerPage = MAX_BYTE_COUNT / record_size;
-        if (inMemory) {
-            preloadSuffixBuffers(kmcSuffixFile);
+        if (options.isInMemory()) {
+            preloadSuffixBuffers(kmcSuffixFile, options.getThreads());
+        }
+        else if (options.isSegmentMapped()) {
+            mapSuffixSegment(kmcSuffixFile);
         }
         else {
             readSuffixBuffers(kmcSuffixFile);
@@ -74,51 +128,162 @@ public class KMC implements AutoCloseable {
                 return localBuffers;
             });
         }
+        if (options.isWarmUp() && !options.isInMemory()) {
+            warmUpSuffixBuffers(options.getThreads());
+        }
+        buildSampledIndex(options.getSampledIndexBytes(), options.getThreads());
+        searchGroupSize = options.getSearchGroupSize();
+        openTime = System.currentTimeMillis() - startTime;
         printSummary();
     }
 
+    private static KMCOptions inMemoryOptions(boolean inMemory) {
+        KMCOptions options = new KMCOptions();
+        options.setInMemory(inMemory);
+        return options;
+    }
+
+    /***
+     * Build the sampled suffix index, which keeps the first suffix word of every Nth record in the heap.
+     * N is the smallest power of two that fits the memory budget, so a lookup can narrow its prefix range to N records
+     * before touching the suffix file.
+     */
+    private void buildSampledIndex(long budgetBytes, int threads) {
+        if (budgetBytes <= 0 || totalKmers == 0) {
+            return;
+        }
+        long startTime = System.currentTimeMillis();
+        int shift = 1;
+        while (((((totalKmers - 1) >>> shift) + 1) * 8 > budgetBytes) || (((totalKmers - 1) >>> shift) + 1) > Integer.MAX_VALUE - 8) {
+            shift++;
+        }
+        int entries = (int) (((totalKmers - 1) >>> shift) + 1);
+        long[] samples = new long[entries];
+        final int sampleShiftFinal = shift;
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            int chunk = (entries + threads - 1) / threads;
+            for (int t = 0; t < threads; t++) {
+                int from = t * chunk;
+                int to = Math.min(entries, from + chunk);
+                futures.add(executor.submit(() -> {
+                    KMCCursor cursor = newCursor();
+                    for (int j = from; j < to; j++) {
+                        samples[j] = cursor.firstSuffixWord((long) j << sampleShiftFinal);
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (Exception e) {
+            Logger.error(CLASS_NAME, "Error building sampled suffix index: " + e.getMessage());
+        } finally {
+            executor.shutdown();
+        }
+        sampledIndex = samples;
+        sampleShift = shift;
+        Logger.info(CLASS_NAME, "Built sampled suffix index in " + (System.currentTimeMillis() - startTime) + " ms");
+    }
+
 
     /***
-     * Preload the suffix buffers into memory
+     * Preload the suffix buffers into off-heap (direct) memory, the pages are read by several threads in parallel
+     * with positional reads on disjoint ranges of the file. The heap does not need to be sized for the database,
+     * but the JVM direct memory limit (-XX:MaxDirectMemorySize, defaults to the max heap size) does.
      */
-    private void preloadSuffixBuffers(String kmcSuffixFile) throws IOException {
-        Logger.info(CLASS_NAME, "Loading KMC suffix file " + kmcSuffixFile + " into memory");
-        Logger.warning(CLASS_NAME, "OutOfMemoryError may occur if the suffix file is too large");
-        Logger.warning(CLASS_NAME, "Consider using the KCFTOOLS_HEAP_SIZE setting");
+    private void preloadSuffixBuffers(String kmcSuffixFile, int threads) throws IOException {
+        Logger.info(CLASS_NAME, "Loading KMC suffix file " + kmcSuffixFile + " into off-heap memory using " + threads + " threads");
+        logTransparentHugePages();
+        long dataSize = totalKmers * record_size;
         int fullPageSize = MAX_BYTE_COUNT / record_size * record_size; // in bytes
-        int numberOfPages = (int) ((totalKmers * record_size) / fullPageSize + ((totalKmers * record_size) % fullPageSize == 0 ? 0 : 1));
+        int numberOfPages = (int) (dataSize / fullPageSize + (dataSize % fullPageSize == 0 ? 0 : 1));
 
-        inMemorySuffixBuffers = new byte[numberOfPages][];
-        try (RandomAccessFile sufFile = new RandomAccessFile(kmcSuffixFile, "r")) {
-            // first 4 bytes are the marker KMCS in the file
-            sufFile.seek(4);
+        inMemorySuffixBuffers = new ByteBuffer[numberOfPages];
+        long startTime = System.nanoTime();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try (FileChannel channel = FileChannel.open(Path.of(kmcSuffixFile), StandardOpenOption.READ)) {
+            List<Future<?>> futures = new ArrayList<>();
             for (int i = 0; i < numberOfPages; i++) {
-                int pageSize = (int) (i == numberOfPages - 1 ? (totalKmers * record_size) % fullPageSize : fullPageSize);
-                pageSize = pageSize == 0 ? fullPageSize : pageSize;
-                inMemorySuffixBuffers[i] = new byte[pageSize];
-                sufFile.readFully(inMemorySuffixBuffers[i]);
+                final int pageIndex = i;
+                futures.add(executor.submit(() -> {
+                    int pageSize = (int) (pageIndex == numberOfPages - 1 ? dataSize % fullPageSize : fullPageSize);
+                    pageSize = pageSize == 0 ? fullPageSize : pageSize;
+                    ByteBuffer page = ByteBuffer.allocateDirect(pageSize);
+                    // first 4 bytes are the marker KMCS in the file
+                    long filePosition = 4 + (long) fullPageSize * pageIndex;
+                    while (page.hasRemaining()) {
+                        if (channel.read(page, filePosition + page.position()) < 0) {
+                            throw new IOException("Unexpected end of file");
+                        }
+                    }
+                    page.clear();
+                    inMemorySuffixBuffers[pageIndex] = page;
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof OutOfMemoryError) {
+                Logger.error(CLASS_NAME, "Not enough direct memory to load " + kmcSuffixFile + ", increase it with -XX:MaxDirectMemorySize (e.g. kcftools -XX:MaxDirectMemorySize=64G getVariations ...)");
             }
+            Logger.error(CLASS_NAME, "Error loading suffix file " + kmcSuffixFile + ": " + e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while loading suffix file " + kmcSuffixFile, e);
+        } finally {
+            executor.shutdown();
         }
+        double seconds = (System.nanoTime() - startTime) / 1e9;
+        Logger.info(CLASS_NAME, String.format("Loaded %.2f GB in %.2f s (%.1f MB/s)",
+                dataSize / (1024.0 * 1024 * 1024), seconds, dataSize / (1024.0 * 1024) / Math.max(seconds, 1e-9)));
     }
 
     /***
-     * Read the KMC prefix file
+     * Log the transparent huge pages mode of the system. Direct buffers are plain anonymous memory, so they are only
+     * backed by huge pages when THP is set to 'always' (the JVM does not madvise them)
      */
-    private void readPrefixFile(String kmcPrefixFile) throws IOException {
+    private void logTransparentHugePages() {
+        Path thp = Path.of("/sys/kernel/mm/transparent_hugepage/enabled");
+        if (!Files.isReadable(thp)) {
+            return;
+        }
+        try {
+            String modes = Files.readString(thp).trim();
+            int start = modes.indexOf('[');
+            int end = modes.indexOf(']');
+            String mode = start >= 0 && end > start ? modes.substring(start + 1, end) : modes;
+            Logger.info(CLASS_NAME, "Transparent huge pages: " + mode);
+            if (!mode.equals("always")) {
+                Logger.info(CLASS_NAME, "Set transparent huge pages to 'always' to back the loaded suffix pages with huge pages");
+            }
+        } catch (IOException e) {
+            Logger.debug(CLASS_NAME, "Could not read transparent huge pages mode: " + e.getMessage());
+        }
+    }
+
+    /***
+     * Read the KMC prefix file. The signature map and the prefix array are read with bulk IntBuffer/LongBuffer
+     * transfers, and with mapPrefixArray the prefix array is left as a view on the mapped file instead of a heap copy.
+     */
+    private void readPrefixFile(String kmcPrefixFile, boolean mapPrefixArray) throws IOException {
         Logger.info(CLASS_NAME, "Reading KMC prefix file " + kmcPrefixFile);
         try (RandomAccessFile raf = new RandomAccessFile(kmcPrefixFile, "r")) {
             long fileSize = raf.length();
-
-            // memory map the file
-            MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, fileSize);
-            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            FileChannel channel = raf.getChannel();
 
             // read the header offset from the last 8 bytes
-            buffer.position((int) (fileSize - 8));
-            int headerOffset = buffer.getInt();
+            int headerOffset = channel.map(FileChannel.MapMode.READ_ONLY, fileSize - 8, 8)
+                    .order(ByteOrder.LITTLE_ENDIAN).getInt();
 
-            // move to the header location in the file
-            buffer.position((int) (fileSize - headerOffset - 8));
+            // memory map the header, it sits right before the header offset
+            long headerStart = fileSize - headerOffset - 8;
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, headerStart, headerOffset);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
 
             // read header information
             kmerLength = buffer.getInt();
@@ -141,32 +306,167 @@ public class KMC implements AutoCloseable {
                 Logger.error(CLASS_NAME, "KMC version is not 0x200");
             }
 
-            // go to position buffer.position((int) (fileSize - headerOffset - 8 - (signatureMapSize * 4)));
+            // the signature map sits right before the header
             long signatureMapSize = (1L << 2 * signatureLength) + 1;
-            long signatureMapStart = fileSize - headerOffset - 8 - (signatureMapSize * 4);
-            buffer.position((int) signatureMapStart);
+            long signatureMapStart = headerStart - (signatureMapSize * 4);
             signatureMap = new int[(int) signatureMapSize];
-            for (int i = 0; i < signatureMapSize; i++) {
-                signatureMap[i] = buffer.getInt();
-            }
+            channel.map(FileChannel.MapMode.READ_ONLY, signatureMapStart, signatureMapSize * 4)
+                    .order(ByteOrder.LITTLE_ENDIAN).asIntBuffer().get(signatureMap);
 
             long prefixArrayStart = 4;
             lutPrefixArraySize = (1 << (2 * lutPrefixLength));
             singleLUTSize = lutPrefixArraySize * 8L;
-            int numPrefixArrays = (int) ((signatureMapStart - 8 - 4) / (int) singleLUTSize);
-
-            // go to prefixArrayStart
-            buffer.position((int) prefixArrayStart);
-            prefixArray = new long[numPrefixArrays * (1 << (2 * lutPrefixLength))];
-            for (int i = 0; i < numPrefixArrays * (1 << (2 * lutPrefixLength)); i++) {
-                prefixArray[i] = buffer.getLong();
+            long numPrefixArrays = (signatureMapStart - 8 - 4) / singleLUTSize;
+            long prefixArrayBytes = numPrefixArrays * singleLUTSize;
+            // the prefix array is addressed as one LongBuffer with int slots
+            if (prefixArrayBytes > MAX_PREFIX_ARRAY_BYTES) {
+                Logger.error(CLASS_NAME, String.format("The prefix array of %s is %.2f GB (%d prefix arrays of %d entries), "
+                                + "more than the %.2f GB that kcftools can address in one buffer",
+                        kmcPrefixFile, prefixArrayBytes / (1024.0 * 1024 * 1024), numPrefixArrays, lutPrefixArraySize,
+                        MAX_PREFIX_ARRAY_BYTES / (1024.0 * 1024 * 1024)));
             }
 
-        } catch (IOException | BufferUnderflowException e) {
+            LongBuffer lut = channel.map(FileChannel.MapMode.READ_ONLY, prefixArrayStart, prefixArrayBytes)
+                    .order(ByteOrder.LITTLE_ENDIAN).asLongBuffer();
+            prefixArray = mapPrefixArray ? lut : copyToHeap(lut);
+            prefixArraySource = mapPrefixArray ? "memory mapped (" + kmcPrefixFile + ")" : "heap";
+
+        } catch (IOException | BufferUnderflowException | IndexOutOfBoundsException e) {
             Logger.error(CLASS_NAME, "Error reading prefix file " + kmcPrefixFile);
         }
     }
 
+    private static LongBuffer copyToHeap(LongBuffer source) {
+        long[] values = new long[source.remaining()];
+        source.duplicate().get(values);
+        return LongBuffer.wrap(values);
+    }
+
+    /***
+     * Open the KMC prefix data from the open cache (<prefix>.kcfpre), a copy of the header fields, the signature map and
+     * the prefix array in native byte order and aligned, so opening is a few mmaps without parsing. Returns false if the
+     * cache is missing, or does not match the current kmc_pre file (size, modification time, byte order or version).
+     */
+    private boolean readPrefixCache(String cacheFile, boolean mapPrefixArray) {
+        Path cachePath = Path.of(cacheFile);
+        if (!Files.isReadable(cachePath)) {
+            return false;
+        }
+        try (FileChannel channel = FileChannel.open(cachePath, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(channel.size(), PREFIX_CACHE_HEADER_SIZE));
+            buffer.order(ByteOrder.nativeOrder());
+            byte[] magic = new byte[PREFIX_CACHE_MAGIC.length];
+            buffer.get(magic);
+            if (!Arrays.equals(magic, PREFIX_CACHE_MAGIC) || buffer.getInt() != PREFIX_CACHE_VERSION
+                    || buffer.getInt() != BYTE_ORDER_MARK) {
+                return false;
+            }
+            Path prefixPath = Path.of(kmcPrefixFile);
+            if (buffer.getLong() != Files.size(prefixPath) || buffer.getLong() != Files.getLastModifiedTime(prefixPath).toMillis()) {
+                Logger.info(CLASS_NAME, "KMC open cache " + cacheFile + " is out of date");
+                return false;
+            }
+            kmerLength = buffer.getInt();
+            mode = buffer.getInt();
+            counterSize = buffer.getInt();
+            lutPrefixLength = buffer.getInt();
+            sufixLength = kmerLength - lutPrefixLength;
+            signatureLength = buffer.getInt();
+            minCount = buffer.getInt();
+            maxCount = buffer.getInt();
+            bothStrands = buffer.getInt() == 1;
+            version = buffer.getInt();
+            int signatureMapSize = buffer.getInt();
+            totalKmers = buffer.getLong();
+            long prefixEntries = buffer.getLong();
+            lutPrefixArraySize = (1 << (2 * lutPrefixLength));
+            singleLUTSize = lutPrefixArraySize * 8L;
+            if (prefixEntries * 8 > MAX_PREFIX_ARRAY_BYTES) {
+                return false;
+            }
+
+            long signatureMapStart = PREFIX_CACHE_HEADER_SIZE;
+            long prefixArrayStart = signatureMapStart + (signatureMapSize * 4L + 7) / 8 * 8;
+            signatureMap = new int[signatureMapSize];
+            channel.map(FileChannel.MapMode.READ_ONLY, signatureMapStart, signatureMapSize * 4L)
+                    .order(ByteOrder.nativeOrder()).asIntBuffer().get(signatureMap);
+            LongBuffer lut = channel.map(FileChannel.MapMode.READ_ONLY, prefixArrayStart, prefixEntries * 8)
+                    .order(ByteOrder.nativeOrder()).asLongBuffer();
+            prefixArray = mapPrefixArray ? lut : copyToHeap(lut);
+            prefixArraySource = (mapPrefixArray ? "memory mapped" : "heap") + " (open cache " + cacheFile + ")";
+            return true;
+        } catch (IOException | BufferUnderflowException | IndexOutOfBoundsException e) {
+            Logger.warning(CLASS_NAME, "Could not read KMC open cache " + cacheFile + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    /***
+     * Write the open cache (<prefix>.kcfpre) of the prefix file. It is written to a temporary file first and moved in
+     * place, so a concurrent run never sees a partial cache. Failing to write it is not fatal.
+     */
+    private void writePrefixCache(String cacheFile) {
+        Path cachePath = Path.of(cacheFile);
+        Path tmpPath = Path.of(cacheFile + ".tmp" + ProcessHandle.current().pid());
+        try {
+            Path prefixPath = Path.of(kmcPrefixFile);
+            int prefixEntries = prefixArray.limit();
+            ByteBuffer header = ByteBuffer.allocate(PREFIX_CACHE_HEADER_SIZE).order(ByteOrder.nativeOrder());
+            header.put(PREFIX_CACHE_MAGIC);
+            header.putInt(PREFIX_CACHE_VERSION);
+            header.putInt(BYTE_ORDER_MARK);
+            header.putLong(Files.size(prefixPath));
+            header.putLong(Files.getLastModifiedTime(prefixPath).toMillis());
+            header.putInt(kmerLength);
+            header.putInt(mode);
+            header.putInt(counterSize);
+            header.putInt(lutPrefixLength);
+            header.putInt(signatureLength);
+            header.putInt(minCount);
+            header.putInt(maxCount);
+            header.putInt(bothStrands ? 1 : 0);
+            header.putInt(version);
+            header.putInt(signatureMap.length);
+            header.putLong(totalKmers);
+            header.putLong(prefixEntries);
+            header.clear();
+
+            ByteBuffer signatures = ByteBuffer.allocate((signatureMap.length * 4 + 7) / 8 * 8).order(ByteOrder.nativeOrder());
+            signatures.asIntBuffer().put(signatureMap);
+
+            try (FileChannel channel = FileChannel.open(tmpPath, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                    StandardOpenOption.WRITE)) {
+                writeFully(channel, header);
+                writeFully(channel, signatures);
+                // the prefix array is written in chunks
+                ByteBuffer chunk = ByteBuffer.allocateDirect(MAX_BYTE_COUNT).order(ByteOrder.nativeOrder());
+                int chunkEntries = MAX_BYTE_COUNT / 8;
+                for (int from = 0; from < prefixEntries; from += chunkEntries) {
+                    int to = Math.min(prefixEntries, from + chunkEntries);
+                    chunk.clear();
+                    chunk.asLongBuffer().put(prefixArray.duplicate().position(from).limit(to));
+                    chunk.limit((to - from) * 8);
+                    writeFully(channel, chunk);
+                }
+            }
+            Files.move(tmpPath, cachePath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            Logger.info(CLASS_NAME, "Wrote KMC open cache " + cacheFile);
+        } catch (IOException e) {
+            Logger.warning(CLASS_NAME, "Could not write KMC open cache " + cacheFile + ": " + e.getMessage());
+            try {
+                Files.deleteIfExists(tmpPath);
+            } catch (IOException ignored) {
+                // nothing left to clean up
+            }
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
     /***
      * Read the suffix buffers from the kmc_suf file
      */
@@ -188,6 +488,79 @@ public class KMC implements AutoCloseable {
         }
     }
 
+    /***
+     * Memory map the whole kmc_suf file as one read-only segment. A MappedByteBuffer can not exceed 2 GB, so the segment
+     * is made of chunks holding a power of two number of records (up to 1 GB each), which the cursors address with a
+     * shift and a mask. Only absolute reads are done on the chunks, so all threads share them without duplicates.
+     */
+    private void mapSuffixSegment(String kmcSuffixFile) {
+        long dataSize = totalKmers * record_size;
+        recordsPerPage = Long.highestOneBit(MAX_SEGMENT_CHUNK_BYTES / record_size);
+        long chunkSize = recordsPerPage * record_size;
+        int numberOfChunks = (int) ((dataSize + chunkSize - 1) / chunkSize);
+        Logger.info(CLASS_NAME, "MemoryMapping KMC suffix file " + kmcSuffixFile + " as a single segment (" + numberOfChunks + " chunks)");
+        try (FileChannel channel = FileChannel.open(Path.of(kmcSuffixFile), StandardOpenOption.READ)) {
+            suffixBuffers = new MappedByteBuffer[numberOfChunks];
+            for (int i = 0; i < numberOfChunks; i++) {
+                long chunkStart = chunkSize * i;
+                // first 4 bytes are the marker KMCS in the file
+                suffixBuffers[i] = channel.map(FileChannel.MapMode.READ_ONLY, chunkStart + 4, Math.min(chunkSize, dataSize - chunkStart));
+            }
+        } catch (IOException e) {
+            Logger.error(CLASS_NAME, "Error memory mapping suffix file " + kmcSuffixFile);
+        }
+        segmentMapped = true;
+    }
+
+    /***
+     * Touch every page of the mapped suffix file in parallel, so the lookups of the first windows do not stall on page
+     * faults. The time taken and the number of pages touched are logged. Returns the sum of the bytes read, which the
+     * tasks hand back through their futures so the reads are not optimised away.
+     */
+    private long warmUpSuffixBuffers(int threads) {
+        long startTime = System.nanoTime();
+        // split the mapping in slices, so small databases and large chunks are both spread over the threads
+        long sliceSize = Math.max(OS_PAGE_SIZE, (long) MAX_BYTE_COUNT);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        long pages = 0;
+        long sink = 0;
+        try {
+            List<Future<long[]>> futures = new ArrayList<>();
+            for (MappedByteBuffer buffer : suffixBuffers) {
+                for (long from = 0; from < buffer.limit(); from += sliceSize) {
+                    int start = (int) from;
+                    int end = (int) Math.min(buffer.limit(), from + sliceSize);
+                    futures.add(executor.submit(() -> {
+                        long touched = 0;
+                        long sum = 0;
+                        for (int position = start; position < end; position += OS_PAGE_SIZE) {
+                            sum += buffer.get(position);
+                            touched++;
+                        }
+                        return new long[]{touched, sum};
+                    }));
+                }
+            }
+            for (Future<long[]> future : futures) {
+                long[] result = future.get();
+                pages += result[0];
+                sink += result[1];
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            Logger.warning(CLASS_NAME, "Warm-up of the suffix file was interrupted");
+        } catch (ExecutionException e) {
+            Logger.warning(CLASS_NAME, "Warm-up of the suffix file failed: " + e.getCause());
+        } finally {
+            executor.shutdown();
+        }
+        double seconds = (System.nanoTime() - startTime) / 1e9;
+        Logger.info(CLASS_NAME, String.format("Warmed up the suffix file: touched %d pages (%.2f GB) in %.2f s using %d threads",
+                pages, pages * (double) OS_PAGE_SIZE / (1024 * 1024 * 1024), seconds, threads));
+        Logger.debug(CLASS_NAME, "Warm-up checksum: " + sink);
+        return sink;
+    }
+
     /***
      * Dump the prefix array to a file [DEBUG function]
      */
@@ -195,8 +568,8 @@ public class KMC implements AutoCloseable {
         int columnSize = 1 << (2 * lutPrefixLength);
         Logger.info(CLASS_NAME, "Writing prefix array to file " + prefixArrayFile);
         try (BufferedWriter writer = new BufferedWriter(new FileWriter(prefixArrayFile))) {
-            for (int i = 0; i < prefixArray.length; i++) {
-                writer.write(String.valueOf(prefixArray[i]));
+            for (int i = 0; i < prefixArray.limit(); i++) {
+                writer.write(String.valueOf(prefixArray.get(i)));
                 if (i % columnSize == columnSize - 1) {
                     writer.write("\n");
                 } else {
@@ -280,49 +653,105 @@ public class KMC implements AutoCloseable {
         Logger.info(CLASS_NAME, String.format("%-25s: %b", "Both strands", bothStrands));
         Logger.info(CLASS_NAME, String.format("%-25s: %d", "Signature map size", signatureMap.length));
         Logger.info(CLASS_NAME, String.format("%-25s: %d", "Single LUT size", singleLUTSize));
-        Logger.info(CLASS_NAME, String.format("%-25s: %d", "Prefix buffer size", prefixArray.length));
+        Logger.info(CLASS_NAME, String.format("%-25s: %d", "Prefix buffer size", prefixArray.limit()));
+        Logger.info(CLASS_NAME, String.format("%-25s: %s", "Prefix array", prefixArraySource));
         Logger.info(CLASS_NAME, String.format("%-25s: %s", "Version", Integer.toHexString(version)));
+        Logger.info(CLASS_NAME, String.format("%-25s: %d ms", "Open time", openTime));
+        Logger.info(CLASS_NAME, String.format("%-25s: %s", "Suffix access", inMemorySuffixBuffers != null ? "in memory"
+                : segmentMapped ? "memory mapped segment" : "memory mapped pages"));
+        if (sampledIndex != null) {
+            Logger.info(CLASS_NAME, String.format("%-25s: every %d records, %d entries (%.2f MB)", "Sampled index",
+                    1L << sampleShift, sampledIndex.length, sampledIndex.length * 8.0 / (1024 * 1024)));
+        } else {
+            Logger.info(CLASS_NAME, String.format("%-25s: %s", "Sampled index", "disabled"));
+        }
+        Logger.info(CLASS_NAME, String.format("%-25s: %s", "Batch search", searchGroupSize > 1
+                ? "interleaved, groups of " + searchGroupSize : "sorted merge"));
         Logger.info(CLASS_NAME, "==================================================");
 
     }
 
     /***
      * Get the count of a kmer from the KMC database
+     * (uses a cursor per thread, workers doing many lookups should hold their own cursor from newCursor())
      */
     public int getCount(Kmer kmer) {
-        // get the signature, prefix, and suffix from the kmer
-        long start, end;
-        int signature = kmer.getSignature(this.signatureReference);
-        int prefix = kmer.getPrefixFwd();
-        byte[] suffix = kmer.getSuffixFwd();
-
-        // calculate the start and end indices in the prefix array
-        int signatureIndex = signatureMap[signature] * lutPrefixArraySize;
-        start = prefixArray[signatureIndex + prefix];
-        if (signatureIndex + prefix + 1 >= prefixArray.length) {
-            end = totalKmers - 1;
-        }
-        else {
-            end = prefixArray[signatureIndex + prefix + 1] - 1;
-        }
+        return threadLocalCursor.get().getCount(kmer);
+    }
 
-        // perform binary search to find the matching suffix
-        while (start <= end) {
-            long mid = (start + end) / 2;
-            byte[] entry = getEntry(mid); // retrieve the entry for the current index
-            byte[] suffixFromEntry = getSuffixFromEntry(entry);
-
-            int comparison = HelperFunctions.compareByteArray(suffix, suffixFromEntry);
-            if (comparison < 0) {
-                end = mid - 1; // move the search range down
-            } else if (comparison > 0) {
-                start = mid + 1; // move the search range up
-            } else {
-                return getCountFromEntry(entry); // Match found, return count
+    /***
+     * Resolve the counts of a kmer batch with the cursor of the calling thread
+     */
+    @Override
+    public void getCounts(KmerBatch batch) {
+        threadLocalCursor.get().getCounts(batch);
+    }
+
+    /***
+     * Add the counts of this database to the counts already in the batch, with the cursor of the calling thread
+     */
+    public void addCounts(KmerBatch batch) {
+        threadLocalCursor.get().addCounts(batch);
+    }
+
+    /***
+     * Visit all records with at least the given count, using several threads (split by prefix array slots).
+     * The visitor is called concurrently and should be thread safe. Returns the number of records visited.
+     */
+    public long forEachRecord(int threads, int minRecordCount, KMCCursor.RecordVisitor visitor) {
+        int slots = prefixArray.limit();
+        int tasks = Math.max(1, Math.min(slots, threads * 16));
+        int chunk = (slots + tasks - 1) / tasks;
+        long visited = 0;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Long>> futures = new ArrayList<>();
+            for (int from = 0; from < slots; from += chunk) {
+                int fromSlot = from;
+                int toSlot = Math.min(slots, from + chunk);
+                futures.add(executor.submit(() -> {
+                    long[] local = new long[1];
+                    newCursor().forEachRecord(fromSlot, toSlot, (kmer, count) -> {
+                        if (count >= minRecordCount) {
+                            visitor.visit(kmer, count);
+                            local[0]++;
+                        }
+                    });
+                    return local[0];
+                }));
+            }
+            for (Future<Long> future : futures) {
+                visited += future.get();
             }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            Logger.error(CLASS_NAME, "Interrupted while reading KMC database " + kmcSuffixFile);
+        } catch (ExecutionException e) {
+            Logger.error(CLASS_NAME, "Error reading KMC database " + kmcSuffixFile + ": " + e.getCause());
+        } finally {
+            executor.shutdown();
         }
+        return visited;
+    }
+
+    /***
+     * Create a new lookup cursor for the calling worker, the suffix pages are resolved once per cursor
+     */
+    public KMCCursor newCursor() {
+        return new KMCCursor(this, getSuffixPages());
+    }
 
-        return 0;
+    /***
+     * Get the suffix pages visible to the calling thread
+     */
+    private ByteBuffer[] getSuffixPages() {
+        if (inMemorySuffixBuffers != null) {
+            return inMemorySuffixBuffers;
+        }
+        if (segmentMapped) {
+            return suffixBuffers;
+        }
+        return threadLocalBuffers.get();
     }
 
     /***
@@ -368,15 +797,7 @@ public class KMC implements AutoCloseable {
         int offset = (int) (index % recordsPerPage);
         int recordOffset = offset * record_size;
         byte[] entry = new byte[record_size];
-
-        if (inMemorySuffixBuffers != null) {
-            System.arraycopy(inMemorySuffixBuffers[(int) page], recordOffset, entry, 0, record_size);
-        }
-        else{
-            MappedByteBuffer localBuffer = threadLocalBuffers.get()[(int) page];
-            localBuffer.position(recordOffset);
-            localBuffer.get(entry);
-        }
+        getSuffixPages()[(int) page].get(recordOffset, entry);
         return entry;
     }
 
@@ -404,17 +825,109 @@ public class KMC implements AutoCloseable {
         return kmerLength;
     }
 
+    LongBuffer getPrefixArray() {
+        return prefixArray;
+    }
+
+    int[] getSignatureMap() {
+        return signatureMap;
+    }
+
+    public Signature getSignatureReference() {
+        return signatureReference;
+    }
+
+    public long getTotalKmers() {
+        return totalKmers;
+    }
+
+    /***
+     * Get the fingerprint of the database: the total number of kmers, and the size and modification time of the
+     * kmc_pre and kmc_suf files, so that a sidecar built from another (or a rebuilt) database is recognised
+     */
+    public long[] getFingerprint() throws IOException {
+        Path prefixPath = Path.of(kmcPrefixFile);
+        Path suffixPath = Path.of(kmcSuffixFile);
+        return new long[]{totalKmers, Files.size(prefixPath), Files.getLastModifiedTime(prefixPath).toMillis(),
+                Files.size(suffixPath), Files.getLastModifiedTime(suffixPath).toMillis()};
+    }
+
+    long getRecordsPerPage() {
+        return recordsPerPage;
+    }
+
+    int getRecordSize() {
+        return record_size;
+    }
+
+    int getSuffixBytes() {
+        return sufixLength / 4;
+    }
+
+    String getSuffixFileName() {
+        return kmcSuffixFile;
+    }
+
+    /***
+     * Get the index in the prefix array (signature bin and LUT prefix) of the kmer starting at the given offset
+     */
+    int getSlot(long[] kmers, int offset, int signature) {
+        int prefix = lutPrefixLength == 0 ? 0 : (int) (kmers[offset] >>> (64 - 2 * lutPrefixLength));
+        return signatureMap[signature] * lutPrefixArraySize + prefix;
+    }
+
+    public int getCounterSize() {
+        return counterSize;
+    }
+
+    long[] getSampledIndex() {
+        return sampledIndex;
+    }
+
+    int getSampleShift() {
+        return sampleShift;
+    }
+
+    int getSearchGroupSize() {
+        return searchGroupSize;
+    }
+
 
     public int getPrefixLength() {
         return lutPrefixLength;
     }
 
+    public int getMinCount() {
+        return minCount;
+    }
+
+    public int getMaxCount() {
+        return maxCount;
+    }
+
+    public KmerBloomFilter getBloomFilter() {
+        return bloomFilter;
+    }
+
+    /***
+     * Set the bloom filter prefilter, every cursor (the cached ones of the worker threads included) consults it before
+     * the suffix search from its next lookup on
+     */
+    public void setBloomFilter(KmerBloomFilter bloomFilter) {
+        this.bloomFilter = bloomFilter;
+    }
+
     @Override
     public void close() {
         if (suffixBuffers != null) {
             Arrays.fill(suffixBuffers, null);
         }
         suffixBuffers = null;
+        // the preloaded suffix file is released even when the closed KMC is still referenced (e.g. by a KMCGroup)
+        if (inMemorySuffixBuffers != null) {
+            Arrays.fill(inMemorySuffixBuffers, null);
+        }
+        inMemorySuffixBuffers = null;
         prefixArray = null;
         signatureMap = null;
     }
@@ -427,9 +940,9 @@ public class KMC implements AutoCloseable {
     public void dumpKmerTable(String kmerTableFile) throws IOException {
         try (BufferedWriter writer = new BufferedWriter(new FileWriter(kmerTableFile))) {
             // iterate the whole prefixArray and print the prefix and suffix and count for each kmer
-            for (int i = 0; i < prefixArray.length; i++) {
-                long start = prefixArray[i];
-                long end = (i == prefixArray.length - 1) ? totalKmers - 1 : prefixArray[i + 1] - 1;
+            for (int i = 0; i < prefixArray.limit(); i++) {
+                long start = prefixArray.get(i);
+                long end = (i == prefixArray.limit() - 1) ? totalKmers - 1 : prefixArray.get(i + 1) - 1;
                 // get the prefix from the i value where i % singleLUTSize is the prefix int
                 int prefix = i % lutPrefixArraySize;
                 // conver int to string
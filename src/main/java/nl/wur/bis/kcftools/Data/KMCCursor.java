@@ -0,0 +1,632 @@
+package nl.wur.bis.kcftools.Data;
+
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.util.Arrays;
+
+/***
+ * This class represents a per-worker lookup cursor on a KMC database.
+ * The suffix pages are resolved once when the cursor is created, and the query suffix is compared directly against
+ * the stored records (word-at-a-time, as unsigned big-endian longs), so a lookup does not allocate.
+ * A cursor is NOT thread safe, each worker (task) should get its own cursor from KMC.newCursor()
+ */
+public class KMCCursor {
+    /***
+     * Receives the records of the database in file order. The kmer array is owned by the cursor and is only valid
+     * during the call
+     */
+    public interface RecordVisitor {
+        void visit(long[] kmer, int count);
+    }
+
+    // interpolation probes done before falling back to bisection, and the smallest range worth interpolating
+    private static final int INTERPOLATION_STEPS = 3;
+    private static final int INTERPOLATION_MIN_RANGE = 64;
+
+    private final ByteBuffer[] pages;
+    private final LongBuffer prefixArray;
+    private final int[] signatureMap;
+    private final Signature signatureReference;
+    private final long totalKmers;
+    private final int kmerLength;
+    private final int kmerWords;
+    private final KmerCodec codec;
+    private final long recordsPerPage;
+    // shift and mask to address a record when the pages hold a power of two number of records (-1 otherwise)
+    private final int pageShift;
+    private final long pageMask;
+    private final int recordSize;
+    private final int suffixBytes;
+    private final int counterSize;
+    private final int lutPrefixLength;
+    private final int lutPrefixArraySize;
+    // number of 8 byte words in the suffix (last word may be partial)
+    private final int suffixWords;
+    // mask for the last suffix word, to drop the counter bytes that follow the suffix
+    private final long tailMask;
+    private final int tailBytes;
+    // query suffix, packed as big-endian words
+    private final long[] query;
+    // sampled suffix index of the database (null when disabled)
+    private final long[] samples;
+    private final int sampleShift;
+    // range of the current query after narrowing with the sampled index or the interpolation probes
+    private long narrowStart;
+    private long narrowEnd;
+    // the database, its bloom filter prefilter is read at every lookup so a filter set later applies to this cursor
+    private final KMC kmc;
+    // kmers per interleaved search group, 0 or 1 uses the sorted merge
+    private int searchGroupSize;
+    // per lane state of the interleaved search: packed query suffixes, remaining range and the record found
+    private long[] laneQueries;
+    private long[] laneLow;
+    private long[] laneHigh;
+    private long[] laneFound;
+    private long[] laneLowWord;
+    private long[] laneHighWord;
+    private int[] laneIndex;
+
+    KMCCursor(KMC kmc, ByteBuffer[] pages) {
+        this.pages = pages;
+        this.prefixArray = kmc.getPrefixArray();
+        this.signatureMap = kmc.getSignatureMap();
+        this.signatureReference = kmc.getSignatureReference();
+        this.totalKmers = kmc.getTotalKmers();
+        this.kmerLength = kmc.getKmerLength();
+        this.kmerWords = (2 * kmerLength + 63) / 64;
+        this.codec = KmerCodec.of(kmerLength);
+        this.recordsPerPage = kmc.getRecordsPerPage();
+        this.pageShift = Long.bitCount(recordsPerPage) == 1 ? Long.numberOfTrailingZeros(recordsPerPage) : -1;
+        this.pageMask = recordsPerPage - 1;
+        this.recordSize = kmc.getRecordSize();
+        this.suffixBytes = kmc.getSuffixBytes();
+        this.counterSize = kmc.getCounterSize();
+        this.lutPrefixLength = kmc.getPrefixLength();
+        this.lutPrefixArraySize = 1 << (2 * lutPrefixLength);
+        this.suffixWords = (suffixBytes + 7) / 8;
+        this.tailBytes = suffixBytes % 8 == 0 ? 8 : suffixBytes % 8;
+        this.tailMask = tailBytes == 8 ? -1L : -1L << (64 - 8 * tailBytes);
+        this.query = new long[Math.max(1, suffixWords)];
+        this.samples = kmc.getSampledIndex();
+        this.sampleShift = kmc.getSampleShift();
+        this.kmc = kmc;
+        setSearchGroupSize(kmc.getSearchGroupSize());
+    }
+
+    /***
+     * Set the number of kmers searched together by getCounts(), 0 or 1 to use the sorted merge
+     */
+    public void setSearchGroupSize(int searchGroupSize) {
+        this.searchGroupSize = Math.max(0, searchGroupSize);
+        if (this.searchGroupSize > 1) {
+            laneQueries = new long[this.searchGroupSize * suffixWords];
+            laneLow = new long[this.searchGroupSize];
+            laneHigh = new long[this.searchGroupSize];
+            laneFound = new long[this.searchGroupSize];
+            laneLowWord = new long[this.searchGroupSize];
+            laneHighWord = new long[this.searchGroupSize];
+            laneIndex = new int[this.searchGroupSize];
+        }
+    }
+
+    /***
+     * Get the count of a kmer from the KMC database (the kmer should already be canonical if the database is)
+     */
+    public int getCount(Kmer kmer) {
+        return getCount(kmer.getKmerLong(), kmer.getSignature(signatureReference));
+    }
+
+    /***
+     * Get the count of a kmer given as a left aligned 2-bit encoded long array (same layout as Kmer.getKmerLong())
+     */
+    public int getCount(long[] kmerLong) {
+        return getCount(kmerLong, codec.getSignature(kmerLong, 0, signatureReference));
+    }
+
+    /***
+     * Get the count of an encoded kmer whose KMC signature is already known
+     */
+    public int getCount(long[] kmerLong, int signature) {
+        KmerBloomFilter bloomFilter = kmc.getBloomFilter();
+        if (bloomFilter != null && !bloomFilter.mightContain(kmerLong, 0)) {
+            return 0;
+        }
+        loadQuery(kmerLong, 0);
+
+        // calculate the start and end indices in the prefix array
+        int slot = getSlot(kmerLong, 0, signature);
+        narrow(prefixArray.get(slot), slotEnd(slot));
+        long start = narrowStart;
+        long end = narrowEnd;
+
+        // interpolation probes while the range is large
+        long found = interpolate(start, end, 0, -1L);
+        if (found >= 0) {
+            return countAt(found);
+        }
+        start = narrowStart;
+        end = narrowEnd;
+
+        // perform binary search to find the matching suffix
+        end--;
+        while (start <= end) {
+            long mid = (start + end) >>> 1;
+            int comparison = compareRecord(mid);
+            if (comparison < 0) {
+                end = mid - 1;
+            } else if (comparison > 0) {
+                start = mid + 1;
+            } else {
+                return countAt(mid);
+            }
+        }
+        return 0;
+    }
+
+    /***
+     * Narrow the range [start, end) of the current query with a few interpolation probes on its first suffix word
+     * (suffix bits are close to uniform within a prefix range), lowWord and highWord bound the suffixes in the range.
+     * Returns the matching record if a probe hits it, -1 otherwise. The remaining range, which still holds the first
+     * record that is not smaller than the query, is left in narrowStart and narrowEnd.
+     */
+    private long interpolate(long start, long end, long lowWord, long highWord) {
+        for (int step = 0; step < INTERPOLATION_STEPS && end - start > INTERPOLATION_MIN_RANGE; step++) {
+            long probe = interpolationProbe(start, end, query[0], lowWord, highWord);
+            if (probe < 0) {
+                break;
+            }
+            int comparison = compareRecord(probe);
+            if (comparison == 0) {
+                narrowStart = probe;
+                narrowEnd = probe + 1;
+                return probe;
+            } else if (comparison < 0) {
+                end = probe;
+                highWord = firstSuffixWord(probe);
+            } else {
+                start = probe + 1;
+                lowWord = firstSuffixWord(probe);
+            }
+        }
+        narrowStart = start;
+        narrowEnd = end;
+        return -1;
+    }
+
+    /***
+     * Estimate the position of the key in [start, end) from the first suffix words bounding the range, -1 if the
+     * bounds do not allow an estimate
+     */
+    private static long interpolationProbe(long start, long end, long key, long lowWord, long highWord) {
+        double span = toUnsignedDouble(highWord) - toUnsignedDouble(lowWord);
+        if (span <= 0) {
+            return -1;
+        }
+        double fraction = (toUnsignedDouble(key) - toUnsignedDouble(lowWord)) / span;
+        long probe = start + (long) (fraction * (end - start));
+        return Math.max(start, Math.min(end - 1, probe));
+    }
+
+    private static double toUnsignedDouble(long value) {
+        return (double) (value >>> 11);
+    }
+
+    /***
+     * Narrow the record range [start, end) of the current query with the sampled index (if there is one).
+     * Records up to the last sample below the query, and from the first sample above it, can be skipped.
+     */
+    private void narrow(long start, long end) {
+        narrowStart = start;
+        narrowEnd = end;
+        if (samples == null || start >= end) {
+            return;
+        }
+        long stride = 1L << sampleShift;
+        int first = (int) ((start + stride - 1) >>> sampleShift);
+        int last = (int) ((end - 1) >>> sampleShift);
+        if (first > last) {
+            return;
+        }
+        long q = query[0];
+        // first sample that is not smaller than the query
+        int a = first;
+        int b = last + 1;
+        while (a < b) {
+            int mid = (a + b) >>> 1;
+            if (Long.compareUnsigned(samples[mid], q) < 0) {
+                a = mid + 1;
+            } else {
+                b = mid;
+            }
+        }
+        if (a > first) {
+            narrowStart = Math.max(start, ((long) (a - 1) << sampleShift) + 1);
+        }
+        // first sample that is larger than the query
+        b = last + 1;
+        while (a < b) {
+            int mid = (a + b) >>> 1;
+            if (Long.compareUnsigned(samples[mid], q) <= 0) {
+                a = mid + 1;
+            } else {
+                b = mid;
+            }
+        }
+        if (a <= last) {
+            narrowEnd = Math.min(end, (long) a << sampleShift);
+        }
+    }
+
+    /***
+     * Resolve the counts of all kmers in the batch, the counts are written back in the positional order of the batch.
+     * The kmers are visited in (signature, kmer) order, so all queries falling in the same prefix range are resolved
+     * with a single forward (galloping) merge over the sorted suffixes instead of an independent binary search each.
+     * When the next query is far ahead in a large range, a few interpolation probes skip the gap first.
+     * With a bloom filter, the kmers it rejects are set to 0 without searching.
+     */
+    public void getCounts(KmerBatch batch) {
+        if (searchGroupSize > 1) {
+            resolveInterleaved(batch, false);
+        } else {
+            resolve(batch, false);
+        }
+    }
+
+    /***
+     * Same as getCounts, but the counts are added to the counts already in the batch (to sum several databases)
+     */
+    public void addCounts(KmerBatch batch) {
+        if (searchGroupSize > 1) {
+            resolveInterleaved(batch, true);
+        } else {
+            resolve(batch, true);
+        }
+    }
+
+    /***
+     * Resolve the counts of the batch with independent binary searches, advanced in lockstep over groups of
+     * searchGroupSize kmers: every round does one probe for each lane that is still searching. The probes of a round
+     * do not depend on each other, so their cache misses overlap instead of stalling one search at a time.
+     * The kmers are taken in (signature, kmer) order, so the lanes of a group probe nearby records. The first rounds
+     * probe by interpolation while the range of a lane is large, like getCount.
+     */
+    private void resolveInterleaved(KmerBatch batch, boolean accumulate) {
+        KmerBloomFilter bloomFilter = kmc.getBloomFilter();
+        int[] order = batch.getOrder();
+        long[] kmers = batch.getKmers();
+        int words = batch.getWords();
+        int size = batch.size();
+        long rejected = 0;
+        long falsePositives = 0;
+        int i = 0;
+        while (i < size) {
+            // fill the lanes
+            int lanes = 0;
+            while (lanes < searchGroupSize && i < size) {
+                int index = order[i++];
+                if (bloomFilter != null && !bloomFilter.mightContain(kmers, index * words)) {
+                    if (!accumulate) {
+                        batch.setCount(index, 0);
+                    }
+                    rejected++;
+                    continue;
+                }
+                int slot = getSlot(kmers, index * words, batch.getSignature(index));
+                loadQuery(kmers, index * words, laneQueries, lanes * suffixWords);
+                if (samples != null) {
+                    System.arraycopy(laneQueries, lanes * suffixWords, query, 0, suffixWords);
+                    narrow(prefixArray.get(slot), slotEnd(slot));
+                    laneLow[lanes] = narrowStart;
+                    laneHigh[lanes] = narrowEnd;
+                } else {
+                    laneLow[lanes] = prefixArray.get(slot);
+                    laneHigh[lanes] = slotEnd(slot);
+                }
+                laneFound[lanes] = -1;
+                laneLowWord[lanes] = 0;
+                laneHighWord[lanes] = -1L;
+                laneIndex[lanes] = index;
+                lanes++;
+            }
+            // one probe per searching lane and round
+            boolean searching = true;
+            for (int round = 0; searching; round++) {
+                searching = false;
+                for (int lane = 0; lane < lanes; lane++) {
+                    long low = laneLow[lane];
+                    long high = laneHigh[lane];
+                    if (low >= high) {
+                        continue;
+                    }
+                    boolean interpolating = round < INTERPOLATION_STEPS && high - low > INTERPOLATION_MIN_RANGE;
+                    long mid = interpolating
+                            ? interpolationProbe(low, high, laneQueries[lane * suffixWords], laneLowWord[lane], laneHighWord[lane])
+                            : -1;
+                    if (mid < 0) {
+                        interpolating = false;
+                        mid = (low + high) >>> 1;
+                    }
+                    int comparison = compareRecord(mid, laneQueries, lane * suffixWords);
+                    if (comparison < 0) {
+                        high = mid;
+                        if (interpolating) {
+                            laneHighWord[lane] = firstSuffixWord(mid);
+                        }
+                    } else if (comparison > 0) {
+                        low = mid + 1;
+                        if (interpolating) {
+                            laneLowWord[lane] = firstSuffixWord(mid);
+                        }
+                    } else {
+                        laneFound[lane] = mid;
+                        high = low;
+                    }
+                    laneLow[lane] = low;
+                    laneHigh[lane] = high;
+                    searching |= low < high;
+                }
+            }
+            for (int lane = 0; lane < lanes; lane++) {
+                int count = laneFound[lane] >= 0 ? countAt(laneFound[lane]) : 0;
+                if (bloomFilter != null && count < bloomFilter.getMinCount()) {
+                    falsePositives++;
+                }
+                if (accumulate) {
+                    batch.addCount(laneIndex[lane], count);
+                } else {
+                    batch.setCount(laneIndex[lane], count);
+                }
+            }
+        }
+        if (bloomFilter != null) {
+            bloomFilter.recordQueries(size - rejected, rejected, falsePositives);
+        }
+    }
+
+    private void resolve(KmerBatch batch, boolean accumulate) {
+        KmerBloomFilter bloomFilter = kmc.getBloomFilter();
+        int[] order = batch.getOrder();
+        long[] kmers = batch.getKmers();
+        int words = batch.getWords();
+        int size = batch.size();
+        long rejected = 0;
+        long falsePositives = 0;
+        int i = 0;
+        while (i < size) {
+            int first = order[i];
+            int signature = batch.getSignature(first);
+            int slot = getSlot(kmers, first * words, signature);
+            long low = prefixArray.get(slot);
+            long high = slotEnd(slot);
+            // first suffix word of the previous query, a lower bound of the suffixes from low on
+            long lowWord = 0;
+            // walk all queries of this (signature, prefix) group, the suffixes are ascending
+            do {
+                int index = order[i++];
+                if (bloomFilter != null && !bloomFilter.mightContain(kmers, index * words)) {
+                    if (!accumulate) {
+                        batch.setCount(index, 0);
+                    }
+                    rejected++;
+                    continue;
+                }
+                loadQuery(kmers, index * words);
+                long start = low;
+                long end = high;
+                if (samples != null) {
+                    narrow(low, high);
+                    start = narrowStart;
+                    end = narrowEnd;
+                }
+                // interpolate into a large gap, then gallop
+                low = interpolate(start, end, lowWord, -1L) >= 0 ? narrowStart : lowerBound(narrowStart, narrowEnd);
+                lowWord = query[0];
+                int count = low < high && compareRecord(low) == 0 ? countAt(low) : 0;
+                if (bloomFilter != null && count < bloomFilter.getMinCount()) {
+                    falsePositives++;
+                }
+                if (accumulate) {
+                    batch.addCount(index, count);
+                } else {
+                    batch.setCount(index, count);
+                }
+            } while (i < size
+                    && batch.getSignature(order[i]) == signature
+                    && getPrefix(kmers, order[i] * words) == getPrefix(kmers, first * words));
+        }
+        if (bloomFilter != null) {
+            bloomFilter.recordQueries(size - rejected, rejected, falsePositives);
+        }
+    }
+
+    /***
+     * Visit the records of the prefix array slots [fromSlot, toSlot) in file order, with the kmer decoded to the
+     * left aligned 2-bit encoding (LUT prefix from the slot, followed by the stored suffix)
+     */
+    public void forEachRecord(int fromSlot, int toSlot, RecordVisitor visitor) {
+        long[] kmer = new long[kmerWords];
+        for (int slot = fromSlot; slot < toSlot; slot++) {
+            long prefix = slot % lutPrefixArraySize;
+            long end = slotEnd(slot);
+            for (long record = prefixArray.get(slot); record < end; record++) {
+                decodeRecord(prefix, record, kmer);
+                visitor.visit(kmer, countAt(record));
+            }
+        }
+    }
+
+    /***
+     * Rebuild the encoded kmer of a record from its LUT prefix and suffix bytes
+     */
+    private void decodeRecord(long prefix, long record, long[] kmer) {
+        Arrays.fill(kmer, 0);
+        if (lutPrefixLength > 0) {
+            kmer[0] = prefix << (64 - 2 * lutPrefixLength);
+        }
+        ByteBuffer page = pageOf(record);
+        int position = positionOf(record);
+        int bit = 2 * lutPrefixLength;
+        for (int j = 0; j < suffixBytes; j++, bit += 8) {
+            long value = page.get(position + j) & 0xFFL;
+            int word = bit >>> 6;
+            int offset = bit & 63;
+            if (offset <= 56) {
+                kmer[word] |= value << (56 - offset);
+            } else {
+                kmer[word] |= value >>> (offset - 56);
+                kmer[word + 1] |= value << (120 - offset);
+            }
+        }
+    }
+
+    /***
+     * Find the first record in [low, high) that is not smaller than the query, galloping forward from low
+     */
+    private long lowerBound(long low, long high) {
+        long bound = 1;
+        long end = high;
+        while (low < high) {
+            long probe = low + bound - 1;
+            if (probe >= high) {
+                break;
+            }
+            if (compareRecord(probe) <= 0) {
+                end = probe + 1;
+                break;
+            }
+            low = probe + 1;
+            bound <<= 1;
+        }
+        // binary search in [low, end), the answer is at most end - 1 (or high if all records are smaller)
+        while (low < end) {
+            long mid = (low + end) >>> 1;
+            if (compareRecord(mid) > 0) {
+                low = mid + 1;
+            } else {
+                end = mid;
+            }
+        }
+        return low;
+    }
+
+    /***
+     * Get the index in the prefix array for a kmer with the given signature
+     */
+    private int getSlot(long[] kmers, int offset, int signature) {
+        return signatureMap[signature] * lutPrefixArraySize + getPrefix(kmers, offset);
+    }
+
+    /***
+     * Get the LUT prefix of the kmer starting at the given offset
+     */
+    private int getPrefix(long[] kmers, int offset) {
+        return lutPrefixLength == 0 ? 0 : (int) (kmers[offset] >>> (64 - 2 * lutPrefixLength));
+    }
+
+    /***
+     * Get the (exclusive) end record of a prefix array slot
+     */
+    private long slotEnd(int slot) {
+        return slot + 1 >= prefixArray.limit() ? totalKmers : prefixArray.get(slot + 1);
+    }
+
+    /***
+     * Pack the suffix bits of the kmer (everything after the LUT prefix) into big-endian words
+     */
+    private void loadQuery(long[] kmers, int kmerOffset) {
+        loadQuery(kmers, kmerOffset, query, 0);
+    }
+
+    /***
+     * Pack the suffix bits of the kmer into the given array, starting at queryOffset
+     */
+    private void loadQuery(long[] kmers, int kmerOffset, long[] query, int queryOffset) {
+        int bitStart = 2 * lutPrefixLength;
+        for (int w = 0; w < suffixWords; w++) {
+            int bit = bitStart + 64 * w;
+            int index = bit >>> 6;
+            int offset = bit & 63;
+            long word = kmers[kmerOffset + index] << offset;
+            if (offset != 0 && index + 1 < kmerWords) {
+                word |= kmers[kmerOffset + index + 1] >>> (64 - offset);
+            }
+            query[queryOffset + w] = word;
+        }
+        query[queryOffset + suffixWords - 1] &= tailMask;
+    }
+
+    /***
+     * Compare the query suffix with the suffix of the given record
+     */
+    private int compareRecord(long record) {
+        return compareRecord(record, query, 0);
+    }
+
+    /***
+     * Compare a packed query suffix (starting at queryOffset) with the suffix of the given record
+     */
+    private int compareRecord(long record, long[] query, int queryOffset) {
+        ByteBuffer page = pageOf(record);
+        int position = positionOf(record);
+        int last = suffixWords - 1;
+        for (int w = 0; w < last; w++) {
+            long word = page.getLong(position + 8 * w);
+            if (word != query[queryOffset + w]) {
+                return Long.compareUnsigned(query[queryOffset + w], word);
+            }
+        }
+        long word = readTail(page, position + 8 * last);
+        return Long.compareUnsigned(query[queryOffset + last], word);
+    }
+
+    /***
+     * Read the first suffix word of a record, left aligned (used by the sampled index and the interpolation probes)
+     */
+    long firstSuffixWord(long record) {
+        ByteBuffer page = pageOf(record);
+        int position = positionOf(record);
+        return suffixWords == 1 ? readTail(page, position) : page.getLong(position);
+    }
+
+    /***
+     * Get the page holding the given record
+     */
+    private ByteBuffer pageOf(long record) {
+        return pages[(int) (pageShift >= 0 ? record >>> pageShift : record / recordsPerPage)];
+    }
+
+    /***
+     * Get the byte position of the given record within its page
+     */
+    private int positionOf(long record) {
+        return (int) (pageShift >= 0 ? record & pageMask : record % recordsPerPage) * recordSize;
+    }
+
+    /***
+     * Read the last (possibly partial) suffix word of a record, left aligned
+     */
+    private long readTail(ByteBuffer page, int position) {
+        if (position + 8 <= page.limit()) {
+            return page.getLong(position) & tailMask;
+        }
+        long word = 0;
+        for (int i = 0; i < tailBytes; i++) {
+            word |= (page.get(position + i) & 0xFFL) << (56 - 8 * i);
+        }
+        return word;
+    }
+
+    /***
+     * Decode the (little-endian) counter of the given record in place
+     */
+    private int countAt(long record) {
+        ByteBuffer page = pageOf(record);
+        int position = positionOf(record) + suffixBytes;
+        int count = 0;
+        for (int i = 0; i < counterSize; i++) {
+            count |= (page.get(position + i) & 0xFF) << (i * 8);
+        }
+        return count;
+    }
+}
+//EOF
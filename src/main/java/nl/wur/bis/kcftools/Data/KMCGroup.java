@@ -0,0 +1,68 @@
+package nl.wur.bis.kcftools.Data;
+
+import nl.wur.bis.kcftools.Utils.Logger;
+
+/***
+ * This class represents several KMC databases of one sample (e.g. counted per lane or library) as a single source of
+ * summed kmer counts. The databases should share the kmer length, the strand mode and the signature length, so the
+ * (signature, kmer) order of a batch is computed once and every database is walked in that same order.
+ */
+public class KMCGroup implements KmerLookup {
+    private final KMC[] databases;
+    private final String CLASS_NAME = this.getClass().getSimpleName();
+
+    public KMCGroup(KMC[] databases) {
+        this.databases = databases;
+        KMC first = databases[0];
+        for (KMC kmc : databases) {
+            if (kmc.getKmerLength() != first.getKmerLength()) {
+                Logger.error(CLASS_NAME, "KMC databases have different kmer lengths: " + first.getKmerLength() + " and " + kmc.getKmerLength());
+            }
+            if (kmc.isBothStrands() != first.isBothStrands()) {
+                Logger.error(CLASS_NAME, "KMC databases are not all canonical (or all non canonical)");
+            }
+            if (kmc.getSignatureReference().getSignLength() != first.getSignatureReference().getSignLength()) {
+                Logger.error(CLASS_NAME, "KMC databases have different signature lengths, count them with the same KMC settings");
+            }
+        }
+        Logger.info(CLASS_NAME, "Summing the kmer counts of " + databases.length + " KMC databases");
+    }
+
+    @Override
+    public int getKmerLength() {
+        return databases[0].getKmerLength();
+    }
+
+    @Override
+    public boolean isBothStrands() {
+        return databases[0].isBothStrands();
+    }
+
+    @Override
+    public Signature getSignatureReference() {
+        return databases[0].getSignatureReference();
+    }
+
+    /***
+     * Resolve the summed counts of the batch, the first database sets the counts and the others add to them
+     */
+    @Override
+    public void getCounts(KmerBatch batch) {
+        databases[0].getCounts(batch);
+        for (int i = 1; i < databases.length; i++) {
+            databases[i].addCounts(batch);
+        }
+    }
+
+    public KMC[] getDatabases() {
+        return databases;
+    }
+
+    @Override
+    public void close() {
+        for (KMC kmc : databases) {
+            kmc.close();
+        }
+    }
+}
+//EOF
@@ -0,0 +1,92 @@
+package nl.wur.bis.kcftools.Data;
+
+/***
+ * This class holds the options used to open a KMC database (how the suffix file is accessed, and which optional
+ * in-heap structures are built next to it)
+ */
+public class KMCOptions {
+    // load the suffix file into memory instead of memory mapping it
+    private boolean inMemory = false;
+    // memory budget (in bytes) for the sampled suffix index, 0 disables it
+    private long sampledIndexBytes = 0;
+    // memory map the suffix file as one segment shared by all threads, instead of 16 MB pages per thread
+    private boolean segmentMapped = false;
+    // touch all pages of the memory mapped suffix file before use
+    private boolean warmUp = false;
+    // keep the prefix array memory mapped instead of copying it to the heap
+    private boolean mapPrefixArray = false;
+    // use (and create) the open cache of the prefix file (<prefix>.kcfpre)
+    private boolean prefixCache = false;
+    // number of threads used while opening the database
+    private int threads = 1;
+    // resolve batches with interleaved binary searches over groups of this many kmers, 0 uses the sorted merge
+    private int searchGroupSize = 0;
+
+    public KMCOptions() {
+    }
+
+    public boolean isInMemory() {
+        return inMemory;
+    }
+
+    public void setInMemory(boolean inMemory) {
+        this.inMemory = inMemory;
+    }
+
+    public long getSampledIndexBytes() {
+        return sampledIndexBytes;
+    }
+
+    public void setSampledIndexBytes(long sampledIndexBytes) {
+        this.sampledIndexBytes = sampledIndexBytes;
+    }
+
+    public boolean isSegmentMapped() {
+        return segmentMapped;
+    }
+
+    public void setSegmentMapped(boolean segmentMapped) {
+        this.segmentMapped = segmentMapped;
+    }
+
+    public boolean isWarmUp() {
+        return warmUp;
+    }
+
+    public void setWarmUp(boolean warmUp) {
+        this.warmUp = warmUp;
+    }
+
+    public boolean isMapPrefixArray() {
+        return mapPrefixArray;
+    }
+
+    public void setMapPrefixArray(boolean mapPrefixArray) {
+        this.mapPrefixArray = mapPrefixArray;
+    }
+
+    public boolean isPrefixCache() {
+        return prefixCache;
+    }
+
+    public void setPrefixCache(boolean prefixCache) {
+        this.prefixCache = prefixCache;
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    public void setThreads(int threads) {
+        this.threads = Math.max(1, threads);
+    }
+
+    public int getSearchGroupSize() {
+        return searchGroupSize;
+    }
+
+    public void setSearchGroupSize(int searchGroupSize) {
+        this.searchGroupSize = Math.max(0, searchGroupSize);
+    }
+}
+//EOF
@@ -71,10 +71,7 @@ public class Kmer implements Comparable<Kmer> {
      */
     private void getCanonical() {
         if (isCanonical) {
-            long[] revComp = getReverseComplement(this.kmerLong, this.kmerLength);
-            if (compareLongArrays(this.kmerLong, revComp) > 0) {
-                this.kmerLong = revComp;
-            }
+            KmerCodec.of(kmerLength).canonicalize(this.kmerLong, 0);
         }
     }
 
@@ -103,18 +100,14 @@ public class Kmer implements Comparable<Kmer> {
      * This method is used to get the signature of a kmer
      */
     public int getSignature(Signature signature) {
-        int signatureLength = signature.getSignLength();
-        int currentSignature = extractIntFromBits(this.kmerLong, 0, signatureLength);
-        int minSignature = signature.getSignature(currentSignature);
-
-        for (int i = 1; i <= this.kmerLength - signatureLength; i++) {
-            currentSignature = ((currentSignature << 2) & ((1 << (2 * signatureLength)) - 1)) |
-                    extractIntFromBits(this.kmerLong, i + signatureLength - 1, 1);
-            if (signature.getSignature(currentSignature) < minSignature) {
-                minSignature = signature.getSignature(currentSignature);
-            }
-        }
-        return minSignature;
+        return getSignature(this.kmerLong, this.kmerLength, signature);
+    }
+
+    /***
+     * This method is used to get the signature of a kmer given as a left aligned long array
+     */
+    public static int getSignature(long[] kmerLong, int kmerLength, Signature signature) {
+        return KmerCodec.of(kmerLength).getSignature(kmerLong, 0, signature);
     }
 
     /***
@@ -122,7 +115,7 @@ public class Kmer implements Comparable<Kmer> {
      */
     public int getPrefixFwd() {
         if (prefixFwd == null) {
-            prefixFwd = extractIntFromBits(kmerLong, 0, prefixLength);
+            prefixFwd = KmerCodec.of(kmerLength).getPrefix(kmerLong, 0, prefixLength);
         }
         return prefixFwd;
     }
@@ -141,31 +134,8 @@ public class Kmer implements Comparable<Kmer> {
      * Extract suffix from the kmer long and convert that to a byte array.
      */
     private byte[] extractSuffix(long[] kmerLong, int kmerLength, int prefixLength) {
-        int suffixLength = kmerLength - prefixLength;
-        byte[] suffix = new byte[(suffixLength + 3) / 4];
-
-        int bitStart = 2 * prefixLength;
-        int totalBits = 2 * kmerLength;
-
-        for (int i = 0; i < suffixLength; ++i) {
-            int bitIndex = bitStart + i * 2;
-
-            int wordIndex = bitIndex / 64;
-            int bitOffset = bitIndex % 64;
-
-            int baseBits;
-            if (bitOffset <= 62) {
-                baseBits = (int) ((kmerLong[wordIndex] >> (62 - bitOffset)) & 0x3);
-            } else {
-                // bits are split between two longs
-                int highBits = (int) ((kmerLong[wordIndex] & 1L) << 1);
-                int lowBits = (int) ((kmerLong[wordIndex + 1] >> 63) & 1L);
-                baseBits = highBits | lowBits;
-            }
-
-            suffix[i / 4] |= (byte) (baseBits << ((3 - i % 4) * 2));
-        }
-
+        byte[] suffix = new byte[(kmerLength - prefixLength + 3) / 4];
+        KmerCodec.of(kmerLength).getSuffixBytes(kmerLong, 0, prefixLength, suffix);
         return suffix;
     }
 
@@ -175,7 +145,7 @@ public class Kmer implements Comparable<Kmer> {
     public int getPrefixRev() {
         if (prefixRev == null) {
             long[] rev = getReverseComplement(kmerLong, kmerLength);
-            prefixRev = extractIntFromBits(rev, 0, prefixLength);
+            prefixRev = KmerCodec.of(kmerLength).getPrefix(rev, 0, prefixLength);
         }
         return prefixRev;
     }
@@ -201,30 +171,6 @@ public class Kmer implements Comparable<Kmer> {
         return reverseComplementKmer;
     }
 
-    /***
-     * Extract the integer value from the kmer long.
-     * used in the getSignature method to extract the best signature from the long kmer
-     */
-    private int extractIntFromBits(long[] bitArray, int startBase, int lengthBases) {
-        int result = 0;
-        for (int i = 0; i < lengthBases; i++) {
-            int bitIndex = (startBase + i) * 2;
-            int arrayIndex = bitIndex / 64;
-            int offset = bitIndex % 64;
-            int baseBits;
-            if (offset <= 62) {
-                baseBits = (int) ((bitArray[arrayIndex] >>> (62 - offset)) & 0x3);
-            } else {
-                int remaining = 64 - offset;
-                long firstPart = (bitArray[arrayIndex] & ((1L << remaining) - 1)) << (2 - remaining);
-                long secondPart = (bitArray[arrayIndex + 1] >>> (64 - (2 - remaining)));
-                baseBits = (int) (firstPart | secondPart) & 0x3;
-            }
-            result = (result << 2) | baseBits;
-        }
-        return result;
-    }
-
     /***
      * convert the kmer to a long array.
      * used in the constructor to convert the kmer char array to a long array.
@@ -257,25 +203,7 @@ public class Kmer implements Comparable<Kmer> {
      */
     public static byte[] kmerToBytes(long[] kmerLong, int kmerLength) {
         byte[] bases = new byte[kmerLength];
-
-        for (int i = 0; i < kmerLength; i++) {
-            int bitIndex = i * 2;
-            int arrayIndex = bitIndex / 64;
-            int bitOffset = bitIndex % 64;
-
-            int bits;
-            if (bitOffset <= 62) {
-                bits = (int) ((kmerLong[arrayIndex] >>> (62 - bitOffset)) & 0b11);
-            } else {
-                int bitsInFirstLong = 64 - bitOffset;
-                long part1 = (kmerLong[arrayIndex] & ((1L << bitsInFirstLong) - 1)) << (2 - bitsInFirstLong);
-                long part2 = (kmerLong[arrayIndex + 1] >>> (64 - (2 - bitsInFirstLong)));
-                bits = (int) ((part1 | part2) & 0b11);
-            }
-
-            bases[i] = (byte) bits;
-        }
-
+        KmerCodec.of(kmerLength).getBases(kmerLong, 0, bases);
         return bases;
     }
 
@@ -298,42 +226,8 @@ public class Kmer implements Comparable<Kmer> {
      * used in the constructor to get the reverse complement of the kmer long array.
      */
     public static long[] getReverseComplement(long[] binaryKmer, int kmerLength) {
-        int totalBits = kmerLength * 2;
         long[] reverse = new long[binaryKmer.length];
-
-        for (int i = 0; i < kmerLength; i++) {
-            // get the i-th base (forward)
-            int bitIndex = i * 2;
-            int arrayIndex = bitIndex / 64;
-            int bitOffset = bitIndex % 64;
-
-            int bits;
-            if (bitOffset <= 62) {
-                bits = (int) ((binaryKmer[arrayIndex] >>> (62 - bitOffset)) & 0b11);
-            } else {
-                int bitsInFirstLong = 64 - bitOffset;
-                long part1 = (binaryKmer[arrayIndex] & ((1L << bitsInFirstLong) - 1)) << (2 - bitsInFirstLong);
-                long part2 = (binaryKmer[arrayIndex + 1] >>> (64 - (2 - bitsInFirstLong)));
-                bits = (int) ((part1 | part2) & 0b11);
-            }
-
-            // get complement
-            int compBits = (~bits) & 0b11;
-
-            // set in reverse array
-            int revIndex = (kmerLength - i - 1) * 2;
-            int revArrayIndex = revIndex / 64;
-            int revOffset = revIndex % 64;
-
-            if (revOffset <= 62) {
-                reverse[revArrayIndex] |= ((long) compBits) << (62 - revOffset);
-            } else {
-                int bitsInFirstLong = 64 - revOffset;
-                reverse[revArrayIndex] |= ((long) compBits) >>> (2 - bitsInFirstLong);
-                reverse[revArrayIndex + 1] |= ((long) compBits) << (62 - (2 - bitsInFirstLong));
-            }
-        }
-
+        KmerCodec.of(kmerLength).reverseComplement(binaryKmer, 0, reverse, 0);
         return reverse;
     }
 
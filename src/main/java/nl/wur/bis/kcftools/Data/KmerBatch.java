@@ -0,0 +1,190 @@
+package nl.wur.bis.kcftools.Data;
+
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.util.Arrays;
+import java.util.function.IntPredicate;
+
+/***
+ * This class holds the encoded kmers of a window (or a larger chunk) in primitive arrays, so that they can be looked up
+ * together. The kmers are kept in their positional order, the lookup order is a separate index sorted by
+ * (signature, kmer), and the counts are written back at the positional index.
+ * A batch is NOT thread safe, use one per worker and clear() it between windows.
+ */
+public class KmerBatch implements KmerScanner.KmerVisitor {
+    private final int words;
+    private long[] kmers;
+    private int[] signatures;
+    private int[] positions;
+    private int[] counts;
+    private int[] order;
+    private int size;
+    private boolean sorted;
+
+    public KmerBatch(int kmerLength) {
+        this(kmerLength, 1024);
+    }
+
+    public KmerBatch(int kmerLength, int capacity) {
+        this.words = (2 * kmerLength + 63) / 64;
+        capacity = Math.max(capacity, 16);
+        this.kmers = new long[capacity * words];
+        this.signatures = new int[capacity];
+        this.positions = new int[capacity];
+        this.counts = new int[capacity];
+        this.order = new int[capacity];
+    }
+
+    @Override
+    public void visit(int position, long[] kmer, int signature) {
+        add(position, kmer, signature);
+    }
+
+    /***
+     * Append a kmer (the array is copied)
+     */
+    public void add(int position, long[] kmer, int signature) {
+        add(position, kmer, 0, signature);
+    }
+
+    /***
+     * Append a kmer that starts at the given offset of the array (the words are copied)
+     */
+    public void add(int position, long[] kmer, int offset, int signature) {
+        if (size == signatures.length) {
+            grow();
+        }
+        System.arraycopy(kmer, offset, kmers, size * words, words);
+        signatures[size] = signature;
+        positions[size] = position;
+        counts[size] = 0;
+        size++;
+        sorted = false;
+    }
+
+    /***
+     * Replace the content of the batch with n kmers copied in bulk from the buffers (e.g. views of a memory mapped
+     * ReferenceKmerCache): n * getWords() kmer words, n positions and n signatures
+     */
+    public void load(LongBuffer kmerWords, IntBuffer kmerPositions, IntBuffer kmerSignatures, int n) {
+        while (signatures.length < n) {
+            grow();
+        }
+        kmerWords.get(kmers, 0, n * words);
+        kmerPositions.get(positions, 0, n);
+        kmerSignatures.get(signatures, 0, n);
+        Arrays.fill(counts, 0, n, 0);
+        size = n;
+        sorted = false;
+    }
+
+    /***
+     * Remove the kmers for which the filter is true (it gets the positional index before the removal), keeping the
+     * rest in their positional order, and return the number of removed kmers
+     */
+    public int removeIf(IntPredicate filter) {
+        int kept = 0;
+        for (int i = 0; i < size; i++) {
+            if (filter.test(i)) {
+                continue;
+            }
+            if (kept != i) {
+                System.arraycopy(kmers, i * words, kmers, kept * words, words);
+                signatures[kept] = signatures[i];
+                positions[kept] = positions[i];
+                counts[kept] = counts[i];
+            }
+            kept++;
+        }
+        int removed = size - kept;
+        size = kept;
+        sorted = false;
+        return removed;
+    }
+
+    private void grow() {
+        int capacity = signatures.length * 2;
+        kmers = Arrays.copyOf(kmers, capacity * words);
+        signatures = Arrays.copyOf(signatures, capacity);
+        positions = Arrays.copyOf(positions, capacity);
+        counts = Arrays.copyOf(counts, capacity);
+        order = new int[capacity];
+    }
+
+    public void clear() {
+        size = 0;
+        sorted = false;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int getWords() {
+        return words;
+    }
+
+    /***
+     * Get the encoded kmers, kmer i starts at index i * getWords()
+     */
+    public long[] getKmers() {
+        return kmers;
+    }
+
+    public int getSignature(int i) {
+        return signatures[i];
+    }
+
+    public int getPosition(int i) {
+        return positions[i];
+    }
+
+    public int getCount(int i) {
+        return counts[i];
+    }
+
+    public void setCount(int i, int count) {
+        counts[i] = count;
+    }
+
+    /***
+     * Add to the count of kmer i (saturating at Integer.MAX_VALUE), used to sum the counts of several databases
+     */
+    public void addCount(int i, int count) {
+        counts[i] = (int) Math.min((long) counts[i] + count, Integer.MAX_VALUE);
+    }
+
+    /***
+     * Get the lookup order, sorted by (signature, kmer). Sorting is done once, and repeated calls are free
+     */
+    public int[] getOrder() {
+        if (!sorted) {
+            for (int i = 0; i < size; i++) {
+                order[i] = i;
+            }
+            IndexSort.sort(order, 0, size - 1, this::compare);
+            sorted = true;
+        }
+        return order;
+    }
+
+    /***
+     * Compare the kmers at positional indices a and b by (signature, kmer)
+     */
+    private int compare(int a, int b) {
+        if (signatures[a] != signatures[b]) {
+            return Integer.compare(signatures[a], signatures[b]);
+        }
+        int offsetA = a * words;
+        int offsetB = b * words;
+        for (int w = 0; w < words; w++) {
+            long x = kmers[offsetA + w];
+            long y = kmers[offsetB + w];
+            if (x != y) {
+                return Long.compareUnsigned(x, y);
+            }
+        }
+        return 0;
+    }
+}
+//EOF
@@ -0,0 +1,326 @@
+package nl.wur.bis.kcftools.Data;
+
+import nl.wur.bis.kcftools.Utils.Logger;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+/***
+ * This class represents a cache line blocked Bloom filter of the kmers of a KMC database (the .kcfbloom sidecar).
+ * Every kmer is hashed to one 512 bit block (one cache line), and all its bits are set within that block, so a query
+ * touches a single cache line. A negative answer is definite, so the suffix search can be skipped for those kmers.
+ * The file is a 128 byte header followed by the blocks (little-endian longs), and it is memory mapped for queries.
+ * The header holds the fingerprint of the KMC database the filter was built from (see KMC.getFingerprint()), and a
+ * filter is only loaded for the same database.
+ * Header layout:
+ *  0: magic "KCFBLOOM"
+ *  8: int version
+ * 12: int kmer length
+ * 16: int canonical (1 if the kmers are canonical)
+ * 20: int minimum count of the kmers in the filter
+ * 24: int number of hash functions
+ * 28: int reserved
+ * 32: long number of blocks
+ * 40: long number of kmers added
+ * 48: double target false positive rate
+ * 56: long reserved
+ * 64: long total kmers of the database
+ * 72: long size of the kmc_pre file
+ * 80: long modification time of the kmc_pre file (ms)
+ * 88: long size of the kmc_suf file
+ * 96: long modification time of the kmc_suf file (ms)
+ * 104: reserved up to 128
+ */
+public class KmerBloomFilter implements AutoCloseable {
+    public static final String EXTENSION = ".kcfbloom";
+    private static final byte[] MAGIC = "KCFBLOOM".getBytes(StandardCharsets.US_ASCII);
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 128;
+    private static final int FINGERPRINT_LENGTH = 5;
+    private static final int BLOCK_BITS = 512;
+    private static final int BLOCK_BYTES = BLOCK_BITS / 8;
+    private static final int MAX_HASHES = 16;
+    // blocks per mapped chunk (1 gb)
+    private static final int CHUNK_SHIFT = 24;
+    private static final long CHUNK_MASK = (1L << CHUNK_SHIFT) - 1;
+    private static final VarHandle LONG_VIEW = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final String CLASS_NAME = KmerBloomFilter.class.getSimpleName();
+
+    private final String fileName;
+    private final int kmerLength;
+    private final int words;
+    private final boolean canonical;
+    private final int minCount;
+    private final int numHashes;
+    private final long numBlocks;
+    private long numKeys;
+    private final double falsePositiveRate;
+    private final long[] databaseFingerprint;
+    private MappedByteBuffer[] chunks;
+    private final boolean writable;
+
+    // query statistics
+    private final LongAdder passed = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder falsePositives = new LongAdder();
+
+    private KmerBloomFilter(String fileName, int kmerLength, boolean canonical, int minCount, int numHashes,
+                            long numBlocks, long numKeys, double falsePositiveRate, long[] databaseFingerprint,
+                            boolean writable) {
+        this.fileName = fileName;
+        this.kmerLength = kmerLength;
+        this.words = (2 * kmerLength + 63) / 64;
+        this.canonical = canonical;
+        this.minCount = minCount;
+        this.numHashes = numHashes;
+        this.numBlocks = numBlocks;
+        this.numKeys = numKeys;
+        this.falsePositiveRate = falsePositiveRate;
+        this.databaseFingerprint = databaseFingerprint;
+        this.writable = writable;
+    }
+
+    /***
+     * Create an empty filter file sized for the expected number of kmers and the target false positive rate, for the
+     * database with the given fingerprint. The file is mapped read-write, add() can be called from several threads.
+     */
+    public static KmerBloomFilter create(String fileName, int kmerLength, boolean canonical, int minCount,
+                                         long expectedKmers, double falsePositiveRate, long[] databaseFingerprint) throws IOException {
+        if (databaseFingerprint.length != FINGERPRINT_LENGTH) {
+            throw new IllegalArgumentException("Database fingerprint should have " + FINGERPRINT_LENGTH + " fields");
+        }
+        double bitsPerKmer = -Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2));
+        int numHashes = (int) Math.max(1, Math.min(MAX_HASHES, Math.round(bitsPerKmer * Math.log(2))));
+        long numBlocks = Math.max(1, (long) Math.ceil(Math.max(1, expectedKmers) * bitsPerKmer / BLOCK_BITS));
+        KmerBloomFilter filter = new KmerBloomFilter(fileName, kmerLength, canonical, minCount, numHashes, numBlocks,
+                0, falsePositiveRate, databaseFingerprint.clone(), true);
+        try (FileChannel channel = FileChannel.open(Path.of(fileName), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            channel.write(filter.header(), 0);
+            filter.chunks = map(channel, FileChannel.MapMode.READ_WRITE, numBlocks);
+        }
+        return filter;
+    }
+
+    /***
+     * Open an existing filter file (memory mapped, read only), built from the database with the given fingerprint.
+     * A filter of another database, or of an older version of the files, is rejected with an IOException.
+     */
+    public static KmerBloomFilter load(String fileName, long[] databaseFingerprint) throws IOException {
+        try (FileChannel channel = FileChannel.open(Path.of(fileName), StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            while (header.hasRemaining()) {
+                if (channel.read(header, header.position()) < 0) {
+                    throw new IOException("Truncated bloom filter header in " + fileName);
+                }
+            }
+            header.flip();
+            byte[] magic = new byte[MAGIC.length];
+            header.get(magic);
+            if (!Arrays.equals(magic, MAGIC)) {
+                throw new IOException("Not a kcftools bloom filter: " + fileName);
+            }
+            int version = header.getInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported bloom filter version " + version + " in " + fileName + ", rebuild it with buildBloom");
+            }
+            int kmerLength = header.getInt();
+            boolean canonical = header.getInt() == 1;
+            int minCount = header.getInt();
+            int numHashes = header.getInt();
+            header.getInt();
+            long numBlocks = header.getLong();
+            long numKeys = header.getLong();
+            double falsePositiveRate = header.getDouble();
+            header.getLong();
+            long[] fingerprint = new long[FINGERPRINT_LENGTH];
+            for (int i = 0; i < FINGERPRINT_LENGTH; i++) {
+                fingerprint[i] = header.getLong();
+            }
+            if (!Arrays.equals(fingerprint, databaseFingerprint)) {
+                throw new IOException("Bloom filter " + fileName + " was built from another version of the KMC database"
+                        + " (kmer count, size or modification time of kmc_pre/kmc_suf differ), rebuild it with buildBloom");
+            }
+            if (channel.size() < HEADER_SIZE + numBlocks * BLOCK_BYTES) {
+                throw new IOException("Truncated bloom filter " + fileName);
+            }
+            KmerBloomFilter filter = new KmerBloomFilter(fileName, kmerLength, canonical, minCount, numHashes,
+                    numBlocks, numKeys, falsePositiveRate, fingerprint, false);
+            filter.chunks = map(channel, FileChannel.MapMode.READ_ONLY, numBlocks);
+            return filter;
+        }
+    }
+
+    /***
+     * Map the blocks in chunks of (1 << CHUNK_SHIFT) blocks
+     */
+    private static MappedByteBuffer[] map(FileChannel channel, FileChannel.MapMode mode, long numBlocks) throws IOException {
+        int numberOfChunks = (int) (((numBlocks - 1) >>> CHUNK_SHIFT) + 1);
+        MappedByteBuffer[] chunks = new MappedByteBuffer[numberOfChunks];
+        for (int i = 0; i < numberOfChunks; i++) {
+            long firstBlock = (long) i << CHUNK_SHIFT;
+            long blocks = Math.min(1L << CHUNK_SHIFT, numBlocks - firstBlock);
+            chunks[i] = channel.map(mode, HEADER_SIZE + firstBlock * BLOCK_BYTES, blocks * BLOCK_BYTES);
+            chunks[i].order(ByteOrder.LITTLE_ENDIAN);
+        }
+        return chunks;
+    }
+
+    private ByteBuffer header() {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        header.put(MAGIC);
+        header.putInt(VERSION);
+        header.putInt(kmerLength);
+        header.putInt(canonical ? 1 : 0);
+        header.putInt(minCount);
+        header.putInt(numHashes);
+        header.putInt(0);
+        header.putLong(numBlocks);
+        header.putLong(numKeys);
+        header.putDouble(falsePositiveRate);
+        header.putLong(0);
+        for (long value : databaseFingerprint) {
+            header.putLong(value);
+        }
+        header.clear();
+        return header;
+    }
+
+    /***
+     * Add an encoded kmer (left aligned 2-bit, kmer starts at the given offset of the array). THREAD SAFE
+     */
+    public void add(long[] kmers, int offset) {
+        long hash = hash(kmers, offset);
+        long block = Long.remainderUnsigned(hash, numBlocks);
+        ByteBuffer chunk = chunks[(int) (block >>> CHUNK_SHIFT)];
+        int position = (int) (block & CHUNK_MASK) * BLOCK_BYTES;
+        long bits = mix(hash ^ 0x9E3779B97F4A7C15L);
+        int a = (int) bits;
+        int b = (int) (bits >>> 32) | 1;
+        for (int i = 0; i < numHashes; i++) {
+            int bit = (a + i * b) & (BLOCK_BITS - 1);
+            LONG_VIEW.getAndBitwiseOr(chunk, position + 8 * (bit >>> 6), 1L << (bit & 63));
+        }
+    }
+
+    /***
+     * Check whether an encoded kmer may be in the filter, false means the kmer is definitely not in the database
+     * (with a count of at least getMinCount())
+     */
+    public boolean mightContain(long[] kmers, int offset) {
+        long hash = hash(kmers, offset);
+        long block = Long.remainderUnsigned(hash, numBlocks);
+        ByteBuffer chunk = chunks[(int) (block >>> CHUNK_SHIFT)];
+        int position = (int) (block & CHUNK_MASK) * BLOCK_BYTES;
+        long bits = mix(hash ^ 0x9E3779B97F4A7C15L);
+        int a = (int) bits;
+        int b = (int) (bits >>> 32) | 1;
+        for (int i = 0; i < numHashes; i++) {
+            int bit = (a + i * b) & (BLOCK_BITS - 1);
+            if ((chunk.getLong(position + 8 * (bit >>> 6)) & (1L << (bit & 63))) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /***
+     * Hash the words of an encoded kmer
+     */
+    private long hash(long[] kmers, int offset) {
+        long hash = kmerLength;
+        for (int w = 0; w < words; w++) {
+            hash = Long.rotateLeft(hash ^ mix(kmers[offset + w]), 29) * 0xBF58476D1CE4E5B9L;
+        }
+        return mix(hash);
+    }
+
+    /***
+     * 64 bit finaliser (splitmix64)
+     */
+    private static long mix(long x) {
+        x ^= x >>> 30;
+        x *= 0xBF58476D1CE4E5B9L;
+        x ^= x >>> 27;
+        x *= 0x94D049BB133111EBL;
+        return x ^ (x >>> 31);
+    }
+
+    /***
+     * Record the outcome of a batch of queries: kmers that passed the filter, kmers rejected by it, and the ones that
+     * passed but were not found in the database (false positives)
+     */
+    public void recordQueries(long passedKmers, long rejectedKmers, long falsePositiveKmers) {
+        passed.add(passedKmers);
+        rejected.add(rejectedKmers);
+        falsePositives.add(falsePositiveKmers);
+    }
+
+    /***
+     * Set the number of kmers added to the filter (stored in the header on close)
+     */
+    public void setNumKeys(long numKeys) {
+        this.numKeys = numKeys;
+    }
+
+    public int getKmerLength() {
+        return kmerLength;
+    }
+
+    public boolean isCanonical() {
+        return canonical;
+    }
+
+    public int getMinCount() {
+        return minCount;
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    public void printSummary() {
+        Logger.info(CLASS_NAME, String.format("Bloom filter %s: %d kmers (count >= %d), %d blocks (%.2f MB), %d hashes, target FPR %.4f",
+                fileName, numKeys, minCount, numBlocks, numBlocks * (double) BLOCK_BYTES / (1024 * 1024), numHashes, falsePositiveRate));
+    }
+
+    /***
+     * Log the hit/miss counts of the queries done so far
+     */
+    public void printStatistics() {
+        long hits = passed.sum();
+        long misses = rejected.sum();
+        long total = hits + misses;
+        long fp = falsePositives.sum();
+        Logger.info(CLASS_NAME, String.format("Bloom filter queries: %d, passed: %d, rejected: %d (%.2f%%), passed but absent: %d (%.2f%% of rejected + absent)",
+                total, hits, misses, total == 0 ? 0.0 : misses * 100.0 / total, fp,
+                misses + fp == 0 ? 0.0 : fp * 100.0 / (misses + fp)));
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (chunks == null) {
+            return;
+        }
+        if (writable) {
+            for (MappedByteBuffer chunk : chunks) {
+                chunk.force();
+            }
+            try (FileChannel channel = FileChannel.open(Path.of(fileName), StandardOpenOption.WRITE)) {
+                channel.write(header(), 0);
+            }
+        }
+        chunks = null;
+    }
+}
+//EOF
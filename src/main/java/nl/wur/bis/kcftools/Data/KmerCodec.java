@@ -0,0 +1,378 @@
+package nl.wur.bis.kcftools.Data;
+
+/***
+ * This class holds the bit operations on encoded kmers (left aligned 2-bit, same layout as Kmer.getKmerLong()), with
+ * implementations specialised by kmer length: one long for k <= 32, two longs for k <= 64, and the general word by
+ * word code for longer kmers. The reverse complement is bit-parallel and the prefix, suffix and m-mer extraction are
+ * shifts and masks in the specialised codecs. None of the methods allocate, except in the general codec.
+ * Get the codec once per kmer length with KmerCodec.of(), the instances are shared and THREAD SAFE.
+ */
+public abstract class KmerCodec {
+    public static final int MAX_SINGLE_WORD_LENGTH = 32;
+    public static final int MAX_DOUBLE_WORD_LENGTH = 64;
+    private static final long PAIR_MASK = 0x5555555555555555L;
+    private static final int MAX_CACHED_LENGTH = 256;
+    private static final KmerCodec[] CODECS = new KmerCodec[MAX_CACHED_LENGTH + 1];
+
+    protected final int kmerLength;
+    protected final int words;
+
+    private KmerCodec(int kmerLength) {
+        this.kmerLength = kmerLength;
+        this.words = (2 * kmerLength + 63) / 64;
+    }
+
+    /***
+     * Get the codec for the kmer length
+     */
+    public static KmerCodec of(int kmerLength) {
+        if (kmerLength < 1) {
+            throw new IllegalArgumentException("Invalid kmer length: " + kmerLength);
+        }
+        if (kmerLength > MAX_CACHED_LENGTH) {
+            return create(kmerLength);
+        }
+        KmerCodec codec = CODECS[kmerLength];
+        if (codec == null) {
+            codec = create(kmerLength);
+            CODECS[kmerLength] = codec;
+        }
+        return codec;
+    }
+
+    private static KmerCodec create(int kmerLength) {
+        if (kmerLength <= MAX_SINGLE_WORD_LENGTH) {
+            return new SingleWord(kmerLength);
+        }
+        if (kmerLength <= MAX_DOUBLE_WORD_LENGTH) {
+            return new DoubleWord(kmerLength);
+        }
+        return new General(kmerLength);
+    }
+
+    public int getKmerLength() {
+        return kmerLength;
+    }
+
+    public int getWords() {
+        return words;
+    }
+
+    /***
+     * Write the reverse complement of the kmer at offset to out at outOffset (the two ranges should not overlap)
+     */
+    public abstract void reverseComplement(long[] kmer, int offset, long[] out, int outOffset);
+
+    /***
+     * Replace the kmer at offset by its reverse complement if that is smaller
+     */
+    public abstract void canonicalize(long[] kmer, int offset);
+
+    /***
+     * Get the first bases (at most 16) of the kmer as an integer
+     */
+    public abstract int getPrefix(long[] kmer, int offset, int prefixLength);
+
+    /***
+     * Get the m-mer (at most 16 bases) starting at the given base of the kmer as an integer
+     */
+    public abstract int getMmer(long[] kmer, int offset, int start, int length);
+
+    /***
+     * Pack the bases after the prefix into out, four bases per byte with the first base in the high bits
+     */
+    public abstract void getSuffixBytes(long[] kmer, int offset, int prefixLength, byte[] out);
+
+    /***
+     * Write the 2-bit code of every base of the kmer to out, one byte per base
+     */
+    public abstract void getBases(long[] kmer, int offset, byte[] out);
+
+    /***
+     * Compare two kmers (unsigned, word by word)
+     */
+    public int compare(long[] a, int aOffset, long[] b, int bOffset) {
+        for (int w = 0; w < words; w++) {
+            long x = a[aOffset + w];
+            long y = b[bOffset + w];
+            if (x != y) {
+                return Long.compareUnsigned(x, y);
+            }
+        }
+        return 0;
+    }
+
+    /***
+     * Get the KMC signature of the kmer: the smallest normalised m-mer of the signature length
+     */
+    public int getSignature(long[] kmer, int offset, Signature signature) {
+        int signatureLength = signature.getSignLength();
+        int minSignature = Integer.MAX_VALUE;
+        for (int i = 0; i <= kmerLength - signatureLength; i++) {
+            int value = signature.getSignature(getMmer(kmer, offset, i, signatureLength));
+            if (value < minSignature) {
+                minSignature = value;
+            }
+        }
+        return minSignature;
+    }
+
+    /***
+     * Reverse the order of the 2-bit bases in a long and complement them
+     */
+    static long reverseComplementWord(long word) {
+        long reversed = Long.reverse(~word);
+        // Long.reverse also swaps the two bits of every base, swap them back
+        return ((reversed >>> 1) & PAIR_MASK) | ((reversed & PAIR_MASK) << 1);
+    }
+
+    /***
+     * k <= 32: the kmer is one long
+     */
+    private static final class SingleWord extends KmerCodec {
+        private final int unusedBits;
+
+        SingleWord(int kmerLength) {
+            super(kmerLength);
+            this.unusedBits = 64 - 2 * kmerLength;
+        }
+
+        private long reverseComplement(long word) {
+            // the unused low bits end up at the top after the reversal, and are shifted out
+            return reverseComplementWord(word) << unusedBits;
+        }
+
+        @Override
+        public void reverseComplement(long[] kmer, int offset, long[] out, int outOffset) {
+            out[outOffset] = reverseComplement(kmer[offset]);
+        }
+
+        @Override
+        public void canonicalize(long[] kmer, int offset) {
+            long reverse = reverseComplement(kmer[offset]);
+            if (Long.compareUnsigned(reverse, kmer[offset]) < 0) {
+                kmer[offset] = reverse;
+            }
+        }
+
+        @Override
+        public int getPrefix(long[] kmer, int offset, int prefixLength) {
+            return prefixLength == 0 ? 0 : (int) (kmer[offset] >>> (64 - 2 * prefixLength));
+        }
+
+        @Override
+        public int getMmer(long[] kmer, int offset, int start, int length) {
+            return (int) ((kmer[offset] << (2 * start)) >>> (64 - 2 * length));
+        }
+
+        @Override
+        public int compare(long[] a, int aOffset, long[] b, int bOffset) {
+            return Long.compareUnsigned(a[aOffset], b[bOffset]);
+        }
+
+        @Override
+        public int getSignature(long[] kmer, int offset, Signature signature) {
+            int signatureLength = signature.getSignLength();
+            long word = kmer[offset];
+            int shift = 64 - 2 * signatureLength;
+            int minSignature = Integer.MAX_VALUE;
+            for (int i = 0; i <= kmerLength - signatureLength; i++) {
+                int value = signature.getSignature((int) ((word << (2 * i)) >>> shift));
+                if (value < minSignature) {
+                    minSignature = value;
+                }
+            }
+            return minSignature;
+        }
+
+        @Override
+        public void getSuffixBytes(long[] kmer, int offset, int prefixLength, byte[] out) {
+            long suffix = prefixLength == 32 ? 0 : kmer[offset] << (2 * prefixLength);
+            for (int j = 0; j < out.length; j++) {
+                out[j] = (byte) (suffix >>> (56 - 8 * j));
+            }
+        }
+
+        @Override
+        public void getBases(long[] kmer, int offset, byte[] out) {
+            long word = kmer[offset];
+            for (int i = 0; i < kmerLength; i++) {
+                out[i] = (byte) ((word >>> (62 - 2 * i)) & 0b11);
+            }
+        }
+    }
+
+    /***
+     * 32 < k <= 64: the kmer is two longs, handled as one 128 bit value
+     */
+    private static final class DoubleWord extends KmerCodec {
+        // unused bits at the end of the second long
+        private final int unusedBits;
+
+        DoubleWord(int kmerLength) {
+            super(kmerLength);
+            this.unusedBits = 128 - 2 * kmerLength;
+        }
+
+        @Override
+        public void reverseComplement(long[] kmer, int offset, long[] out, int outOffset) {
+            long high = reverseComplementWord(kmer[offset + 1]);
+            long low = reverseComplementWord(kmer[offset]);
+            if (unusedBits == 0) {
+                out[outOffset] = high;
+                out[outOffset + 1] = low;
+            } else {
+                out[outOffset] = (high << unusedBits) | (low >>> (64 - unusedBits));
+                out[outOffset + 1] = low << unusedBits;
+            }
+        }
+
+        @Override
+        public void canonicalize(long[] kmer, int offset) {
+            long high = reverseComplementWord(kmer[offset + 1]);
+            long low = reverseComplementWord(kmer[offset]);
+            if (unusedBits != 0) {
+                high = (high << unusedBits) | (low >>> (64 - unusedBits));
+                low <<= unusedBits;
+            }
+            int comparison = Long.compareUnsigned(high, kmer[offset]);
+            if (comparison < 0 || (comparison == 0 && Long.compareUnsigned(low, kmer[offset + 1]) < 0)) {
+                kmer[offset] = high;
+                kmer[offset + 1] = low;
+            }
+        }
+
+        @Override
+        public int getPrefix(long[] kmer, int offset, int prefixLength) {
+            return prefixLength == 0 ? 0 : (int) (kmer[offset] >>> (64 - 2 * prefixLength));
+        }
+
+        @Override
+        public int getMmer(long[] kmer, int offset, int start, int length) {
+            return (int) (bitsAt(kmer[offset], kmer[offset + 1], 2 * start) >>> (64 - 2 * length));
+        }
+
+        /***
+         * The 64 bits of the 128 bit value starting at the given bit
+         */
+        private static long bitsAt(long high, long low, int bit) {
+            if (bit == 0) {
+                return high;
+            }
+            if (bit >= 64) {
+                return low << (bit - 64);
+            }
+            return (high << bit) | (low >>> (64 - bit));
+        }
+
+        @Override
+        public int compare(long[] a, int aOffset, long[] b, int bOffset) {
+            int comparison = Long.compareUnsigned(a[aOffset], b[bOffset]);
+            return comparison != 0 ? comparison : Long.compareUnsigned(a[aOffset + 1], b[bOffset + 1]);
+        }
+
+        @Override
+        public int getSignature(long[] kmer, int offset, Signature signature) {
+            int signatureLength = signature.getSignLength();
+            long high = kmer[offset];
+            long low = kmer[offset + 1];
+            int shift = 64 - 2 * signatureLength;
+            int minSignature = Integer.MAX_VALUE;
+            for (int i = 0; i <= kmerLength - signatureLength; i++) {
+                int value = signature.getSignature((int) (bitsAt(high, low, 2 * i) >>> shift));
+                if (value < minSignature) {
+                    minSignature = value;
+                }
+            }
+            return minSignature;
+        }
+
+        @Override
+        public void getSuffixBytes(long[] kmer, int offset, int prefixLength, byte[] out) {
+            long high = kmer[offset];
+            long low = kmer[offset + 1];
+            for (int j = 0; j < out.length; j++) {
+                out[j] = (byte) (bitsAt(high, low, 2 * prefixLength + 8 * j) >>> 56);
+            }
+        }
+
+        @Override
+        public void getBases(long[] kmer, int offset, byte[] out) {
+            long high = kmer[offset];
+            long low = kmer[offset + 1];
+            for (int i = 0; i < 32; i++) {
+                out[i] = (byte) ((high >>> (62 - 2 * i)) & 0b11);
+            }
+            for (int i = 32; i < kmerLength; i++) {
+                out[i] = (byte) ((low >>> (126 - 2 * i)) & 0b11);
+            }
+        }
+    }
+
+    /***
+     * k > 64: word by word
+     */
+    private static final class General extends KmerCodec {
+        General(int kmerLength) {
+            super(kmerLength);
+        }
+
+        /***
+         * Get the 2-bit code of the base at the given index
+         */
+        private static int baseAt(long[] kmer, int offset, int index) {
+            int bit = 2 * index;
+            return (int) ((kmer[offset + (bit >>> 6)] >>> (62 - (bit & 63))) & 0b11);
+        }
+
+        @Override
+        public void reverseComplement(long[] kmer, int offset, long[] out, int outOffset) {
+            for (int w = 0; w < words; w++) {
+                out[outOffset + w] = 0;
+            }
+            for (int i = 0; i < kmerLength; i++) {
+                int bit = 2 * (kmerLength - i - 1);
+                out[outOffset + (bit >>> 6)] |= (long) (3 - baseAt(kmer, offset, i)) << (62 - (bit & 63));
+            }
+        }
+
+        @Override
+        public void canonicalize(long[] kmer, int offset) {
+            long[] reverse = new long[words];
+            reverseComplement(kmer, offset, reverse, 0);
+            if (compare(reverse, 0, kmer, offset) < 0) {
+                System.arraycopy(reverse, 0, kmer, offset, words);
+            }
+        }
+
+        @Override
+        public int getPrefix(long[] kmer, int offset, int prefixLength) {
+            return getMmer(kmer, offset, 0, prefixLength);
+        }
+
+        @Override
+        public int getMmer(long[] kmer, int offset, int start, int length) {
+            int value = 0;
+            for (int i = start; i < start + length; i++) {
+                value = (value << 2) | baseAt(kmer, offset, i);
+            }
+            return value;
+        }
+
+        @Override
+        public void getSuffixBytes(long[] kmer, int offset, int prefixLength, byte[] out) {
+            java.util.Arrays.fill(out, (byte) 0);
+            for (int i = 0; i < kmerLength - prefixLength; i++) {
+                out[i / 4] |= (byte) (baseAt(kmer, offset, prefixLength + i) << ((3 - i % 4) * 2));
+            }
+        }
+
+        @Override
+        public void getBases(long[] kmer, int offset, byte[] out) {
+            for (int i = 0; i < kmerLength; i++) {
+                out[i] = (byte) baseAt(kmer, offset, i);
+            }
+        }
+    }
+}
+//EOF
@@ -0,0 +1,122 @@
+package nl.wur.bis.kcftools.Data;
+
+import nl.wur.bis.kcftools.Utils.Logger;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/***
+ * This class represents a bounded kmer -> count cache in front of another lookup (KMC database, group or index).
+ * Repetitive references look up the same kmers again and again across windows and threads, and a hit skips the
+ * suffix search. The cache is direct mapped, in a primitive long array with two longs per slot: (key ^ data, data),
+ * where data is the count shifted left by one with the lowest bit set (an empty slot has data 0). A reader accepts a
+ * slot only if both longs verify against its key, so a torn or concurrent update is seen as a miss, and neither
+ * readers nor writers take a lock. Absent kmers (count 0) are cached too.
+ * Keys are the encoded kmer in one long, so the cache is only available for k <= 32.
+ */
+public class KmerCountCache implements KmerLookup {
+    public static final int MAX_KMER_LENGTH = 32;
+    private final KmerLookup lookup;
+    private final long[] entries;
+    private final int slotMask;
+    private final int words;
+    // kmers that missed the cache, per worker thread (the batch position holds the index in the original batch)
+    private final ThreadLocal<KmerBatch> misses;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder lookups = new LongAdder();
+    private final String CLASS_NAME = this.getClass().getSimpleName();
+
+    public KmerCountCache(KmerLookup lookup, long budgetBytes) {
+        if (lookup.getKmerLength() > MAX_KMER_LENGTH) {
+            throw new IllegalArgumentException("Lookup cache supports kmers up to " + MAX_KMER_LENGTH + " bases");
+        }
+        this.lookup = lookup;
+        // two longs (16 bytes) per slot, a power of two number of slots
+        long slots = Math.max(1024, Long.highestOneBit(Math.max(1, budgetBytes / 16)));
+        slots = Math.min(slots, 1L << 29);
+        this.entries = new long[(int) (2 * slots)];
+        this.slotMask = (int) slots - 1;
+        this.words = (2 * lookup.getKmerLength() + 63) / 64;
+        this.misses = ThreadLocal.withInitial(() -> new KmerBatch(lookup.getKmerLength()));
+        Logger.info(CLASS_NAME, String.format("Lookup cache: %d slots (%.2f MB)", slots, slots * 16.0 / (1024 * 1024)));
+    }
+
+    /***
+     * Resolve the counts of the batch from the cache, the misses are resolved together by the underlying lookup and
+     * stored in the cache
+     */
+    @Override
+    public void getCounts(KmerBatch batch) {
+        long[] kmers = batch.getKmers();
+        int size = batch.size();
+        KmerBatch missed = misses.get();
+        missed.clear();
+        for (int i = 0; i < size; i++) {
+            long key = kmers[i * words];
+            int slot = (int) mix(key) & slotMask;
+            long data = entries[2 * slot + 1];
+            long check = entries[2 * slot];
+            if (data != 0 && (check ^ data) == key) {
+                batch.setCount(i, (int) (data >>> 1));
+            } else {
+                missed.add(i, kmers, i * words, batch.getSignature(i));
+            }
+        }
+        if (missed.size() > 0) {
+            lookup.getCounts(missed);
+            long[] missedKmers = missed.getKmers();
+            for (int j = 0; j < missed.size(); j++) {
+                int count = missed.getCount(j);
+                batch.setCount(missed.getPosition(j), count);
+                long key = missedKmers[j * words];
+                int slot = (int) mix(key) & slotMask;
+                long data = ((long) count << 1) | 1L;
+                entries[2 * slot] = key ^ data;
+                entries[2 * slot + 1] = data;
+            }
+        }
+        hits.add(size - missed.size());
+        lookups.add(size);
+    }
+
+    /***
+     * 64 bit finaliser (splitmix64)
+     */
+    private static long mix(long x) {
+        x ^= x >>> 30;
+        x *= 0xBF58476D1CE4E5B9L;
+        x ^= x >>> 27;
+        x *= 0x94D049BB133111EBL;
+        return x ^ (x >>> 31);
+    }
+
+    /***
+     * Log the hit rate of the cache
+     */
+    public void printStatistics() {
+        long total = lookups.sum();
+        long hit = hits.sum();
+        Logger.info(CLASS_NAME, String.format("Lookup cache: %d lookups, %d hits (%.2f%%), %d misses",
+                total, hit, total == 0 ? 0.0 : hit * 100.0 / total, total - hit));
+    }
+
+    @Override
+    public int getKmerLength() {
+        return lookup.getKmerLength();
+    }
+
+    @Override
+    public boolean isBothStrands() {
+        return lookup.isBothStrands();
+    }
+
+    @Override
+    public Signature getSignatureReference() {
+        return lookup.getSignatureReference();
+    }
+
+    @Override
+    public void close() {
+        lookup.close();
+    }
+}
+//EOF
@@ -0,0 +1,344 @@
+package nl.wur.bis.kcftools.Data;
+
+import nl.wur.bis.kcftools.Utils.Logger;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/***
+ * This class represents a memory mapped open addressing hash table of kmer counts (the .kcfidx format written by
+ * kcftools index). A lookup costs O(1) expected probes instead of the binary search of the KMC suffix file.
+ * Keys are the 2-bit packed kmers (left aligned, same as Kmer.getKmerLong()) in one long, so k is limited to 31: the
+ * lowest bit is then always free and is set to mark a slot as occupied (an empty slot is 0). Collisions are resolved
+ * by linear probing. The counts are stored in a separate array of 1, 2 or 4 bytes per slot, capped to that width.
+ * Header layout (little-endian):
+ *  0: magic "KCFINDEX"
+ *  8: int version
+ * 12: int kmer length
+ * 16: int canonical (1 if the kmers are canonical)
+ * 20: int minimum count of the kmers in the table
+ * 24: int maximum count of the source database (before capping)
+ * 28: int bytes per count
+ * 32: long capacity (number of slots, a power of two)
+ * 40: long number of kmers
+ * 48: long reserved
+ * 56: long reserved
+ * 64: keys (capacity longs), followed by the counts (capacity * bytes per count)
+ */
+public class KmerHashTable implements KmerLookup {
+    public static final String EXTENSION = ".kcfidx";
+    public static final int MAX_KMER_LENGTH = 31;
+    private static final byte[] MAGIC = "KCFINDEX".getBytes(StandardCharsets.US_ASCII);
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 64;
+    // bytes per mapped chunk (1 gb)
+    private static final int CHUNK_SHIFT = 30;
+    private static final long CHUNK_MASK = (1L << CHUNK_SHIFT) - 1;
+    private static final VarHandle LONG_VIEW = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final String CLASS_NAME = KmerHashTable.class.getSimpleName();
+
+    private final String fileName;
+    private final int kmerLength;
+    private final boolean canonical;
+    private final int minCount;
+    private final int maxCount;
+    private final int countBytes;
+    private final long countCap;
+    private final long capacity;
+    private final long slotMask;
+    private long numKeys;
+    private final boolean writable;
+    private MappedByteBuffer[] keyChunks;
+    private MappedByteBuffer[] countChunks;
+
+    private KmerHashTable(String fileName, int kmerLength, boolean canonical, int minCount, int maxCount,
+                          int countBytes, long capacity, long numKeys, boolean writable) {
+        this.fileName = fileName;
+        this.kmerLength = kmerLength;
+        this.canonical = canonical;
+        this.minCount = minCount;
+        this.maxCount = maxCount;
+        this.countBytes = countBytes;
+        this.countCap = countBytes == 4 ? Integer.MAX_VALUE : (1L << (8 * countBytes)) - 1;
+        this.capacity = capacity;
+        this.slotMask = capacity - 1;
+        this.numKeys = numKeys;
+        this.writable = writable;
+    }
+
+    /***
+     * Create an empty table file for the expected number of kmers at the given load factor.
+     * The file is mapped read-write, put() can be called from several threads.
+     */
+    public static KmerHashTable create(String fileName, int kmerLength, boolean canonical, int minCount, int maxCount,
+                                       int countBytes, long expectedKmers, double loadFactor) throws IOException {
+        if (kmerLength > MAX_KMER_LENGTH) {
+            throw new IOException("kcftools index supports kmers up to " + MAX_KMER_LENGTH + " bases, got " + kmerLength);
+        }
+        if (countBytes != 1 && countBytes != 2 && countBytes != 4) {
+            throw new IOException("Count width should be 1, 2 or 4 bytes, got " + countBytes);
+        }
+        long capacity = Math.max(16, Long.highestOneBit((long) Math.ceil(Math.max(1, expectedKmers) / loadFactor) - 1) << 1);
+        KmerHashTable table = new KmerHashTable(fileName, kmerLength, canonical, minCount, maxCount, countBytes,
+                capacity, 0, true);
+        try (FileChannel channel = FileChannel.open(Path.of(fileName), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            channel.write(table.header(), 0);
+            table.map(channel, FileChannel.MapMode.READ_WRITE);
+        }
+        return table;
+    }
+
+    /***
+     * Open an existing table file (memory mapped, read only)
+     */
+    public static KmerHashTable load(String fileName) throws IOException {
+        try (FileChannel channel = FileChannel.open(Path.of(fileName), StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            while (header.hasRemaining()) {
+                if (channel.read(header, header.position()) < 0) {
+                    throw new IOException("Truncated index header in " + fileName);
+                }
+            }
+            header.flip();
+            byte[] magic = new byte[MAGIC.length];
+            header.get(magic);
+            if (!Arrays.equals(magic, MAGIC)) {
+                throw new IOException("Not a kcftools index: " + fileName);
+            }
+            int version = header.getInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported index version " + version + " in " + fileName);
+            }
+            int kmerLength = header.getInt();
+            boolean canonical = header.getInt() == 1;
+            int minCount = header.getInt();
+            int maxCount = header.getInt();
+            int countBytes = header.getInt();
+            long capacity = header.getLong();
+            long numKeys = header.getLong();
+            if (kmerLength < 1 || kmerLength > MAX_KMER_LENGTH || Long.bitCount(capacity) != 1
+                    || (countBytes != 1 && countBytes != 2 && countBytes != 4)) {
+                throw new IOException("Corrupt index header in " + fileName);
+            }
+            KmerHashTable table = new KmerHashTable(fileName, kmerLength, canonical, minCount, maxCount, countBytes,
+                    capacity, numKeys, false);
+            if (channel.size() < table.fileSize()) {
+                throw new IOException("Truncated index " + fileName);
+            }
+            table.map(channel, FileChannel.MapMode.READ_ONLY);
+            return table;
+        }
+    }
+
+    private long fileSize() {
+        return HEADER_SIZE + capacity * (8 + countBytes);
+    }
+
+    private void map(FileChannel channel, FileChannel.MapMode mode) throws IOException {
+        keyChunks = mapRegion(channel, mode, HEADER_SIZE, capacity * 8);
+        countChunks = mapRegion(channel, mode, HEADER_SIZE + capacity * 8, capacity * countBytes);
+    }
+
+    /***
+     * Map a region of the file in chunks of (1 << CHUNK_SHIFT) bytes, the slot widths are powers of two, so a slot
+     * never crosses two chunks
+     */
+    private static MappedByteBuffer[] mapRegion(FileChannel channel, FileChannel.MapMode mode, long start, long size) throws IOException {
+        int numberOfChunks = (int) (((size - 1) >>> CHUNK_SHIFT) + 1);
+        MappedByteBuffer[] chunks = new MappedByteBuffer[numberOfChunks];
+        for (int i = 0; i < numberOfChunks; i++) {
+            long offset = (long) i << CHUNK_SHIFT;
+            chunks[i] = channel.map(mode, start + offset, Math.min(1L << CHUNK_SHIFT, size - offset));
+            chunks[i].order(ByteOrder.LITTLE_ENDIAN);
+        }
+        return chunks;
+    }
+
+    private ByteBuffer header() {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        header.put(MAGIC);
+        header.putInt(VERSION);
+        header.putInt(kmerLength);
+        header.putInt(canonical ? 1 : 0);
+        header.putInt(minCount);
+        header.putInt(maxCount);
+        header.putInt(countBytes);
+        header.putLong(capacity);
+        header.putLong(numKeys);
+        header.putLong(0);
+        header.putLong(0);
+        header.flip();
+        return header;
+    }
+
+    /***
+     * Insert an encoded kmer with its count (THREAD SAFE, a slot is claimed with a compare and set on its key).
+     * Returns false if the kmer was already in the table.
+     */
+    public boolean put(long[] kmers, int offset, long count) {
+        long key = kmers[offset] | 1L;
+        long slot = mix(key) & slotMask;
+        while (true) {
+            long bytePosition = slot << 3;
+            ByteBuffer chunk = keyChunks[(int) (bytePosition >>> CHUNK_SHIFT)];
+            int position = (int) (bytePosition & CHUNK_MASK);
+            long witness = (long) LONG_VIEW.compareAndExchange(chunk, position, 0L, key);
+            if (witness == 0L) {
+                putCount(slot, Math.min(count, countCap));
+                return true;
+            }
+            if (witness == key) {
+                return false;
+            }
+            slot = (slot + 1) & slotMask;
+        }
+    }
+
+    /***
+     * Get the count of the encoded kmer starting at the given offset of the array, 0 if it is not in the table
+     */
+    public int getCount(long[] kmers, int offset) {
+        long key = kmers[offset] | 1L;
+        long slot = mix(key) & slotMask;
+        while (true) {
+            long bytePosition = slot << 3;
+            long stored = keyChunks[(int) (bytePosition >>> CHUNK_SHIFT)].getLong((int) (bytePosition & CHUNK_MASK));
+            if (stored == key) {
+                return getCount(slot);
+            }
+            if (stored == 0L) {
+                return 0;
+            }
+            slot = (slot + 1) & slotMask;
+        }
+    }
+
+    @Override
+    public void getCounts(KmerBatch batch) {
+        long[] kmers = batch.getKmers();
+        int words = batch.getWords();
+        for (int i = 0; i < batch.size(); i++) {
+            batch.setCount(i, getCount(kmers, i * words));
+        }
+    }
+
+    private int getCount(long slot) {
+        long bytePosition = slot * countBytes;
+        ByteBuffer chunk = countChunks[(int) (bytePosition >>> CHUNK_SHIFT)];
+        int position = (int) (bytePosition & CHUNK_MASK);
+        return switch (countBytes) {
+            case 1 -> chunk.get(position) & 0xFF;
+            case 2 -> chunk.getShort(position) & 0xFFFF;
+            default -> chunk.getInt(position);
+        };
+    }
+
+    private void putCount(long slot, long count) {
+        long bytePosition = slot * countBytes;
+        ByteBuffer chunk = countChunks[(int) (bytePosition >>> CHUNK_SHIFT)];
+        int position = (int) (bytePosition & CHUNK_MASK);
+        switch (countBytes) {
+            case 1 -> chunk.put(position, (byte) count);
+            case 2 -> chunk.putShort(position, (short) count);
+            default -> chunk.putInt(position, (int) count);
+        }
+    }
+
+    /***
+     * 64 bit finaliser (splitmix64)
+     */
+    private static long mix(long x) {
+        x ^= x >>> 30;
+        x *= 0xBF58476D1CE4E5B9L;
+        x ^= x >>> 27;
+        x *= 0x94D049BB133111EBL;
+        return x ^ (x >>> 31);
+    }
+
+    /***
+     * Set the number of kmers in the table (stored in the header on close)
+     */
+    public void setNumKeys(long numKeys) {
+        this.numKeys = numKeys;
+    }
+
+    @Override
+    public int getKmerLength() {
+        return kmerLength;
+    }
+
+    @Override
+    public boolean isBothStrands() {
+        return canonical;
+    }
+
+    /***
+     * The table is hashed on the kmer only, no signature is needed
+     */
+    @Override
+    public Signature getSignatureReference() {
+        return null;
+    }
+
+    public int getMinCount() {
+        return minCount;
+    }
+
+    public int getMaxCount() {
+        return maxCount;
+    }
+
+    /***
+     * Get the largest count the table can store, higher counts are capped to it
+     */
+    public long getCountCap() {
+        return countCap;
+    }
+
+    public void printSummary() {
+        Logger.info(CLASS_NAME, "==================== INDEX INFO ==================");
+        Logger.info(CLASS_NAME, String.format("%-25s: %s", "Index file", fileName));
+        Logger.info(CLASS_NAME, String.format("%-25s: %d", "Kmer length", kmerLength));
+        Logger.info(CLASS_NAME, String.format("%-25s: %b", "Both strands", canonical));
+        Logger.info(CLASS_NAME, String.format("%-25s: %d", "Min count", minCount));
+        Logger.info(CLASS_NAME, String.format("%-25s: %d", "Max count", maxCount));
+        Logger.info(CLASS_NAME, String.format("%-25s: %d bytes (capped at %d)", "Count width", countBytes, countCap));
+        Logger.info(CLASS_NAME, String.format("%-25s: %d", "Total kmers", numKeys));
+        Logger.info(CLASS_NAME, String.format("%-25s: %d (load %.2f)", "Slots", capacity, numKeys / (double) capacity));
+        Logger.info(CLASS_NAME, String.format("%-25s: %.2f MB", "Size", fileSize() / (1024.0 * 1024)));
+        Logger.info(CLASS_NAME, "==================================================");
+    }
+
+    @Override
+    public void close() {
+        if (keyChunks == null) {
+            return;
+        }
+        if (writable) {
+            for (MappedByteBuffer chunk : keyChunks) {
+                chunk.force();
+            }
+            for (MappedByteBuffer chunk : countChunks) {
+                chunk.force();
+            }
+            try (FileChannel channel = FileChannel.open(Path.of(fileName), StandardOpenOption.WRITE)) {
+                channel.write(header(), 0);
+            } catch (IOException e) {
+                Logger.error(CLASS_NAME, "Error writing index header to " + fileName);
+            }
+        }
+        keyChunks = null;
+        countChunks = null;
+    }
+}
+//EOF
@@ -0,0 +1,27 @@
+package nl.wur.bis.kcftools.Data;
+
+/***
+ * This interface represents a source of kmer counts that getVariations can query (a KMC database, or a kcftools index)
+ */
+public interface KmerLookup extends AutoCloseable {
+    int getKmerLength();
+
+    /***
+     * return true if the kmers are stored in canonical form
+     */
+    boolean isBothStrands();
+
+    /***
+     * Get the signature reference the kmers of a batch should be scanned with, null if the lookup does not use it
+     */
+    Signature getSignatureReference();
+
+    /***
+     * Resolve the counts of all kmers in the batch (THREAD SAFE), the counts are written back in the positional order
+     */
+    void getCounts(KmerBatch batch);
+
+    @Override
+    void close();
+}
+//EOF
@@ -0,0 +1,85 @@
+package nl.wur.bis.kcftools.Data;
+
+import nl.wur.bis.kcftools.Utils.Logger;
+
+import java.nio.LongBuffer;
+
+/***
+ * This class splits a KMC database into contiguous partitions of its prefix array slots (signature bin and LUT
+ * prefix), with about the same number of suffix records each, and routes kmers to the partition holding their records.
+ * A worker that only resolves the kmers of one partition touches only that slice of the prefix and suffix data, so the
+ * slice stays in its caches.
+ */
+public class KmerPartitioner {
+    private final KMC kmc;
+    private final int partitions;
+    // first slot of every partition, followed by the number of slots
+    private final int[] boundaries;
+    private final long[] records;
+    private static final String CLASS_NAME = KmerPartitioner.class.getSimpleName();
+
+    public KmerPartitioner(KMC kmc, int partitions) {
+        this.kmc = kmc;
+        this.partitions = Math.max(1, partitions);
+        LongBuffer prefixArray = kmc.getPrefixArray();
+        int slots = prefixArray.limit();
+        long totalKmers = kmc.getTotalKmers();
+        this.boundaries = new int[this.partitions + 1];
+        this.records = new long[this.partitions];
+        boundaries[this.partitions] = slots;
+        for (int p = 1; p < this.partitions; p++) {
+            // first slot whose records start at or after the target record
+            long target = totalKmers * p / this.partitions;
+            int low = boundaries[p - 1];
+            int high = slots;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (prefixArray.get(mid) < target) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            boundaries[p] = low;
+        }
+        for (int p = 0; p < this.partitions; p++) {
+            long start = boundaries[p] < slots ? prefixArray.get(boundaries[p]) : totalKmers;
+            long end = boundaries[p + 1] < slots ? prefixArray.get(boundaries[p + 1]) : totalKmers;
+            records[p] = end - start;
+        }
+    }
+
+    public int getPartitions() {
+        return partitions;
+    }
+
+    /***
+     * Get the partition of an encoded kmer (starting at the given offset) with the given signature
+     */
+    public int partitionOf(long[] kmers, int offset, int signature) {
+        int slot = kmc.getSlot(kmers, offset, signature);
+        // last partition whose first slot is not after the slot
+        int low = 0;
+        int high = partitions - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (boundaries[mid] <= slot) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    public void printSummary() {
+        long min = Long.MAX_VALUE;
+        long max = 0;
+        for (long r : records) {
+            min = Math.min(min, r);
+            max = Math.max(max, r);
+        }
+        Logger.info(CLASS_NAME, String.format("KMC database split into %d partitions of %d to %d records", partitions, min, max));
+    }
+}
+//EOF
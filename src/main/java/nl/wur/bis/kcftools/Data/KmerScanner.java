@@ -0,0 +1,213 @@
+package nl.wur.bis.kcftools.Data;
+
+/***
+ * This class streams the kmers of a sequence to a visitor, without creating a Kmer object per position.
+ * The forward and the reverse complement encodings are rolled along the sequence in primitive longs (same left aligned
+ * 2-bit layout as Kmer.getKmerLong()), so each base costs O(1). Any non-ACGT base restarts the kmer.
+ * The effective ATGC length (see Fasta.getEffectiveATGCCount) is calculated in the same pass.
+ * When a Signature is given, the KMC signature (bin selector) of each kmer is maintained as a sliding window minimum
+ * over the normalised m-mers, so it costs amortised O(1) per kmer instead of the O(k.m) rescan in Kmer.getSignature.
+ * With setSoftMask(true), lower case (soft-masked) bases are breaks too, so their kmers are never visited.
+ * A scanner is NOT thread safe, use one per worker.
+ */
+public class KmerScanner {
+    /***
+     * Receives the kmers of a sequence in order. The kmer array is owned by the scanner and is only valid during the call
+     */
+    public interface KmerVisitor {
+        void visit(int position, long[] kmer, int signature);
+    }
+
+    // 2-bit code of each base, -1 for anything that is not A, C, G or T (case insensitive)
+    private static final byte[] BASE_CODES = new byte[128];
+    // the same for soft-masked sequences, where the lower case bases are -1 as well
+    private static final byte[] UPPER_BASE_CODES = new byte[128];
+
+    static {
+        java.util.Arrays.fill(UPPER_BASE_CODES, (byte) -1);
+        UPPER_BASE_CODES['A'] = 0;
+        UPPER_BASE_CODES['C'] = 1;
+        UPPER_BASE_CODES['G'] = 2;
+        UPPER_BASE_CODES['T'] = 3;
+        System.arraycopy(UPPER_BASE_CODES, 0, BASE_CODES, 0, BASE_CODES.length);
+        BASE_CODES['a'] = 0;
+        BASE_CODES['c'] = 1;
+        BASE_CODES['g'] = 2;
+        BASE_CODES['t'] = 3;
+    }
+
+    private final int kmerLength;
+    private final boolean canonical;
+    private final int words;
+    private final KmerCodec codec;
+    private final long[] fwd;
+    private final long[] rev;
+    // word and bit offset of the last base of the kmer
+    private final int lastBaseWord;
+    private final int lastBaseShift;
+    // mask keeping only the bits of the kmer in the last word
+    private final long lastWordMask;
+
+    // rolling signature state (only when a signature reference is given)
+    private final Signature signature;
+    private final int signatureLength;
+    private final int mmerMask;
+    // monotonic deque of (m-mer position, normalised m-mer) pairs in a ring buffer
+    private final int[] dequePositions;
+    private final int[] dequeValues;
+    private final int dequeMask;
+
+    private byte[] baseCodes = BASE_CODES;
+
+    // state of the current scan
+    private int effectiveLength;
+    private int stretchLength;
+    private int mmer;
+    private int head;
+    private int tail;
+
+    public KmerScanner(int kmerLength, boolean canonical) {
+        this(kmerLength, canonical, null);
+    }
+
+    public KmerScanner(int kmerLength, boolean canonical, Signature signature) {
+        this.kmerLength = kmerLength;
+        this.canonical = canonical;
+        this.words = (2 * kmerLength + 63) / 64;
+        this.codec = KmerCodec.of(kmerLength);
+        this.fwd = new long[words];
+        this.rev = new long[words];
+        int lastBit = 2 * (kmerLength - 1);
+        this.lastBaseWord = lastBit >>> 6;
+        this.lastBaseShift = 62 - (lastBit & 63);
+        int usedBits = 2 * kmerLength - 64 * (words - 1);
+        this.lastWordMask = usedBits == 64 ? -1L : -1L << (64 - usedBits);
+
+        this.signature = signature;
+        this.signatureLength = signature == null ? 0 : signature.getSignLength();
+        this.mmerMask = signature == null ? 0 : (1 << (2 * signatureLength)) - 1;
+        int dequeSize = Integer.highestOneBit(Math.max(1, kmerLength - signatureLength + 1)) << 1;
+        this.dequePositions = signature == null ? null : new int[dequeSize];
+        this.dequeValues = signature == null ? null : new int[dequeSize];
+        this.dequeMask = dequeSize - 1;
+    }
+
+    /***
+     * Stream all kmers of the sequence to the visitor, and return the effective ATGC length of the sequence
+     */
+    public int scan(CharSequence sequence, KmerVisitor visitor) {
+        reset();
+        int length = sequence.length();
+        for (int i = 0; i < length; i++) {
+            char base = sequence.charAt(i);
+            next(base < 128 ? baseCodes[base] : -1, i, visitor);
+        }
+        return finish();
+    }
+
+    /***
+     * Stream all kmers of the bases (e.g. from FastaIndex.getBases) to the visitor, and return the effective ATGC
+     * length of the sequence. Same as scan(CharSequence, ...) without decoding the bases to a String first.
+     */
+    public int scan(byte[] bases, KmerVisitor visitor) {
+        return scan(bases, 0, bases.length, visitor);
+    }
+
+    /***
+     * Stream all kmers of length bases from offset to the visitor (positions are relative to offset)
+     */
+    public int scan(byte[] bases, int offset, int length, KmerVisitor visitor) {
+        reset();
+        for (int i = 0; i < length; i++) {
+            byte base = bases[offset + i];
+            next(base >= 0 ? baseCodes[base] : -1, i, visitor);
+        }
+        return finish();
+    }
+
+    private void reset() {
+        effectiveLength = 0;
+        stretchLength = 0;
+        mmer = 0;
+        head = 0;
+        tail = 0;
+    }
+
+    /***
+     * Consume the base (2-bit code, -1 for a non-ACGT base) at position i, and visit the kmer ending at it
+     */
+    private void next(int code, int i, KmerVisitor visitor) {
+        if (code < 0) {
+            if (stretchLength >= kmerLength) {
+                effectiveLength += stretchLength;
+            }
+            stretchLength = 0;
+            head = tail;
+            return;
+        }
+        push(code);
+        stretchLength++;
+
+        int minSignature = -1;
+        if (signature != null) {
+            // roll the m-mer ending at this base into the sliding window minimum
+            mmer = ((mmer << 2) | code) & mmerMask;
+            if (stretchLength >= signatureLength) {
+                int value = signature.getSignature(mmer);
+                while (tail != head && dequeValues[(tail - 1) & dequeMask] >= value) {
+                    tail--;
+                }
+                dequePositions[tail & dequeMask] = i - signatureLength + 1;
+                dequeValues[tail & dequeMask] = value;
+                tail++;
+                // drop the m-mers that start before the current kmer
+                while (dequePositions[head & dequeMask] < i - kmerLength + 1) {
+                    head++;
+                }
+                minSignature = dequeValues[head & dequeMask];
+            }
+        }
+
+        if (stretchLength >= kmerLength) {
+            visitor.visit(i - kmerLength + 1, canonical && codec.compare(fwd, 0, rev, 0) > 0 ? rev : fwd, minSignature);
+        }
+    }
+
+    private int finish() {
+        if (stretchLength >= kmerLength) {
+            effectiveLength += stretchLength;
+        }
+        return effectiveLength;
+    }
+
+    /***
+     * Roll one base into the forward and reverse complement encodings
+     */
+    private void push(int code) {
+        // forward: shift everything one base to the left and append the base at the end
+        for (int w = 0; w < words - 1; w++) {
+            fwd[w] = (fwd[w] << 2) | (fwd[w + 1] >>> 62);
+        }
+        fwd[words - 1] <<= 2;
+        fwd[lastBaseWord] |= (long) code << lastBaseShift;
+
+        // reverse complement: shift everything one base to the right and prepend the complement
+        for (int w = words - 1; w > 0; w--) {
+            rev[w] = (rev[w] >>> 2) | (rev[w - 1] << 62);
+        }
+        rev[0] = (rev[0] >>> 2) | ((long) (3 - code) << 62);
+        rev[words - 1] &= lastWordMask;
+    }
+
+    /***
+     * Treat the lower case (soft-masked) bases as breaks, like N
+     */
+    public void setSoftMask(boolean softMask) {
+        this.baseCodes = softMask ? UPPER_BASE_CODES : BASE_CODES;
+    }
+
+    public int getKmerLength() {
+        return kmerLength;
+    }
+}
+//EOF
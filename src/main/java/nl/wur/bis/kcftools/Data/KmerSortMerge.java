@@ -0,0 +1,435 @@
+package nl.wur.bis.kcftools.Data;
+
+import nl.wur.bis.kcftools.Utils.Logger;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/***
+ * This class resolves the counts of a large number of kmers against a KMC database with a sort-merge join, so the
+ * suffix file is read in one sequential pass instead of being searched at random.
+ * The kmers are added as batches, and each kmer gets a sequential id. The records (prefix array slot, kmer, id) are
+ * sorted in a bounded memory buffer and spilled to sorted run files when the buffer is full. resolve() merges the runs
+ * in KMC order (slot, then suffix), which is the order of the records in the suffix file, and streams the suffix file
+ * forward once to find the counts. The counts are stored by id in a memory mapped temporary file, so they can be read
+ * back in the order the kmers were added.
+ * add() is THREAD SAFE, resolve() and getCount() should be called after all kmers are added.
+ */
+public class KmerSortMerge implements AutoCloseable {
+    // records of the suffix file read at once
+    private static final int STREAM_BUFFER_BYTES = 64 << 20;
+    private static final int RUN_BUFFER_BYTES = 1 << 20;
+    // counts per mapped chunk of the count file (1 gb)
+    private static final int COUNT_CHUNK_SHIFT = 28;
+    private static final long COUNT_CHUNK_MASK = (1L << COUNT_CHUNK_SHIFT) - 1;
+    private static final String CLASS_NAME = KmerSortMerge.class.getSimpleName();
+
+    private final KMC kmc;
+    private final Path tmpDir;
+    private final int words;
+    // longs per record: slot, kmer words, id
+    private final int stride;
+    private final int capacity;
+    private final long[] records;
+    private final int[] order;
+    private int size = 0;
+    private long nextId = 0;
+    private long sortedRecords = 0;
+    private long skippedRecords = 0;
+    private final List<Path> runs = new ArrayList<>();
+    private Path countFile;
+    private MappedByteBuffer[] countChunks;
+
+    // KMC database layout
+    private final LongBuffer prefixArray;
+    private final int[] signatureMap;
+    private final int lutPrefixLength;
+    private final int lutPrefixArraySize;
+    private final int recordSize;
+    private final int suffixBytes;
+    private final int counterSize;
+    private final long totalKmers;
+    private final KmerBloomFilter bloomFilter;
+
+    /***
+     * Create a sort-merge join on the KMC database, using at most the given memory for the sort buffer. The run files
+     * and the count file are created in tmpDir.
+     */
+    public KmerSortMerge(KMC kmc, long memoryBytes, String tmpDir) {
+        this.kmc = kmc;
+        this.tmpDir = Path.of(tmpDir);
+        this.words = (2 * kmc.getKmerLength() + 63) / 64;
+        this.stride = words + 2;
+        long recordBytes = 8L * stride + 4;
+        this.capacity = (int) Math.max(1 << 16, Math.min(Integer.MAX_VALUE / stride, memoryBytes / recordBytes));
+        this.records = new long[capacity * stride];
+        this.order = new int[capacity];
+        this.prefixArray = kmc.getPrefixArray();
+        this.signatureMap = kmc.getSignatureMap();
+        this.lutPrefixLength = kmc.getPrefixLength();
+        this.lutPrefixArraySize = 1 << (2 * lutPrefixLength);
+        this.recordSize = kmc.getRecordSize();
+        this.suffixBytes = kmc.getSuffixBytes();
+        this.counterSize = kmc.getCounterSize();
+        this.totalKmers = kmc.getTotalKmers();
+        this.bloomFilter = kmc.getBloomFilter();
+        Logger.info(CLASS_NAME, String.format("Sort buffer: %d kmers (%.2f MB), temporary files in %s",
+                capacity, capacity * recordBytes / (1024.0 * 1024.0), tmpDir));
+    }
+
+    /***
+     * Add the kmers of a batch (in positional order), and return the id of the first one. The kmers get consecutive
+     * ids. Kmers rejected by the Bloom filter of the database are not sorted, their count stays 0. THREAD SAFE
+     */
+    public synchronized long add(KmerBatch batch) throws IOException {
+        long firstId = nextId;
+        long[] kmers = batch.getKmers();
+        long rejected = 0;
+        for (int i = 0; i < batch.size(); i++) {
+            int offset = i * words;
+            if (bloomFilter != null && !bloomFilter.mightContain(kmers, offset)) {
+                rejected++;
+                continue;
+            }
+            if (size == capacity) {
+                spill();
+            }
+            int base = size * stride;
+            records[base] = getSlot(kmers, offset, batch.getSignature(i));
+            System.arraycopy(kmers, offset, records, base + 1, words);
+            records[base + stride - 1] = firstId + i;
+            size++;
+        }
+        if (bloomFilter != null) {
+            bloomFilter.recordQueries(batch.size() - rejected, rejected, 0);
+            skippedRecords += rejected;
+        }
+        nextId += batch.size();
+        return firstId;
+    }
+
+    /***
+     * Sort the buffer and write it to a run file
+     */
+    private void spill() throws IOException {
+        sortBuffer();
+        Path run = Files.createTempFile(tmpDir, "kcftools_sort_", ".run");
+        run.toFile().deleteOnExit();
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run.toFile()), RUN_BUFFER_BYTES))) {
+            for (int i = 0; i < size; i++) {
+                int base = order[i] * stride;
+                for (int j = 0; j < stride; j++) {
+                    out.writeLong(records[base + j]);
+                }
+            }
+        }
+        runs.add(run);
+        sortedRecords += size;
+        size = 0;
+    }
+
+    /***
+     * Resolve the counts of all added kmers: merge the sorted runs (and the buffer) in KMC order, and stream the
+     * suffix file forward once. Returns the number of kmers found in the database.
+     */
+    public long resolve() throws IOException {
+        long startTime = System.currentTimeMillis();
+        sortBuffer();
+        sortedRecords += size;
+        Logger.info(CLASS_NAME, String.format("Kmers: %d, sorted: %d, skipped by the Bloom filter: %d, sorted runs: %d",
+                nextId, sortedRecords, skippedRecords, runs.size() + (size > 0 ? 1 : 0)));
+        createCountFile();
+
+        List<RecordSource> sources = new ArrayList<>();
+        PriorityQueue<RecordSource> queue = new PriorityQueue<>((a, b) -> compare(a.record, 0, b.record, 0));
+        long found = 0;
+        try (FileChannel suffixChannel = FileChannel.open(Path.of(kmc.getSuffixFileName()), StandardOpenOption.READ)) {
+            for (Path run : runs) {
+                sources.add(new RunSource(run));
+            }
+            if (size > 0) {
+                sources.add(new BufferSource());
+            }
+            for (RecordSource source : sources) {
+                if (source.next()) {
+                    queue.add(source);
+                }
+            }
+            SuffixStream stream = new SuffixStream(suffixChannel);
+            byte[] query = new byte[suffixBytes];
+            long[] last = new long[stride];
+            boolean hasLast = false;
+            int lastCount = 0;
+            long record = 0;
+            while (!queue.isEmpty()) {
+                RecordSource source = queue.poll();
+                long[] current = source.record;
+                long id = current[stride - 1];
+                int count;
+                if (hasLast && compare(current, 0, last, 0) == 0) {
+                    // repeated kmer, same answer
+                    count = lastCount;
+                } else {
+                    int slot = (int) current[0];
+                    long low = prefixArray.get(slot);
+                    long high = slot + 1 >= prefixArray.limit() ? totalKmers : prefixArray.get(slot + 1);
+                    record = Math.max(record, low);
+                    loadQuery(current, query);
+                    int comparison = 1;
+                    while (record < high && (comparison = stream.compare(record, query)) > 0) {
+                        record++;
+                    }
+                    count = record < high && comparison == 0 ? stream.countAt(record) : 0;
+                    System.arraycopy(current, 0, last, 0, stride);
+                    hasLast = true;
+                    lastCount = count;
+                }
+                if (count > 0) {
+                    setCount(id, count);
+                    found++;
+                }
+                if (source.next()) {
+                    queue.add(source);
+                }
+            }
+            Logger.info(CLASS_NAME, String.format("Merged in %d ms, suffix file read: %.2f MB",
+                    System.currentTimeMillis() - startTime, stream.bytesRead / (1024.0 * 1024.0)));
+        } finally {
+            for (RecordSource source : sources) {
+                source.close();
+            }
+            for (Path run : runs) {
+                Files.deleteIfExists(run);
+            }
+            runs.clear();
+            size = 0;
+        }
+        return found;
+    }
+
+    /***
+     * Get the count of the kmer with the given id (after resolve())
+     */
+    public int getCount(long id) {
+        return countChunks[(int) (id >>> COUNT_CHUNK_SHIFT)].getInt((int) (id & COUNT_CHUNK_MASK) * 4);
+    }
+
+    private void setCount(long id, int count) {
+        countChunks[(int) (id >>> COUNT_CHUNK_SHIFT)].putInt((int) (id & COUNT_CHUNK_MASK) * 4, count);
+    }
+
+    /***
+     * Create the (zero filled, sparse) count file, one int per kmer id, and map it in chunks
+     */
+    private void createCountFile() throws IOException {
+        countFile = Files.createTempFile(tmpDir, "kcftools_counts_", ".bin");
+        countFile.toFile().deleteOnExit();
+        long numberOfCounts = Math.max(1, nextId);
+        try (RandomAccessFile file = new RandomAccessFile(countFile.toFile(), "rw")) {
+            file.setLength(numberOfCounts * 4);
+            int numberOfChunks = (int) (((numberOfCounts - 1) >>> COUNT_CHUNK_SHIFT) + 1);
+            countChunks = new MappedByteBuffer[numberOfChunks];
+            for (int i = 0; i < numberOfChunks; i++) {
+                long first = (long) i << COUNT_CHUNK_SHIFT;
+                long counts = Math.min(1L << COUNT_CHUNK_SHIFT, numberOfCounts - first);
+                countChunks[i] = file.getChannel().map(FileChannel.MapMode.READ_WRITE, first * 4, counts * 4);
+                countChunks[i].order(ByteOrder.nativeOrder());
+            }
+        }
+    }
+
+    /***
+     * Get the index in the prefix array for a kmer with the given signature
+     */
+    private int getSlot(long[] kmers, int offset, int signature) {
+        int prefix = lutPrefixLength == 0 ? 0 : (int) (kmers[offset] >>> (64 - 2 * lutPrefixLength));
+        return signatureMap[signature] * lutPrefixArraySize + prefix;
+    }
+
+    /***
+     * Pack the suffix bases of a record (everything after the LUT prefix) into bytes, as stored in the suffix file
+     */
+    private void loadQuery(long[] record, byte[] query) {
+        int bit = 2 * lutPrefixLength;
+        for (int j = 0; j < suffixBytes; j++, bit += 8) {
+            int word = 1 + (bit >>> 6);
+            int offset = bit & 63;
+            long value = record[word] << offset;
+            if (offset > 56) {
+                value |= record[word + 1] >>> (64 - offset);
+            }
+            query[j] = (byte) (value >>> 56);
+        }
+    }
+
+    /***
+     * Compare two records by (slot, kmer)
+     */
+    private int compare(long[] a, int offsetA, long[] b, int offsetB) {
+        if (a[offsetA] != b[offsetB]) {
+            return Long.compare(a[offsetA], b[offsetB]);
+        }
+        for (int w = 1; w <= words; w++) {
+            long x = a[offsetA + w];
+            long y = b[offsetB + w];
+            if (x != y) {
+                return Long.compareUnsigned(x, y);
+            }
+        }
+        return 0;
+    }
+
+    private int compareBuffered(int a, int b) {
+        return compare(records, a * stride, records, b * stride);
+    }
+
+    private void sortBuffer() {
+        for (int i = 0; i < size; i++) {
+            order[i] = i;
+        }
+        IndexSort.sort(order, 0, size - 1, this::compareBuffered);
+    }
+
+    /***
+     * A sorted stream of records (a run file or the sorted buffer), the current record is in record
+     */
+    private abstract class RecordSource implements Closeable {
+        final long[] record = new long[stride];
+
+        abstract boolean next() throws IOException;
+
+        @Override
+        public void close() throws IOException {
+        }
+    }
+
+    private class RunSource extends RecordSource {
+        private final DataInputStream in;
+        private final long numberOfRecords;
+        private long read = 0;
+
+        RunSource(Path run) throws IOException {
+            this.numberOfRecords = Files.size(run) / (8L * stride);
+            this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(run.toFile()), RUN_BUFFER_BYTES));
+        }
+
+        @Override
+        boolean next() throws IOException {
+            if (read == numberOfRecords) {
+                return false;
+            }
+            for (int j = 0; j < stride; j++) {
+                record[j] = in.readLong();
+            }
+            read++;
+            return true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    private class BufferSource extends RecordSource {
+        private int index = 0;
+
+        @Override
+        boolean next() {
+            if (index == size) {
+                return false;
+            }
+            System.arraycopy(records, order[index++] * stride, record, 0, stride);
+            return true;
+        }
+    }
+
+    /***
+     * Forward only reader of the suffix file records, a window of records is kept in a heap buffer. Records are only
+     * requested in increasing order, so the file is read sequentially (skipping the ranges no kmer falls in).
+     */
+    private class SuffixStream {
+        private final FileChannel channel;
+        private final byte[] buffer;
+        private final ByteBuffer view;
+        private final long bufferRecords;
+        private long first = 0;
+        private long end = 0;
+        long bytesRead = 0;
+
+        SuffixStream(FileChannel channel) {
+            this.channel = channel;
+            this.bufferRecords = Math.max(1, STREAM_BUFFER_BYTES / recordSize);
+            this.buffer = new byte[(int) (bufferRecords * recordSize)];
+            this.view = ByteBuffer.wrap(buffer);
+        }
+
+        /***
+         * Compare the query suffix with the suffix of the given record
+         */
+        int compare(long record, byte[] query) throws IOException {
+            int position = positionOf(record);
+            return Arrays.compareUnsigned(query, 0, suffixBytes, buffer, position, position + suffixBytes);
+        }
+
+        /***
+         * Decode the (little-endian) counter of the given record
+         */
+        int countAt(long record) throws IOException {
+            int position = positionOf(record) + suffixBytes;
+            int count = 0;
+            for (int i = 0; i < counterSize; i++) {
+                count |= (buffer[position + i] & 0xFF) << (i * 8);
+            }
+            return count;
+        }
+
+        private int positionOf(long record) throws IOException {
+            if (record < first || record >= end) {
+                fill(record);
+            }
+            return (int) (record - first) * recordSize;
+        }
+
+        private void fill(long record) throws IOException {
+            first = record;
+            end = Math.min(totalKmers, record + bufferRecords);
+            int length = (int) (end - first) * recordSize;
+            view.clear().limit(length);
+            // first 4 bytes are the marker KMCS in the file
+            long position = 4 + first * recordSize;
+            while (view.hasRemaining()) {
+                int read = channel.read(view, position + view.position());
+                if (read < 0) {
+                    throw new EOFException("Truncated KMC suffix file " + kmc.getSuffixFileName());
+                }
+            }
+            bytesRead += length;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (Path run : runs) {
+            Files.deleteIfExists(run);
+        }
+        runs.clear();
+        countChunks = null;
+        if (countFile != null) {
+            Files.deleteIfExists(countFile);
+            countFile = null;
+        }
+    }
+}
+//EOF
@@ -0,0 +1,475 @@
+package nl.wur.bis.kcftools.Data;
+
+import nl.wur.bis.kcftools.Utils.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+
+/***
+ * This class represents the reference kmer cache (the .kcfref sidecar written by prepareReference): the encoded
+ * kmers of every window of a reference, with their positions, KMC signatures and the effective length of the window.
+ * getVariations reads the kmers of a window from the memory mapped file instead of extracting and scanning the
+ * reference, and concurrent jobs on the same reference share one page cache copy of the file.
+ * The file is a 96 byte header, the kmer block of every window, and the window table (all little-endian).
+ * Header layout:
+ *  0: magic "KCFREFKM"
+ *  8: int version
+ * 12: int kmer length
+ * 16: int canonical (1 if the kmers are canonical)
+ * 20: int signature length (0 if there are no signatures)
+ * 24: int window size
+ * 28: int step size
+ * 32: int soft mask (1 if soft-masked bases were breaks)
+ * 36: int number of contigs
+ * 40: long checksum of the reference bases (see checksum(FastaIndex, int))
+ * 48: long checksum of the BED mask file (0 without a mask)
+ * 56: long number of windows
+ * 64: long number of kmers
+ * 72: long offset of the window table
+ * 80: int multiplicity (1 if the kmer blocks hold the reference multiplicity of every kmer)
+ * 84: int reserved
+ * 88: long reserved
+ * A kmer block holds the kmer words (longs), then the positions (ints) and the signatures (ints) of its window,
+ * optionally followed by the reference multiplicities (bytes, see ReferenceMultiplicity), and never crosses a
+ * mapped segment. A window table entry (40 bytes) holds the contig index and effective length (ints), the start,
+ * end and offset of the kmer block (longs), the number of kmers and an int reserved.
+ * Version 3 widened the window start and end to longs, for sequences of 2^31 bases or more.
+ */
+public class ReferenceKmerCache implements AutoCloseable {
+    public static final String EXTENSION = ".kcfref";
+    private static final byte[] MAGIC = "KCFREFKM".getBytes(StandardCharsets.US_ASCII);
+    private static final int VERSION = 3;
+    private static final int HEADER_SIZE = 96;
+    private static final int WINDOW_ENTRY_SIZE = 40;
+    private static final long SEGMENT_SIZE = 1L << 30;
+    // bases per checksum task
+    private static final int CHECKSUM_CHUNK_SIZE = 1 << 24;
+    private static final String CLASS_NAME = ReferenceKmerCache.class.getSimpleName();
+
+    private final String fileName;
+    private final int kmerLength;
+    private final int words;
+    private final boolean canonical;
+    private final int signatureLength;
+    private final int windowSize;
+    private final int stepSize;
+    private final boolean softMask;
+    private final boolean multiplicity;
+    private final int contigs;
+    private final long referenceChecksum;
+    private final long maskChecksum;
+    private long numWindows;
+    private long numKmers;
+
+    // reading: the mapped file, and the window table (contig, start, effective length, kmers, block offset)
+    private MappedByteBuffer[] segments;
+    private int[] windowContigs;
+    private long[] windowStarts;
+    private int[] windowEffLengths;
+    private int[] windowKmers;
+    private long[] windowOffsets;
+
+    // writing: the file channel, the end of the data written so far and the window table in memory
+    private FileChannel channel;
+    private long dataEnd;
+    private ByteBuffer windowTable;
+
+    private ReferenceKmerCache(String fileName, int kmerLength, boolean canonical, int signatureLength, int windowSize,
+                               int stepSize, boolean softMask, boolean multiplicity, int contigs, long referenceChecksum,
+                               long maskChecksum) {
+        this.fileName = fileName;
+        this.kmerLength = kmerLength;
+        this.words = (2 * kmerLength + 63) / 64;
+        this.canonical = canonical;
+        this.signatureLength = signatureLength;
+        this.windowSize = windowSize;
+        this.stepSize = stepSize;
+        this.softMask = softMask;
+        this.multiplicity = multiplicity;
+        this.contigs = contigs;
+        this.referenceChecksum = referenceChecksum;
+        this.maskChecksum = maskChecksum;
+    }
+
+    /***
+     * Create an empty cache file, the windows are added in order with addWindow() (with their kmer multiplicities if
+     * multiplicity is set)
+     */
+    public static ReferenceKmerCache create(String fileName, int kmerLength, boolean canonical, int signatureLength,
+                                            int windowSize, int stepSize, boolean softMask, boolean multiplicity,
+                                            int contigs, long referenceChecksum, long maskChecksum) throws IOException {
+        ReferenceKmerCache cache = new ReferenceKmerCache(fileName, kmerLength, canonical, signatureLength, windowSize,
+                stepSize, softMask, multiplicity, contigs, referenceChecksum, maskChecksum);
+        cache.channel = FileChannel.open(Path.of(fileName), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        cache.dataEnd = HEADER_SIZE;
+        cache.windowTable = ByteBuffer.allocate(1024 * WINDOW_ENTRY_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        return cache;
+    }
+
+    /***
+     * Append the kmers of the next window (windows are added in contig and start order), and the reference
+     * multiplicity of every kmer of the batch if the cache holds them
+     */
+    public void addWindow(int contig, long start, long end, int effLength, KmerBatch batch, byte[] multiplicities) throws IOException {
+        int n = batch.size();
+        long blockSize = (long) n * (words * 8L + 8 + (multiplicity ? 1 : 0));
+        if (blockSize > SEGMENT_SIZE) {
+            Logger.error(CLASS_NAME, "Window " + start + "-" + end + " has too many kmers for the reference cache");
+        }
+        // a block never crosses a segment, so it can be read from one mapped buffer
+        if (blockSize > 0 && dataEnd / SEGMENT_SIZE != (dataEnd + blockSize - 1) / SEGMENT_SIZE) {
+            dataEnd = (dataEnd / SEGMENT_SIZE + 1) * SEGMENT_SIZE;
+        }
+        ByteBuffer block = ByteBuffer.allocate((int) blockSize).order(ByteOrder.LITTLE_ENDIAN);
+        long[] kmers = batch.getKmers();
+        for (int i = 0; i < n * words; i++) {
+            block.putLong(kmers[i]);
+        }
+        for (int i = 0; i < n; i++) {
+            block.putInt(batch.getPosition(i));
+        }
+        for (int i = 0; i < n; i++) {
+            block.putInt(batch.getSignature(i));
+        }
+        if (multiplicity) {
+            block.put(multiplicities, 0, n);
+        }
+        block.flip();
+        writeFully(block, dataEnd);
+
+        if (windowTable.remaining() < WINDOW_ENTRY_SIZE) {
+            ByteBuffer larger = ByteBuffer.allocate(windowTable.capacity() * 2).order(ByteOrder.LITTLE_ENDIAN);
+            windowTable.flip();
+            larger.put(windowTable);
+            windowTable = larger;
+        }
+        windowTable.putInt(contig).putInt(effLength).putLong(start).putLong(end).putLong(dataEnd).putInt(n).putInt(0);
+        dataEnd += blockSize;
+        numWindows++;
+        numKmers += n;
+    }
+
+    private void writeFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    /***
+     * Open an existing cache file (memory mapped, read only)
+     */
+    public static ReferenceKmerCache load(String fileName) throws IOException {
+        try (FileChannel channel = FileChannel.open(Path.of(fileName), StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            while (header.hasRemaining()) {
+                if (channel.read(header, header.position()) < 0) {
+                    throw new IOException("Truncated reference cache header in " + fileName);
+                }
+            }
+            header.flip();
+            byte[] magic = new byte[MAGIC.length];
+            header.get(magic);
+            if (!Arrays.equals(magic, MAGIC)) {
+                throw new IOException("Not a kcftools reference cache: " + fileName);
+            }
+            int version = header.getInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported reference cache version " + version + " in " + fileName
+                        + ", prepare it again with prepareReference");
+            }
+            int kmerLength = header.getInt();
+            boolean canonical = header.getInt() == 1;
+            int signatureLength = header.getInt();
+            int windowSize = header.getInt();
+            int stepSize = header.getInt();
+            boolean softMask = header.getInt() == 1;
+            int contigs = header.getInt();
+            long referenceChecksum = header.getLong();
+            long maskChecksum = header.getLong();
+            long numWindows = header.getLong();
+            long numKmers = header.getLong();
+            long windowTableOffset = header.getLong();
+            boolean multiplicity = header.getInt() == 1;
+            if (numWindows > Integer.MAX_VALUE || channel.size() < windowTableOffset + numWindows * WINDOW_ENTRY_SIZE) {
+                throw new IOException("Truncated reference cache " + fileName);
+            }
+            if (contigs < 0) {
+                throw new IOException("Invalid number of contigs (" + contigs + ") in reference cache " + fileName);
+            }
+
+            ReferenceKmerCache cache = new ReferenceKmerCache(fileName, kmerLength, canonical, signatureLength, windowSize,
+                    stepSize, softMask, multiplicity, contigs, referenceChecksum, maskChecksum);
+            cache.numWindows = numWindows;
+            cache.numKmers = numKmers;
+            cache.readWindowTable(channel, windowTableOffset);
+            cache.checkWindowTable();
+            int numSegments = (int) ((windowTableOffset + SEGMENT_SIZE - 1) / SEGMENT_SIZE);
+            cache.segments = new MappedByteBuffer[numSegments];
+            for (int i = 0; i < numSegments; i++) {
+                long segmentStart = i * SEGMENT_SIZE;
+                cache.segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, segmentStart, Math.min(SEGMENT_SIZE, windowTableOffset - segmentStart));
+                cache.segments[i].order(ByteOrder.LITTLE_ENDIAN);
+            }
+            return cache;
+        }
+    }
+
+    private void readWindowTable(FileChannel channel, long offset) throws IOException {
+        int n = (int) numWindows;
+        windowContigs = new int[n];
+        windowStarts = new long[n];
+        windowEffLengths = new int[n];
+        windowKmers = new int[n];
+        windowOffsets = new long[n];
+        ByteBuffer buffer = ByteBuffer.allocate(4096 * WINDOW_ENTRY_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        int w = 0;
+        while (w < n) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), (long) (n - w) * WINDOW_ENTRY_SIZE));
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, offset + (long) w * WINDOW_ENTRY_SIZE + buffer.position()) < 0) {
+                    throw new IOException("Truncated reference cache window table in " + fileName);
+                }
+            }
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                windowContigs[w] = buffer.getInt();
+                windowEffLengths[w] = buffer.getInt();
+                windowStarts[w] = buffer.getLong();
+                // the window end is not needed to find a window
+                buffer.getLong();
+                windowOffsets[w] = buffer.getLong();
+                windowKmers[w] = buffer.getInt();
+                buffer.getInt();
+                w++;
+            }
+        }
+    }
+
+    /***
+     * Check that the windows are on the contigs of the header, in contig and start order (findWindow() searches them)
+     */
+    private void checkWindowTable() throws IOException {
+        for (int w = 0; w < windowContigs.length; w++) {
+            if (windowContigs[w] < 0 || windowContigs[w] >= contigs) {
+                throw new IOException("Window " + w + " is on contig " + windowContigs[w] + ", the reference cache has "
+                        + contigs + " contigs: " + fileName);
+            }
+            if (w > 0 && (windowContigs[w] < windowContigs[w - 1]
+                    || (windowContigs[w] == windowContigs[w - 1] && windowStarts[w] <= windowStarts[w - 1]))) {
+                throw new IOException("Windows are not in reference order in reference cache " + fileName);
+            }
+        }
+    }
+
+    /***
+     * Index of the window of the contig that starts at the given position, or -1 if it is not in the cache
+     */
+    public int findWindow(int contig, long start) {
+        int low = 0;
+        int high = windowContigs.length - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int c = windowContigs[mid] != contig ? Integer.compare(windowContigs[mid], contig) : Long.compare(windowStarts[mid], start);
+            if (c < 0) {
+                low = mid + 1;
+            } else if (c > 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    /***
+     * Load the kmers of a window into the batch, and return the effective length of the window. THREAD SAFE
+     */
+    public int read(int window, KmerBatch batch) {
+        int n = windowKmers[window];
+        if (n == 0) {
+            batch.clear();
+            return windowEffLengths[window];
+        }
+        long offset = windowOffsets[window];
+        ByteBuffer segment = segments[(int) (offset / SEGMENT_SIZE)];
+        int position = (int) (offset % SEGMENT_SIZE);
+        int kmerBytes = n * words * 8;
+        ByteBuffer kmers = segment.slice(position, kmerBytes).order(ByteOrder.LITTLE_ENDIAN);
+        ByteBuffer positions = segment.slice(position + kmerBytes, n * 4).order(ByteOrder.LITTLE_ENDIAN);
+        ByteBuffer signatures = segment.slice(position + kmerBytes + n * 4, n * 4).order(ByteOrder.LITTLE_ENDIAN);
+        batch.load(kmers.asLongBuffer(), positions.asIntBuffer(), signatures.asIntBuffer(), n);
+        return windowEffLengths[window];
+    }
+
+    /***
+     * Reference multiplicity of kmer i of a window (in the order of read()), only if hasMultiplicity(). THREAD SAFE
+     */
+    public int getMultiplicity(int window, int i) {
+        int n = windowKmers[window];
+        long offset = windowOffsets[window] + (long) n * (words * 8L + 8) + i;
+        return segments[(int) (offset / SEGMENT_SIZE)].get((int) (offset % SEGMENT_SIZE)) & 0xFF;
+    }
+
+    /***
+     * Checksum of the bases of a reference (case included, so a soft-mask edit is detected): the CRC32 of the name,
+     * the length and the chunk CRC32s of every sequence. The chunks are read on nThreads threads.
+     */
+    public static long checksum(FastaIndex index, int nThreads) throws IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(nThreads);
+        try {
+            CRC32 crc = new CRC32();
+            List<List<Future<Long>>> chunks = new ArrayList<>();
+            for (String name : index.getSequenceNames()) {
+                long length = index.getSequenceLength(name);
+                List<Future<Long>> futures = new ArrayList<>();
+                for (long start = 0; start < length; start += CHECKSUM_CHUNK_SIZE) {
+                    long chunkStart = start;
+                    int chunkLength = (int) Math.min(CHECKSUM_CHUNK_SIZE, length - start);
+                    futures.add(executor.submit(() -> {
+                        CRC32 chunkCrc = new CRC32();
+                        chunkCrc.update(index.getBases(name, chunkStart, chunkLength));
+                        return chunkCrc.getValue();
+                    }));
+                }
+                chunks.add(futures);
+            }
+            ByteBuffer value = ByteBuffer.allocate(8);
+            List<String> names = index.getSequenceNames();
+            for (int i = 0; i < names.size(); i++) {
+                crc.update((names.get(i) + "\t" + index.getSequenceLength(names.get(i)) + "\n").getBytes(StandardCharsets.UTF_8));
+                for (Future<Long> future : chunks.get(i)) {
+                    crc.update(value.clear().putLong(future.get()).array());
+                }
+            }
+            return crc.getValue() | (1L << 32);
+        } catch (InterruptedException | ExecutionException e) {
+            throw new IOException("Could not read the reference bases: " + e.getMessage(), e);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /***
+     * CRC32 of a (BED mask) file, 0 for no file
+     */
+    public static long checksum(String fileName) throws IOException {
+        if (fileName == null) {
+            return 0;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(Files.readAllBytes(Path.of(fileName)));
+        return crc.getValue() | (1L << 32);
+    }
+
+    public int getKmerLength() {
+        return kmerLength;
+    }
+
+    public boolean isCanonical() {
+        return canonical;
+    }
+
+    public int getSignatureLength() {
+        return signatureLength;
+    }
+
+    public int getWindowSize() {
+        return windowSize;
+    }
+
+    public int getStepSize() {
+        return stepSize;
+    }
+
+    public boolean isSoftMask() {
+        return softMask;
+    }
+
+    public boolean hasMultiplicity() {
+        return multiplicity;
+    }
+
+    public int getContigs() {
+        return contigs;
+    }
+
+    public long getReferenceChecksum() {
+        return referenceChecksum;
+    }
+
+    public long getMaskChecksum() {
+        return maskChecksum;
+    }
+
+    public long getNumWindows() {
+        return numWindows;
+    }
+
+    public long getNumKmers() {
+        return numKmers;
+    }
+
+    private ByteBuffer header(long windowTableOffset) {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        header.put(MAGIC);
+        header.putInt(VERSION);
+        header.putInt(kmerLength);
+        header.putInt(canonical ? 1 : 0);
+        header.putInt(signatureLength);
+        header.putInt(windowSize);
+        header.putInt(stepSize);
+        header.putInt(softMask ? 1 : 0);
+        header.putInt(contigs);
+        header.putLong(referenceChecksum);
+        header.putLong(maskChecksum);
+        header.putLong(numWindows);
+        header.putLong(numKmers);
+        header.putLong(windowTableOffset);
+        header.putInt(multiplicity ? 1 : 0);
+        header.putInt(0);
+        header.putLong(0);
+        header.flip();
+        return header;
+    }
+
+    public void printSummary() {
+        Logger.info(CLASS_NAME, String.format("Reference cache %s: k=%d, %d windows, %d kmers%s (%.1f MB)", fileName, kmerLength,
+                numWindows, numKmers, multiplicity ? " with their reference multiplicity" : "", new File(fileName).length() / (1024.0 * 1024.0)));
+    }
+
+    /***
+     * Close the file, a new cache gets its window table and its header written first (the header last, so an
+     * interrupted run leaves a file that does not load)
+     */
+    @Override
+    public void close() throws IOException {
+        if (channel != null) {
+            windowTable.flip();
+            writeFully(windowTable, dataEnd);
+            writeFully(header(dataEnd), 0);
+            channel.force(true);
+            channel.close();
+            channel = null;
+        }
+        segments = null;
+    }
+}
+//EOF
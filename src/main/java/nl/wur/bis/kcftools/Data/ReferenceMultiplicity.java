@@ -0,0 +1,329 @@
+package nl.wur.bis.kcftools.Data;
+
+import nl.wur.bis.kcftools.Utils.HelperFunctions;
+import nl.wur.bis.kcftools.Utils.Logger;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/***
+ * This class counts how often every kmer occurs in the reference (its multiplicity), so that getVariations can skip
+ * the repeated kmers of a window before they are looked up.
+ * The counts are kept in off-heap open addressing tables (same key layout as KmerHashTable: the left aligned 2-bit
+ * kmer in one long with the lowest bit set, so k is limited to 31, and linear probing), split into partitions by the
+ * top bits of the kmer hash. The reference is scanned in chunks on several threads; every worker buffers its kmers
+ * per partition and inserts a full buffer under the lock of that partition only, so the workers rarely wait on each
+ * other and the table itself needs no atomic updates. Counts saturate at 255.
+ * The tables are sized for half of the reference kmers (about 9 bytes per slot), and a partition is doubled when it
+ * gets too full. prepareReference --multiplicity stores the counts in the reference cache, so they are counted once.
+ */
+public class ReferenceMultiplicity {
+    public static final int MAX_KMER_LENGTH = KmerHashTable.MAX_KMER_LENGTH;
+    public static final int MAX_COUNT = 255;
+    // bases scanned by one task
+    private static final int CHUNK_BASES = 1 << 20;
+    // kmers buffered per partition by a worker before they are inserted
+    private static final int BUFFER_KMERS = 2048;
+    // slots per off-heap chunk of a partition (1 gb of keys)
+    private static final int SLOT_CHUNK_SHIFT = 27;
+    private static final long SLOT_CHUNK_MASK = (1L << SLOT_CHUNK_SHIFT) - 1;
+    private static final double MAX_LOAD = 0.7;
+    private static final String CLASS_NAME = ReferenceMultiplicity.class.getSimpleName();
+
+    private final int kmerLength;
+    private final boolean canonical;
+    private final Partition[] partitions;
+    private final int partitionShift;
+
+    /***
+     * One open addressing table of the partitioned hash space, grown (rehashed) when it gets too full
+     */
+    private static class Partition {
+        private ByteBuffer[] keys;
+        private ByteBuffer[] counts;
+        private long capacity;
+        private long slotMask;
+        private long size = 0;
+
+        private Partition(long capacity) {
+            allocate(capacity);
+        }
+
+        private void allocate(long capacity) {
+            this.capacity = capacity;
+            this.slotMask = capacity - 1;
+            int numberOfChunks = (int) (((capacity - 1) >>> SLOT_CHUNK_SHIFT) + 1);
+            keys = new ByteBuffer[numberOfChunks];
+            counts = new ByteBuffer[numberOfChunks];
+            for (int i = 0; i < numberOfChunks; i++) {
+                int slots = (int) Math.min(1L << SLOT_CHUNK_SHIFT, capacity - ((long) i << SLOT_CHUNK_SHIFT));
+                keys[i] = ByteBuffer.allocateDirect(slots * 8);
+                counts[i] = ByteBuffer.allocateDirect(slots);
+            }
+        }
+
+        /***
+         * Add one occurrence of each of the first n keys (NOT thread safe, the caller holds the partition lock)
+         */
+        private void add(long[] buffer, int n) {
+            if (size + n > capacity * MAX_LOAD) {
+                grow(size + n);
+            }
+            for (int i = 0; i < n; i++) {
+                increment(buffer[i], 1);
+            }
+        }
+
+        private void increment(long key, int count) {
+            long slot = mix(key) & slotMask;
+            while (true) {
+                ByteBuffer keyChunk = keys[(int) (slot >>> SLOT_CHUNK_SHIFT)];
+                int position = (int) (slot & SLOT_CHUNK_MASK);
+                long stored = keyChunk.getLong(position << 3);
+                if (stored == key || stored == 0L) {
+                    ByteBuffer countChunk = counts[(int) (slot >>> SLOT_CHUNK_SHIFT)];
+                    if (stored == 0L) {
+                        keyChunk.putLong(position << 3, key);
+                        size++;
+                    }
+                    countChunk.put(position, (byte) Math.min(MAX_COUNT, (countChunk.get(position) & 0xFF) + count));
+                    return;
+                }
+                slot = (slot + 1) & slotMask;
+            }
+        }
+
+        private int get(long key) {
+            long slot = mix(key) & slotMask;
+            while (true) {
+                int position = (int) (slot & SLOT_CHUNK_MASK);
+                long stored = keys[(int) (slot >>> SLOT_CHUNK_SHIFT)].getLong(position << 3);
+                if (stored == key) {
+                    return counts[(int) (slot >>> SLOT_CHUNK_SHIFT)].get(position) & 0xFF;
+                }
+                if (stored == 0L) {
+                    return 0;
+                }
+                slot = (slot + 1) & slotMask;
+            }
+        }
+
+        /***
+         * Rehash into a table that holds the given number of keys below the maximum load
+         */
+        private void grow(long keysNeeded) {
+            ByteBuffer[] oldKeys = keys;
+            ByteBuffer[] oldCounts = counts;
+            long newCapacity = capacity;
+            while (keysNeeded > newCapacity * MAX_LOAD) {
+                newCapacity <<= 1;
+            }
+            allocate(newCapacity);
+            size = 0;
+            for (int c = 0; c < oldKeys.length; c++) {
+                int slots = oldCounts[c].capacity();
+                for (int position = 0; position < slots; position++) {
+                    long key = oldKeys[c].getLong(position << 3);
+                    if (key != 0L) {
+                        increment(key, oldCounts[c].get(position) & 0xFF);
+                    }
+                }
+            }
+        }
+    }
+
+    private ReferenceMultiplicity(int kmerLength, boolean canonical, int numberOfPartitions, long expectedKmers) {
+        this.kmerLength = kmerLength;
+        this.canonical = canonical;
+        this.partitions = new Partition[numberOfPartitions];
+        this.partitionShift = 64 - Integer.numberOfTrailingZeros(numberOfPartitions);
+        long capacity = initialCapacity(expectedKmers, numberOfPartitions);
+        for (int i = 0; i < numberOfPartitions; i++) {
+            partitions[i] = new Partition(capacity);
+        }
+    }
+
+    /***
+     * Slots of every partition: the number of reference kmers is an upper bound of the distinct kmers, start at half of it
+     */
+    private static long initialCapacity(long expectedKmers, int numberOfPartitions) {
+        long perPartition = expectedKmers / 2 / numberOfPartitions + 1;
+        return Math.max(1024, Long.highestOneBit((long) Math.ceil(perPartition / MAX_LOAD)) << 1);
+    }
+
+    /***
+     * Check that the tables fit in the direct memory before they are allocated. The initial tables have to fit; the
+     * tables hold all distinct kmers after at most one doubling, while the old tables may not be freed yet, so up to
+     * three times the initial size can be needed.
+     */
+    private static void checkDirectMemory(long expectedKmers, int numberOfPartitions) {
+        long required = initialCapacity(expectedKmers, numberOfPartitions) * numberOfPartitions * 9;
+        long available = HelperFunctions.getAvailableDirectMemory();
+        String sizes = String.format("%.2f MB, up to %.2f MB when the tables grow, %.2f MB available", required / (1024.0 * 1024),
+                3 * required / (1024.0 * 1024), available / (1024.0 * 1024));
+        if (required > available) {
+            Logger.error(CLASS_NAME, "Not enough direct memory to count the reference kmer multiplicity (" + sizes + "), increase it with "
+                    + "-XX:MaxDirectMemorySize or store the counts in the reference cache (prepareReference --multiplicity)");
+        } else if (3 * required > available) {
+            Logger.warning(CLASS_NAME, "The reference kmer multiplicity may not fit in the direct memory (" + sizes + ")");
+        } else {
+            Logger.info(CLASS_NAME, "Reference kmer multiplicity tables: " + sizes);
+        }
+    }
+
+    /***
+     * Count the multiplicity of all kmers of the reference, on the given number of threads.
+     * The kmers are canonical if the lookups are (both strands), soft-masked bases are counted as well.
+     */
+    public static ReferenceMultiplicity count(FastaIndex index, int kmerLength, boolean canonical, int threads) {
+        if (kmerLength > MAX_KMER_LENGTH) {
+            Logger.error(CLASS_NAME, "Reference kmer multiplicity supports kmers up to " + MAX_KMER_LENGTH + " bases, got " + kmerLength);
+        }
+        long startTime = System.currentTimeMillis();
+        // chunks of every contig, the chunks overlap by k - 1 bases so every kmer is counted once
+        List<String> chunkContigs = new ArrayList<>();
+        List<long[]> chunkRanges = new ArrayList<>();
+        long totalBases = 0;
+        for (String name : index.getSequenceNames()) {
+            long length = index.getSequenceLength(name);
+            totalBases += length;
+            for (long start = 0; start + kmerLength <= length; start += CHUNK_BASES) {
+                chunkContigs.add(name);
+                chunkRanges.add(new long[]{start, Math.min(length, start + CHUNK_BASES + kmerLength - 1)});
+            }
+        }
+        int numberOfPartitions = Math.max(16, Integer.highestOneBit(Math.max(1, threads)) << 4);
+        checkDirectMemory(totalBases, numberOfPartitions);
+        ReferenceMultiplicity multiplicity = new ReferenceMultiplicity(kmerLength, canonical, numberOfPartitions, totalBases);
+
+        AtomicInteger nextChunk = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, threads));
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < Math.max(1, threads); t++) {
+                futures.add(executor.submit(() -> {
+                    Worker worker = multiplicity.new Worker();
+                    KmerScanner scanner = new KmerScanner(kmerLength, canonical);
+                    int chunk;
+                    while ((chunk = nextChunk.getAndIncrement()) < chunkRanges.size()) {
+                        long[] range = chunkRanges.get(chunk);
+                        byte[] bases = index.getBases(chunkContigs.get(chunk), range[0], (int) (range[1] - range[0]));
+                        if (bases == null) {
+                            Logger.error(CLASS_NAME, "Sequence is null for " + chunkContigs.get(chunk) + ":" + range[0] + "-" + range[1]);
+                            continue;
+                        }
+                        scanner.scan(bases, worker);
+                    }
+                    worker.flush();
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (Exception e) {
+            Logger.error(CLASS_NAME, "Error counting the reference kmers: " + e.getMessage());
+        } finally {
+            executor.shutdown();
+        }
+        Logger.info(CLASS_NAME, "Counted the reference kmer multiplicity in " + (System.currentTimeMillis() - startTime)
+                + " ms using " + threads + " threads (" + numberOfPartitions + " partitions)");
+        return multiplicity;
+    }
+
+    /***
+     * The kmers of a worker, buffered per partition
+     */
+    private class Worker implements KmerScanner.KmerVisitor {
+        private final long[][] buffers = new long[partitions.length][BUFFER_KMERS];
+        private final int[] sizes = new int[partitions.length];
+
+        @Override
+        public void visit(int position, long[] kmer, int signature) {
+            long key = kmer[0] | 1L;
+            int p = (int) (mix(key) >>> partitionShift);
+            buffers[p][sizes[p]++] = key;
+            if (sizes[p] == BUFFER_KMERS) {
+                flush(p);
+            }
+        }
+
+        private void flush(int p) {
+            Partition partition = partitions[p];
+            synchronized (partition) {
+                partition.add(buffers[p], sizes[p]);
+            }
+            sizes[p] = 0;
+        }
+
+        private void flush() {
+            for (int p = 0; p < partitions.length; p++) {
+                if (sizes[p] > 0) {
+                    flush(p);
+                }
+            }
+        }
+    }
+
+    /***
+     * Get the multiplicity (capped at MAX_COUNT) of the encoded kmer starting at the given offset of the array, 0 if
+     * it is not in the reference. Thread safe once counting is done.
+     */
+    public int getMultiplicity(long[] kmers, int offset) {
+        long key = kmers[offset] | 1L;
+        return partitions[(int) (mix(key) >>> partitionShift)].get(key);
+    }
+
+    /***
+     * 64 bit finaliser (splitmix64), the top bits select the partition and the low bits the slot
+     */
+    private static long mix(long x) {
+        x ^= x >>> 30;
+        x *= 0xBF58476D1CE4E5B9L;
+        x ^= x >>> 27;
+        x *= 0x94D049BB133111EBL;
+        return x ^ (x >>> 31);
+    }
+
+    public int getKmerLength() {
+        return kmerLength;
+    }
+
+    public boolean isCanonical() {
+        return canonical;
+    }
+
+    /***
+     * Report the number of distinct kmers, and how many of them occur more than maxMultiplicity times
+     */
+    public void printSummary(int maxMultiplicity) {
+        long distinct = 0;
+        long repeated = 0;
+        long capacity = 0;
+        for (Partition partition : partitions) {
+            distinct += partition.size;
+            capacity += partition.capacity;
+            for (int c = 0; c < partition.counts.length; c++) {
+                ByteBuffer counts = partition.counts[c];
+                for (int position = 0; position < counts.capacity(); position++) {
+                    if ((counts.get(position) & 0xFF) > maxMultiplicity) {
+                        repeated++;
+                    }
+                }
+            }
+        }
+        Logger.info(CLASS_NAME, "============= REFERENCE MULTIPLICITY =============");
+        Logger.info(CLASS_NAME, String.format("%-25s: %d", "Kmer length", kmerLength));
+        Logger.info(CLASS_NAME, String.format("%-25s: %b", "Both strands", canonical));
+        Logger.info(CLASS_NAME, String.format("%-25s: %d", "Distinct kmers", distinct));
+        Logger.info(CLASS_NAME, String.format("%-25s: %d (> %d copies)", "Repeated kmers", repeated, maxMultiplicity));
+        Logger.info(CLASS_NAME, String.format("%-25s: %d (load %.2f)", "Slots", capacity, distinct / (double) capacity));
+        Logger.info(CLASS_NAME, String.format("%-25s: %.2f MB", "Size", capacity * 9 / (1024.0 * 1024)));
+        Logger.info(CLASS_NAME, "==================================================");
+    }
+}
+//EOF
@@ -0,0 +1,127 @@
+package nl.wur.bis.kcftools.Data;
+
+import nl.wur.bis.kcftools.Utils.Logger;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.*;
+
+/***
+ * This class holds the regions of a BED file (0-based, end exclusive) as sorted, merged intervals per contig, and
+ * masks the bases of a subsequence that fall in them (they are replaced by 'N', so the kmer scanner treats them as
+ * breaks). Finding the first interval of a subsequence is a binary search, the rest is a walk over the overlapping
+ * intervals, so windows outside the mask cost almost nothing.
+ */
+public class SequenceMask {
+    // start and end of the merged intervals of every contig, in order
+    private final Map<String, long[][]> intervals = new HashMap<>();
+    private long maskedBases = 0;
+    private int intervalCount = 0;
+    private static final byte MASK_BASE = 'N';
+    private static final String CLASS_NAME = SequenceMask.class.getSimpleName();
+
+    public SequenceMask(String bedFile) throws IOException {
+        Map<String, List<long[]>> regions = new LinkedHashMap<>();
+        try (BufferedReader reader = new BufferedReader(new FileReader(bedFile))) {
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                if (line.isEmpty() || line.startsWith("#") || line.startsWith("track") || line.startsWith("browser")) {
+                    continue;
+                }
+                String[] fields = line.split("\t");
+                if (fields.length < 3) {
+                    Logger.error(CLASS_NAME, "Invalid BED line " + lineNumber + " in " + bedFile + ": " + line);
+                }
+                long start;
+                long end;
+                try {
+                    start = Long.parseLong(fields[1].trim());
+                    end = Long.parseLong(fields[2].trim());
+                } catch (NumberFormatException e) {
+                    Logger.error(CLASS_NAME, "Invalid BED coordinates at line " + lineNumber + " in " + bedFile + ": " + line);
+                    continue;
+                }
+                if (start < 0 || end < start) {
+                    Logger.error(CLASS_NAME, "Invalid BED interval at line " + lineNumber + " in " + bedFile + ": " + line);
+                }
+                if (end > start) {
+                    regions.computeIfAbsent(fields[0], k -> new ArrayList<>()).add(new long[]{start, end});
+                }
+            }
+        }
+        for (Map.Entry<String, List<long[]>> entry : regions.entrySet()) {
+            intervals.put(entry.getKey(), merge(entry.getValue()));
+        }
+    }
+
+    /***
+     * Sort the intervals of a contig and merge the overlapping (and adjacent) ones
+     */
+    private long[][] merge(List<long[]> regions) {
+        regions.sort(Comparator.comparingLong(r -> r[0]));
+        long[] starts = new long[regions.size()];
+        long[] ends = new long[regions.size()];
+        int n = 0;
+        for (long[] region : regions) {
+            if (n > 0 && region[0] <= ends[n - 1]) {
+                ends[n - 1] = Math.max(ends[n - 1], region[1]);
+            } else {
+                starts[n] = region[0];
+                ends[n] = region[1];
+                n++;
+            }
+        }
+        for (int i = 0; i < n; i++) {
+            maskedBases += ends[i] - starts[i];
+        }
+        intervalCount += n;
+        return new long[][]{Arrays.copyOf(starts, n), Arrays.copyOf(ends, n)};
+    }
+
+    /***
+     * Mask the bases of the subsequence of the contig that starts at the given (0-based) position, in place
+     */
+    public void mask(String contig, long start, byte[] bases) {
+        long[][] contigIntervals = intervals.get(contig);
+        if (contigIntervals == null) {
+            return;
+        }
+        long[] starts = contigIntervals[0];
+        long[] ends = contigIntervals[1];
+        // first interval that ends after the start of the subsequence
+        int low = 0;
+        int high = ends.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (ends[mid] <= start) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        long end = start + bases.length;
+        for (int i = low; i < starts.length && starts[i] < end; i++) {
+            Arrays.fill(bases, (int) (Math.max(starts[i], start) - start), (int) (Math.min(ends[i], end) - start), MASK_BASE);
+        }
+    }
+
+    /***
+     * Report the size of the mask, and warn about the contigs that are not in the reference
+     */
+    public void printSummary(Collection<String> contigs) {
+        Logger.info(CLASS_NAME, "Masked regions: " + intervalCount + " intervals, " + maskedBases + " bases on " + intervals.size() + " contigs");
+        List<String> unknown = new ArrayList<>();
+        for (String contig : intervals.keySet()) {
+            if (!contigs.contains(contig)) {
+                unknown.add(contig);
+            }
+        }
+        if (!unknown.isEmpty()) {
+            Logger.warning(CLASS_NAME, unknown.size() + " masked contigs are not in the reference, e.g. " + unknown.get(0));
+        }
+    }
+}
+//EOF
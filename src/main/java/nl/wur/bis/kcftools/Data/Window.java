@@ -3,8 +3,12 @@ package nl.wur.bis.kcftools.Data;
 import nl.wur.bis.kcftools.Utils.Logger;
 import org.jetbrains.annotations.NotNull;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.NoSuchElementException;
 import java.util.Objects;
 
 /***
@@ -14,10 +18,12 @@ public class Window implements Comparable<Window> {
     private final String CLASSNAME = this.getClass().getSimpleName();
     String windowId;
     String sequenceName;
-    int start;
-    int end;
+    long start;
+    long end;
     int effLength;
     int totalKmers;
+    // reference kmers skipped as repeats (getVariations --unique-only), -1 if not screened
+    int repeatKmers;
     HashMap<String, Data> data;
     int minObservedKmers;
     int maxObservedKmers;
@@ -29,23 +35,120 @@ public class Window implements Comparable<Window> {
     double maxScore;
     double meanScore;
 
-    public Window(String windowId, String sequenceName, int start, int end){
+    public Window(String windowId, String sequenceName, long start, long end){
         this.windowId = windowId;
         this.sequenceName = sequenceName;
         this.start = start;
         this.end = end;
         this.effLength = 0;
         this.totalKmers = 0;
+        this.repeatKmers = -1;
         this.data = new LinkedHashMap<>();
     }
 
+    /***
+     * Split a sequence into windows of windowSize bases. With a step size, the windows start every stepSize bases
+     * (sliding windows), otherwise consecutive windows overlap by kmerSize - 1 bases, so no kmer is lost at a boundary.
+     * Windows shorter than a kmer are skipped.
+     */
+    public static List<Window> tile(String sequenceName, long sequenceLength, int windowSize, int stepSize, int kmerSize) {
+        List<Window> windows = new ArrayList<>();
+        tiles(sequenceName, sequenceLength, windowSize, stepSize, kmerSize).forEachRemaining(windows::add);
+        return windows;
+    }
+
+    /***
+     * Generate the windows of tile() one at a time, so the windows of a sequence are never all in memory
+     */
+    public static Iterator<Window> tiles(String sequenceName, long sequenceLength, int windowSize, int stepSize, int kmerSize) {
+        return new Tiler(sequenceName, sequenceLength, windowSize, stepSize, kmerSize);
+    }
+
+    /***
+     * Count the windows of tile() without creating them
+     */
+    public static long countTiles(long sequenceLength, int windowSize, int stepSize, int kmerSize) {
+        Tiler tiler = new Tiler(null, sequenceLength, windowSize, stepSize, kmerSize);
+        long count = 0;
+        while (tiler.advance()) {
+            count++;
+        }
+        return count;
+    }
+
+    /***
+     * Walks the window coordinates of a sequence
+     */
+    private static class Tiler implements Iterator<Window> {
+        private final String sequenceName;
+        private final long sequenceLength;
+        private final int windowSize;
+        private final int stepSize;
+        private final int kmerSize;
+        // start of the next sliding window, or end of the last tiled window
+        private long position = 0;
+        private long start;
+        private long end;
+        private boolean ready = false;
+
+        private Tiler(String sequenceName, long sequenceLength, int windowSize, int stepSize, int kmerSize) {
+            this.sequenceName = sequenceName;
+            this.sequenceLength = sequenceLength;
+            this.windowSize = windowSize;
+            this.stepSize = stepSize;
+            this.kmerSize = kmerSize;
+        }
+
+        /***
+         * Move to the next window that is at least a kmer long, false at the end of the sequence
+         */
+        private boolean advance() {
+            while (position < sequenceLength) {
+                if (stepSize > 0) {
+                    // Sliding window mode
+                    start = position;
+                    end = Math.min(start + windowSize, sequenceLength);
+                    position += stepSize; // slide by stepSize
+                } else {
+                    // Old tiling mode (non-overlapping but with kmer overlap at boundary)
+                    start = Math.max(0, position - kmerSize + 1);
+                    end = Math.min(start + windowSize, sequenceLength);
+                    position = end;
+                }
+                if (end - start >= kmerSize) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (!ready) {
+                ready = advance();
+            }
+            return ready;
+        }
+
+        @Override
+        public Window next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            ready = false;
+            return new Window(sequenceName + "_" + start, sequenceName, start, end);
+        }
+    }
+
     public Window(String[] fields, String[] samples, double[] weights) {
         this.sequenceName = fields[0];
-        this.start = Integer.parseInt(fields[1]);
-        this.end = Integer.parseInt(fields[2]);
+        this.start = Long.parseLong(fields[1]);
+        this.end = Long.parseLong(fields[2]);
         this.windowId = fields[3];
         this.totalKmers = Integer.parseInt(fields[4]);
-        this.effLength = Integer.parseInt(getInfoFieldMap(fields[5]).get("EFFLEN"));
+        HashMap<String, String> info = getInfoFieldMap(fields[5]);
+        this.effLength = Integer.parseInt(info.get("EFFLEN"));
+        this.repeatKmers = info.containsKey("RK") ? Integer.parseInt(info.get("RK")) : -1;
         this.data = new LinkedHashMap<>();
         for (int i = 7; i < fields.length; i++) {
             String sampleName = samples[i - 7];
@@ -148,7 +251,8 @@ public class Window implements Comparable<Window> {
                 "MO=" + String.format("%.2f", meanObservedKmers) + ";" +
                 "IV=" + minVariations + ";" +
                 "XV=" + maxVariations + ";" +
-                "MV=" + meanVariations;
+                "MV=" + meanVariations +
+                (repeatKmers >= 0 ? ";RK=" + repeatKmers : "");
     }
 
     /***
@@ -214,7 +318,7 @@ public class Window implements Comparable<Window> {
     }
 
     public int length() {
-        return end - start;
+        return (int) (end - start);
     }
 
     public synchronized void addTotalKmers(int totalKmersCount){
@@ -248,9 +352,9 @@ public class Window implements Comparable<Window> {
     public int compareTo(@NotNull Window o) {
         int seqCompare = this.sequenceName.compareTo(o.sequenceName);
         if (seqCompare != 0) return seqCompare;
-        int startCompare = Integer.compare(this.start, o.start);
+        int startCompare = Long.compare(this.start, o.start);
         if (startCompare != 0) return startCompare;
-        return Integer.compare(this.end, o.end);
+        return Long.compare(this.end, o.end);
     }
 
     public HashMap<String, Data> getData() {
@@ -261,11 +365,11 @@ public class Window implements Comparable<Window> {
         return sequenceName;
     }
 
-    public int getStart() {
+    public long getStart() {
         return start;
     }
 
-    public int getEnd() {
+    public long getEnd() {
         return end;
     }
 
@@ -324,6 +428,14 @@ public class Window implements Comparable<Window> {
         return effLength;
     }
 
+    public void setRepeatKmers(int repeatKmers) {
+        this.repeatKmers = repeatKmers;
+    }
+
+    public int getRepeatKmers() {
+        return repeatKmers;
+    }
+
     public int getInnerDistance(String sample) {
         return data.get(sample).getInnerDistance();
     }
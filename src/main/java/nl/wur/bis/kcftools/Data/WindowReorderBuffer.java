@@ -0,0 +1,110 @@
+package nl.wur.bis.kcftools.Data;
+
+import nl.wur.bis.kcftools.Utils.Logger;
+
+/***
+ * This class writes the windows of a KCF file in their output order while they are processed out of order. Every
+ * window has an ordinal (its index in the output), a finished window is parked in a ring buffer at its ordinal, and
+ * the windows are written as soon as all earlier ones are.
+ * The producer reserves the ordinal of a window before handing it out, which blocks while the ring is full. At most
+ * capacity windows are then in flight (being processed or waiting to be written), whatever the size of the genome.
+ * The header already holds the number of windows, so a window that fails (or can not be written) fails the run: the
+ * failure is recorded, nothing more is written, and the producer stops at its next reserve() or at check().
+ */
+public class WindowReorderBuffer {
+    private static final String CLASS_NAME = WindowReorderBuffer.class.getSimpleName();
+    private final KCFWriter writer;
+    private final int capacity;
+    private final Window[] windows;
+    private final boolean[] finished;
+    // ordinal of the next window to write
+    private int next = 0;
+    private int written = 0;
+    // the first failure, after which no window is written
+    private String failure;
+    private Exception failureCause;
+
+    public WindowReorderBuffer(KCFWriter writer, int capacity) {
+        this.writer = writer;
+        this.capacity = capacity;
+        this.windows = new Window[capacity];
+        this.finished = new boolean[capacity];
+    }
+
+    /***
+     * Wait until the window with the given ordinal fits in the buffer, stop if a window failed
+     */
+    public synchronized void reserve(int ordinal) throws InterruptedException {
+        while (failure == null && ordinal >= (long) next + capacity) {
+            wait();
+        }
+        check();
+    }
+
+    /***
+     * Hand in the finished window of a reserved ordinal, and write the windows that are now in order
+     */
+    public synchronized void put(int ordinal, Window window) {
+        if (failure != null) {
+            return;
+        }
+        int slot = ordinal % capacity;
+        windows[slot] = window;
+        finished[slot] = true;
+        int first = next;
+        while (finished[next % capacity]) {
+            slot = next % capacity;
+            try {
+                writer.writeWindow(windows[slot]);
+            } catch (RuntimeException e) {
+                fail("Error writing window " + windows[slot].getWindowId(), e);
+                return;
+            }
+            written++;
+            windows[slot] = null;
+            finished[slot] = false;
+            next++;
+        }
+        if (next != first) {
+            notifyAll();
+        }
+    }
+
+    /***
+     * Record that a window could not be processed (the first failure is kept), and wake up the producer
+     */
+    public synchronized void fail(String message, Exception cause) {
+        if (failure == null) {
+            // report the underlying error (e.g. the IOException of the writer)
+            Throwable root = cause;
+            while (root != null && root.getCause() != null) {
+                root = root.getCause();
+            }
+            failure = root == null ? message : message + ": " + root.getMessage();
+            failureCause = cause;
+        }
+        notifyAll();
+    }
+
+    /***
+     * Stop if a window failed
+     */
+    public synchronized void check() {
+        if (failure != null) {
+            Logger.error(CLASS_NAME, failure);
+            throw new RuntimeException(failure, failureCause);
+        }
+    }
+
+    /***
+     * Get the number of windows written so far
+     */
+    public synchronized int getWritten() {
+        return written;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+}
+//EOF
@@ -15,6 +15,9 @@ import java.util.Locale;
         mixinStandardHelpOptions = true, versionProvider = Configs.VersionProvider.class,
         subcommands = {
                 GetVariants.class,
+                BuildBloom.class,
+                BuildIndex.class,
+                PrepareReference.class,
                 Cohort.class,
                 FindIBS.class,
                 SplitKCF.class,
@@ -0,0 +1,96 @@
+package nl.wur.bis.kcftools.Plugins;
+
+import nl.wur.bis.kcftools.Data.KMC;
+import nl.wur.bis.kcftools.Data.KMCOptions;
+import nl.wur.bis.kcftools.Data.KmerBloomFilter;
+import nl.wur.bis.kcftools.Utils.HelperFunctions;
+import nl.wur.bis.kcftools.Utils.Logger;
+
+import picocli.CommandLine;
+import picocli.CommandLine.Command;
+import picocli.CommandLine.Option;
+import java.io.IOException;
+import java.util.concurrent.Callable;
+
+/***
+ * This is a command line plugin that builds a blocked Bloom filter sidecar (<prefix>.kcfbloom) from a KMC database.
+ * getVariations uses the filter found next to the KMC database to skip the suffix search for kmers that are
+ * definitely absent.
+ */
+@Command(name = "buildBloom", description = "Build a Bloom filter sidecar of a KMC database to speed up getVariations", sortOptions = false)
+public class BuildBloom implements Callable<Integer>, Runnable {
+    @Option(names = {"-k", "--kmc"}, description = "KMC database prefix", required = true)
+    private String kmcDBprefix;
+    @Option(names = {"-o", "--output"}, description = "Output file name [<kmc prefix>.kcfbloom]", required = false)
+    private String outFile;
+    @Option(names = {"-e", "--fpr"}, description = "Target false positive rate [0.01]", required = false)
+    private double falsePositiveRate = 0.01;
+    @Option(names = {"-c", "--min-k-count"}, description = "Only add kmers with at least this count [1]", required = false)
+    private int minKmerCount = 1;
+    @Option(names = {"-t", "--threads"}, description = "Number of threads [2]", required = false)
+    private int nThreads = 2;
+
+    private final String CLASS_NAME = this.getClass().getSimpleName();
+
+    public BuildBloom() {
+    }
+
+    @Override
+    public Integer call() throws IOException, InterruptedException {
+        HelperFunctions.printCommandLine(new CommandLine(this), CLASS_NAME);
+        validateCMD();
+        buildBloom();
+        return 0;
+    }
+
+    @Override
+    public void run() {
+        try {
+            call();
+        } catch (IOException | InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /***
+     * Build the filter: count the kmers passing the minimum count to size it, then add them from several threads
+     */
+    private void buildBloom() throws IOException {
+        if (outFile == null) {
+            outFile = kmcDBprefix + KmerBloomFilter.EXTENSION;
+        }
+        KMCOptions kmcOptions = new KMCOptions();
+        kmcOptions.setSegmentMapped(true);
+        kmcOptions.setThreads(nThreads);
+        try (KMC kmc = new KMC(kmcDBprefix, kmcOptions)) {
+            long expectedKmers = minKmerCount <= kmc.getMinCount()
+                    ? kmc.getTotalKmers()
+                    : kmc.forEachRecord(nThreads, minKmerCount, (kmer, count) -> {});
+            Logger.info(CLASS_NAME, "Kmers with count >= " + minKmerCount + ": " + expectedKmers);
+
+            try (KmerBloomFilter filter = KmerBloomFilter.create(outFile, kmc.getKmerLength(), kmc.isBothStrands(),
+                    minKmerCount, expectedKmers, falsePositiveRate, kmc.getFingerprint())) {
+                long added = kmc.forEachRecord(nThreads, minKmerCount, (kmer, count) -> filter.add(kmer, 0));
+                filter.setNumKeys(added);
+                filter.printSummary();
+            }
+        }
+        Logger.info(CLASS_NAME, "Bloom filter written to " + outFile);
+    }
+
+    private void validateCMD() {
+        if (!HelperFunctions.checkFileExists(kmcDBprefix + ".kmc_pre") || !HelperFunctions.checkFileExists(kmcDBprefix + ".kmc_suf")) {
+            Logger.error(CLASS_NAME, "KMC database not found: " + kmcDBprefix);
+        }
+        if (falsePositiveRate <= 0 || falsePositiveRate >= 1) {
+            Logger.error(CLASS_NAME, "False positive rate should be between 0 and 1");
+        }
+        if (minKmerCount < 1) {
+            Logger.error(CLASS_NAME, "Minimum kmer count should be at least 1");
+        }
+        if (nThreads <= 0) {
+            Logger.error(CLASS_NAME, "Number of threads should be greater than 0");
+        }
+    }
+}
+//EOF
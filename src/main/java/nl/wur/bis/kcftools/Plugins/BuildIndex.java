@@ -0,0 +1,109 @@
+package nl.wur.bis.kcftools.Plugins;
+
+import nl.wur.bis.kcftools.Data.KMC;
+import nl.wur.bis.kcftools.Data.KMCOptions;
+import nl.wur.bis.kcftools.Data.KmerHashTable;
+import nl.wur.bis.kcftools.Utils.HelperFunctions;
+import nl.wur.bis.kcftools.Utils.Logger;
+
+import picocli.CommandLine;
+import picocli.CommandLine.Command;
+import picocli.CommandLine.Option;
+import java.io.IOException;
+import java.util.concurrent.Callable;
+
+/***
+ * This is a command line plugin that converts a KMC database into a kcftools index (.kcfidx), a memory mapped hash
+ * table of the kmer counts, which getVariations can query with --index instead of the KMC database.
+ * The records are streamed from the KMC suffix file by several threads straight into the mapped table.
+ */
+@Command(name = "index", description = "Convert a KMC database into a hashed kmer index for getVariations", sortOptions = false)
+public class BuildIndex implements Callable<Integer>, Runnable {
+    @Option(names = {"-k", "--kmc"}, description = "KMC database prefix", required = true)
+    private String kmcDBprefix;
+    @Option(names = {"-o", "--output"}, description = "Output file name [<kmc prefix>.kcfidx]", required = false)
+    private String outFile;
+    @Option(names = {"-c", "--min-k-count"}, description = "Only add kmers with at least this count [1]", required = false)
+    private int minKmerCount = 1;
+    @Option(names = {"-b", "--count-bytes"}, description = "Bytes per count (1, 2 or 4), higher counts are capped [KMC counter size]", required = false)
+    private int countBytes = 0;
+    @Option(names = {"-l", "--load-factor"}, description = "Maximum load factor of the hash table [0.7]", required = false)
+    private double loadFactor = 0.7;
+    @Option(names = {"-t", "--threads"}, description = "Number of threads [2]", required = false)
+    private int nThreads = 2;
+
+    private final String CLASS_NAME = this.getClass().getSimpleName();
+
+    public BuildIndex() {
+    }
+
+    @Override
+    public Integer call() throws IOException, InterruptedException {
+        HelperFunctions.printCommandLine(new CommandLine(this), CLASS_NAME);
+        validateCMD();
+        buildIndex();
+        return 0;
+    }
+
+    @Override
+    public void run() {
+        try {
+            call();
+        } catch (IOException | InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /***
+     * Build the index: count the kmers passing the minimum count to size the table, then insert them from several threads
+     */
+    private void buildIndex() throws IOException {
+        if (outFile == null) {
+            outFile = kmcDBprefix + KmerHashTable.EXTENSION;
+        }
+        KMCOptions kmcOptions = new KMCOptions();
+        kmcOptions.setSegmentMapped(true);
+        kmcOptions.setThreads(nThreads);
+        try (KMC kmc = new KMC(kmcDBprefix, kmcOptions)) {
+            if (kmc.getKmerLength() > KmerHashTable.MAX_KMER_LENGTH) {
+                Logger.error(CLASS_NAME, "kcftools index supports kmers up to " + KmerHashTable.MAX_KMER_LENGTH
+                        + " bases, the KMC database has k=" + kmc.getKmerLength() + " (use getVariations with --kmc instead)");
+            }
+            if (countBytes == 0) {
+                countBytes = kmc.getCounterSize() <= 2 ? Math.max(1, kmc.getCounterSize()) : 4;
+            }
+            int tableMinCount = Math.max(minKmerCount, kmc.getMinCount());
+            long expectedKmers = minKmerCount <= kmc.getMinCount()
+                    ? kmc.getTotalKmers()
+                    : kmc.forEachRecord(nThreads, minKmerCount, (kmer, count) -> {});
+            Logger.info(CLASS_NAME, "Kmers with count >= " + tableMinCount + ": " + expectedKmers);
+
+            try (KmerHashTable table = KmerHashTable.create(outFile, kmc.getKmerLength(), kmc.isBothStrands(),
+                    tableMinCount, kmc.getMaxCount(), countBytes, expectedKmers, loadFactor)) {
+                long added = kmc.forEachRecord(nThreads, minKmerCount, (kmer, count) -> table.put(kmer, 0, count));
+                table.setNumKeys(added);
+                table.printSummary();
+            }
+        }
+        Logger.info(CLASS_NAME, "Index written to " + outFile);
+    }
+
+    private void validateCMD() {
+        if (!HelperFunctions.checkFileExists(kmcDBprefix + ".kmc_pre") || !HelperFunctions.checkFileExists(kmcDBprefix + ".kmc_suf")) {
+            Logger.error(CLASS_NAME, "KMC database not found: " + kmcDBprefix);
+        }
+        if (minKmerCount < 1) {
+            Logger.error(CLASS_NAME, "Minimum kmer count should be at least 1");
+        }
+        if (countBytes != 0 && countBytes != 1 && countBytes != 2 && countBytes != 4) {
+            Logger.error(CLASS_NAME, "Count width should be 1, 2 or 4 bytes");
+        }
+        if (loadFactor <= 0 || loadFactor >= 1) {
+            Logger.error(CLASS_NAME, "Load factor should be between 0 and 1");
+        }
+        if (nThreads <= 0) {
+            Logger.error(CLASS_NAME, "Number of threads should be greater than 0");
+        }
+    }
+}
+//EOF
@@ -130,10 +130,10 @@ public class CompareIBS implements Callable<Integer>, Runnable {
             Logger.error("CompareIBS", "Sequence " + refOneFields[2] + " not found in reference one");
         }
         Logger.info("CompareIBS", "Comparing " + refOneFields[2] + " and " + refTwoFields[2]);
-        Fasta fastaOne = new Fasta(Integer.parseInt(refOneFields[0]) , refOneFields[2], indexOne.getSequence(refOneFields[2], Integer.parseInt(refOneFields[3]), Integer.parseInt(refOneFields[5])));
+        Fasta fastaOne = new Fasta(Integer.parseInt(refOneFields[0]) , refOneFields[2], indexOne.getSequence(refOneFields[2], Long.parseLong(refOneFields[3]), Integer.parseInt(refOneFields[5])));
         List<Kmer> kmersOne = fastaOne.getKmersList(kmc.getKmerLength(), kmc.getPrefixLength(), false);
         stats[0] = kmersOne.size();
-        Fasta fastaTwo = new Fasta(Integer.parseInt(refTwoFields[0]) , refTwoFields[2], indexTwo.getSequence(refTwoFields[2], Integer.parseInt(refTwoFields[3]), Integer.parseInt(refTwoFields[5])));
+        Fasta fastaTwo = new Fasta(Integer.parseInt(refTwoFields[0]) , refTwoFields[2], indexTwo.getSequence(refTwoFields[2], Long.parseLong(refTwoFields[3]), Integer.parseInt(refTwoFields[5])));
         List<Kmer> kmersTwo = fastaTwo.getKmersList(kmc.getKmerLength(), kmc.getPrefixLength(), false);
         stats[1] = kmersTwo.size();
         Logger.info("CompareIBS", "Total kmers " + kmersOne.size() + " and " + kmersTwo.size());
@@ -223,8 +223,8 @@ public class FindIBS implements Callable<Integer>, Runnable {
         try (BufferedWriter bedWriter = new BufferedWriter(new FileWriter(outFile.replace(".kcf", "." + sample + ".bed")))) {
             for (List<Window> block : blocks.values()) {
                 if (!block.isEmpty()) {
-                    int start = block.get(0).getStart();
-                    int end = block.get(block.size() - 1).getEnd();
+                    long start = block.get(0).getStart();
+                    long end = block.get(block.size() - 1).getEnd();
                     bedWriter.write(block.get(0).getSequenceName() + "\t" + start + "\t" + end + "\n");
                 }
             }
@@ -242,8 +242,8 @@ public class FindIBS implements Callable<Integer>, Runnable {
         int ibsBlocks = 0;
         float meanScore = 0;
 
-        int start = block.get(0).getStart();
-        int end = block.get(block.size() - 1).getEnd();
+        long start = block.get(0).getStart();
+        long end = block.get(block.size() - 1).getEnd();
 
         for (Window window : block) {
             meanScore += window.getScore(sample);
@@ -6,10 +6,17 @@ import nl.wur.bis.kcftools.Utils.Logger;
 
 import picocli.CommandLine;
 import picocli.CommandLine.*;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
 
 /***
  * This is a command line plugin that may extract kmers from the reference file and compare them to the KMC database
@@ -21,14 +28,17 @@ public class GetVariants implements Callable<Integer>, Runnable {
     @Option(names = {"-r", "--reference"}, description = "Reference file name", required = true)
     private String refFasta;
     // in KMC database prefix
-    @Option(names = {"-k", "--kmc"}, description = "KMC database prefix", required = true)
-    private String kmcDBprefix;
+    @Option(names = {"-k", "--kmc"}, description = "KMC database prefix, several comma separated prefixes are summed (or use --index)", required = false, split = ",")
+    private String[] kmcDBprefixes;
     // in output file name
     @Option(names = {"-o", "--output"}, description = "Output file name", required = true)
     private String outFile;
     // sample name
-    @Option(names = {"-s", "--sample"}, description = "Sample name", required = true)
+    @Option(names = {"-s", "--sample"}, description = "Sample name", required = false)
     private String sampleName;
+    // manifest of samples and their KMC databases, for a multi-sample KCF in one pass
+    @Option(names = {"--manifest"}, description = "Tab separated file of sample name and KMC database prefix(es) per line, to write a multi-sample KCF in one pass (instead of --kmc and --sample)", required = false)
+    private String manifestFile;
     // feature type: window or gene or transcript
     @Option(names = {"-f", "--feature"}, description = "Feature type (\"window\" or \"gene\" or \"transcript\")", required = true)
     private String featureType;
@@ -36,7 +46,7 @@ public class GetVariants implements Callable<Integer>, Runnable {
     @Option(names = {"-t", "--threads"}, description = "Number of threads [2]", required = false)
     private int nThreads = 2;
     // load kmc into memory
-    @Option(names = {"-m", "--memory"}, description = "Load KMC database into memory", required = false)
+    @Option(names = {"-m", "--memory"}, description = "Load KMC database into (off-heap) memory", required = false)
     private boolean loadMemory = false;
     // inner kmer distance weight
     @Option(names = {"--wi"}, description = "Inner kmer distance weight [0.3]", required = false)
@@ -59,11 +69,68 @@ public class GetVariants implements Callable<Integer>, Runnable {
     // step size for sliding window
     @Option(names = {"-p", "--step"}, description = "Step size for sliding window [window size]", required = false)
     private int stepSize = 0;
+    // memory budget for the sampled suffix index of the KMC database
+    @Option(names = {"--sample-index-mb"}, description = "Memory budget (MB) for the sampled KMC suffix index, 0 to disable [0]", required = false)
+    private int sampleIndexMB = 0;
+    @Option(names = {"--mmap-segment"}, description = "Memory map the KMC suffix file as one segment shared by all threads", required = false)
+    private boolean mmapSegment = false;
+    @Option(names = {"--warmup", "--prefault"}, description = "Touch all pages of the memory mapped KMC suffix file before processing", required = false)
+    private boolean warmUp = false;
+    @Option(names = {"--bloom"}, description = "Bloom filter sidecar of the KMC database (see buildBloom) [<kmc prefix>.kcfbloom if present]", required = false)
+    private String bloomFile;
+    @Option(names = {"--no-bloom"}, description = "Do not use the Bloom filter sidecar of the KMC database", required = false)
+    private boolean noBloom = false;
+    @Option(names = {"--map-prefix"}, description = "Keep the KMC prefix array memory mapped instead of copying it to the heap", required = false)
+    private boolean mapPrefix = false;
+    @Option(names = {"--prefix-cache"}, description = "Use (and create) the open cache of the KMC prefix file (<kmc prefix>.kcfpre)", required = false)
+    private boolean prefixCache = false;
+    @Option(names = {"--lookup-cache-mb"}, description = "Memory (MB) for a kmer count cache in front of the lookups, 0 to disable (k <= 32) [0]", required = false)
+    private int lookupCacheMB = 0;
+    @Option(names = {"--partition-bins"}, description = "Route the kmers to lookup workers that each own a range of KMC signature bins, instead of one task per window", required = false)
+    private boolean partitionBins = false;
+    @Option(names = {"--search-group"}, description = "Search the window kmers with interleaved binary searches in groups of this size (e.g. 8-32), 0 for the sorted merge [0]", required = false)
+    private int searchGroupSize = 0;
+    // kcftools index (hashed kmer counts) to query instead of the KMC database
+    @Option(names = {"--index"}, description = "kcftools index file (see index) to query instead of the KMC database", required = false)
+    private String indexFile;
+    // sort-merge join with the KMC database, for storage where random access is slow
+    @Option(names = {"--sort-merge"}, description = "Sort all reference kmers in KMC order and read the KMC suffix file in one sequential pass", required = false)
+    private boolean sortMerge = false;
+    @Option(names = {"--sort-memory-mb"}, description = "Memory (MB) for the kmer sort buffer of --sort-merge, larger sorts spill to --tmp-dir [1024]", required = false)
+    private int sortMemoryMB = 1024;
+    @Option(names = {"--tmp-dir"}, description = "Directory for the temporary files of --sort-merge [java.io.tmpdir]", required = false)
+    private String tmpDir = System.getProperty("java.io.tmpdir");
+    // masked reference bases are breaks in the kmer scan, their kmers are not looked up and not counted
+    @Option(names = {"--soft-mask"}, description = "Skip the kmers with soft-masked (lower case) reference bases", required = false)
+    private boolean softMask = false;
+    @Option(names = {"--mask"}, description = "BED file of reference regions whose kmers are skipped (window model)", required = false)
+    private String maskFile;
+    // window kmers prepared once per reference (see prepareReference)
+    @Option(names = {"--ref-cache"}, description = "Reference kmer cache (see prepareReference) to read the window kmers from, instead of scanning the reference (window model)", required = false)
+    private String refCacheFile;
+    // reference kmers that occur more than this many times in the reference are not looked up (see ReferenceMultiplicity)
+    @Option(names = {"--unique-only"}, description = "Skip the reference kmers that occur more than this many times in the reference (1 for single-copy kmers only), 0 to disable (k <= 31) [0]", required = false)
+    private int maxMultiplicity = 0;
 
     private final String CLASS_NAME = this.getClass().getSimpleName();
+    // windows of about this many bases are scanned and routed together by the bin partitioned scheduler
+    private static final int PARTITION_CHUNK_BASES = 1 << 20;
+    // windows in flight (processed or waiting to be written in order) per thread
+    private static final int WINDOWS_IN_FLIGHT_PER_THREAD = 1024;
     private FastaIndex index;
     private int kmerSize;
     private GTF gtf;
+    private SequenceMask mask;
+    private ReferenceKmerCache refCache;
+    private ReferenceMultiplicity multiplicity;
+    private final Map<String, Integer> contigIndices = new HashMap<>();
+    // gene and transcript windows of every sequence, from counting the windows until they are handed out
+    private final Map<String, List<Window>> featureWindows = new HashMap<>();
+    // kmer batch per worker thread, reused across windows
+    private ThreadLocal<KmerBatch> batches;
+    // samples of the run (the --sample or the manifest samples) and their KMC database prefixes
+    private final List<String> sampleNames = new ArrayList<>();
+    private final List<String[]> samplePrefixes = new ArrayList<>();
 //    private final double[] weights = new double[] {innerDistanceWeight, tailDistanceWeight, kmerRatioWeight};
 
     public GetVariants() {
@@ -91,13 +158,33 @@ public class GetVariants implements Callable<Integer>, Runnable {
      */
     public void getVariations() throws IOException {
 
-        sampleName = cleanSampleName(sampleName);
-        KMC kmc = new KMC(kmcDBprefix, loadMemory);
+        if (manifestFile != null) {
+            readManifest();
+        } else {
+            sampleNames.add(cleanSampleName(sampleName));
+            samplePrefixes.add(kmcDBprefixes);
+        }
+        int nSamples = sampleNames.size();
+        List<KmerBloomFilter> bloomFilters = new ArrayList<>();
+        List<KmerCountCache> lookupCaches = new ArrayList<>();
+        KmerLookup[] lookups = new KmerLookup[nSamples];
+        for (int i = 0; i < nSamples; i++) {
+            KmerLookup source = indexFile != null ? openIndex() : openKMC(samplePrefixes.get(i), nSamples, bloomFilters);
+            // the cache memory is shared by the samples
+            KmerCountCache lookupCache = openLookupCache(source, nSamples);
+            if (lookupCache != null) {
+                lookupCaches.add(lookupCache);
+            }
+            lookups[i] = lookupCache != null ? lookupCache : source;
+            checkSameKmers(lookups[0], lookups[i], sampleNames.get(i));
+        }
+        KmerLookup kmc = lookups[0];
         kmerSize = kmc.getKmerLength();
+        batches = ThreadLocal.withInitial(() -> new KmerBatch(kmerSize, windowSize));
         KCFHeader header = new KCFHeader();
         header.setReference(refFasta);
         header.addCommandLine(HelperFunctions.getCommandLine());
-        header.addSample(sampleName);
+        header.addSample(sampleNames.toArray(new String[0]));
         header.setWindowSize(windowSize);
         header.setStepSize(stepSize);
         header.setKmerSize(kmc.getKmerLength());
@@ -107,88 +194,608 @@ public class GetVariants implements Callable<Integer>, Runnable {
         header.setWeightKmerRatio(kmerRatioWeight);
 
         index = new FastaIndex(refFasta);
-        ConcurrentHashMap<String, Queue<Window>> windowsMap = new ConcurrentHashMap<>();
 
         if (featureType.equals("gene") || featureType.equals("transcript")){
             gtf = new GTF(gtfFile);
         }
+        if (maskFile != null) {
+            mask = new SequenceMask(maskFile);
+            mask.printSummary(index.getSequenceNames());
+        }
+        if (refCacheFile != null) {
+            refCache = openReferenceCache(kmc);
+        }
+        if (maxMultiplicity > 0 && refCache != null && refCache.hasMultiplicity()) {
+            Logger.info(CLASS_NAME, "Reading the reference kmer multiplicity from the reference cache");
+        } else if (maxMultiplicity > 0) {
+            multiplicity = ReferenceMultiplicity.count(index, kmerSize, kmc.isBothStrands(), nThreads);
+            multiplicity.printSummary(maxMultiplicity);
+        }
 
-        Logger.info(CLASS_NAME, "Generating windows...");
+        Logger.info(CLASS_NAME, "Counting windows...");
+        long windowCount = 0;
         for (String name : index.getSequenceNames()) {
             header.addContig(name, index.getSequenceLength(name));
-            Queue<Window> windows = getWindows(name);
-            windowsMap.put(name, windows);
+            windowCount += countWindows(name);
         }
-
-        int totalWindows = windowsMap.values().stream().mapToInt(Queue::size).sum();
+        if (windowCount > Integer.MAX_VALUE) {
+            Logger.error(CLASS_NAME, "Too many windows (" + windowCount + "), use a larger window or step size");
+        }
+        int totalWindows = (int) windowCount;
         Logger.info(CLASS_NAME, "Number of windows: " + totalWindows);
+        header.setWindowCount(totalWindows);
+
+        // the windows are generated while they are processed, and written in order as soon as they are finished
+        long startTime = System.currentTimeMillis();
+        try (KCFWriter writer = new KCFWriter(outFile)) {
+            writer.writeHeader(header);
+            WindowReorderBuffer output = new WindowReorderBuffer(writer, WINDOWS_IN_FLIGHT_PER_THREAD * nThreads);
+            if (sortMerge) {
+                sortMergeWindows((KMC) kmc, totalWindows, output);
+            } else if (partitionBins) {
+                partitionedWindows((KMC) kmc, totalWindows, output);
+            } else {
+                lookupWindows(totalWindows, output, lookups);
+            }
+            // the header holds the number of windows, every window has to be written
+            output.check();
+            if (output.getWritten() != totalWindows) {
+                Logger.error(CLASS_NAME, "Only " + output.getWritten() + " of " + totalWindows + " windows were written to " + outFile);
+            }
+        }
+        Logger.info(CLASS_NAME, "Processed " + totalWindows + " windows in " + (System.currentTimeMillis() - startTime) + " ms ("
+                + (sortMerge ? "sort-merge" : partitionBins ? "bin partitioned workers" : "one task per window") + ")");
+        index.close();
+        if (refCache != null) {
+            refCache.close();
+        }
+        for (KmerCountCache lookupCache : lookupCaches) {
+            lookupCache.printStatistics();
+        }
+        for (KmerBloomFilter bloomFilter : bloomFilters) {
+            bloomFilter.printStatistics();
+            bloomFilter.close();
+        }
+        for (KmerLookup lookup : lookups) {
+            lookup.close();
+        }
+        HelperFunctions.printMaxMemoryUsage();
+    }
+
+    /***
+     * Look up the kmers of every window, one task per window
+     */
+    private void lookupWindows(int totalWindows, WindowReorderBuffer output, KmerLookup[] lookups) {
+        forEachWindow(totalWindows, output, (w, window) -> processWindow(window, lookups));
+    }
 
-        LinkedHashMap<String, List<Window>> processedWindows = new LinkedHashMap<>();
+    /***
+     * Resolve the kmers of all windows with a sort-merge join on the KMC database: the kmers of every window are
+     * extracted and sorted in KMC order (spilling to sorted runs in --tmp-dir), the suffix file is read in one
+     * sequential pass, and the counts are then walked per window in positional order. Only a few primitives are kept
+     * per window between the two passes, the windows themselves are generated again for the second one.
+     */
+    private void sortMergeWindows(KMC kmcDb, int totalWindows, WindowReorderBuffer output) throws IOException {
+        long[] firstIds = new long[totalWindows];
+        int[] kmerCounts = new int[totalWindows];
+        int[] effLengths = new int[totalWindows];
+        int[] repeatKmers = new int[totalWindows];
+        try (KmerSortMerge sortMerge = new KmerSortMerge(kmcDb, sortMemoryMB * 1024L * 1024L, tmpDir)) {
+            Logger.info(CLASS_NAME, "Extracting and sorting the window kmers...");
+            forEachWindow(totalWindows, null, (w, window) -> {
+                KmerBatch batch = batches.get();
+                effLengths[w] = collectKmers(window, newScanner(kmcDb), batch);
+                if (effLengths[w] < 0) {
+                    return;
+                }
+                repeatKmers[w] = window.getRepeatKmers();
+                kmerCounts[w] = batch.size();
+                firstIds[w] = sortMerge.add(batch);
+            });
+            Logger.info(CLASS_NAME, "Merging the kmers with the KMC database...");
+            long found = sortMerge.resolve();
+            Logger.info(CLASS_NAME, "Kmers found in the KMC database: " + found);
+            forEachWindow(totalWindows, output, (w, window) -> {
+                // walk the counts in positional order to find the gaps
+                WindowKmerCounter counter = new WindowKmerCounter(kmcDb);
+                for (int i = 0; i < kmerCounts[w]; i++) {
+                    counter.add(sortMerge.getCount(firstIds[w] + i));
+                }
+                counter.finish();
+                window.setRepeatKmers(repeatKmers[w]);
+                addWindowData(window, effLengths[w], new WindowKmerCounter[] {counter});
+            });
+        }
+    }
+
+    /***
+     * Look up the kmers with one worker per partition of the KMC database (a contiguous range of records, split on
+     * signature bins and LUT prefixes). The windows are scanned in chunks, the kmers of a chunk are routed to the
+     * worker of their partition through a lock-free queue, and the worker that resolves the last part of a chunk walks
+     * its windows in positional order. The number of chunks in flight is bounded, so the scanners wait for the workers.
+     */
+    private void partitionedWindows(KMC kmcDb, int totalWindows, WindowReorderBuffer output) {
+        KmerPartitioner partitioner = new KmerPartitioner(kmcDb, nThreads);
+        partitioner.printSummary();
+        int partitions = partitioner.getPartitions();
+        List<ConcurrentLinkedQueue<PartitionRequest>> queues = new ArrayList<>(partitions);
+        Thread[] workers = new Thread[partitions];
+        AtomicBoolean stopped = new AtomicBoolean(false);
+        int maxChunks = 2 * nThreads;
+        Semaphore inFlight = new Semaphore(maxChunks);
         AtomicInteger completedWindows = new AtomicInteger(0);
+        Consumer<PartitionChunk> finished = chunk -> {
+            try {
+                finishChunk(kmcDb, chunk, output);
+            } catch (RuntimeException e) {
+                output.fail("Error processing windows " + chunk.windows.get(0).getWindowId() + " to "
+                        + chunk.windows.get(chunk.windows.size() - 1).getWindowId(), e);
+            }
+            inFlight.release();
+            printProgress(completedWindows.addAndGet(chunk.windows.size()), totalWindows);
+        };
 
-        ExecutorService executor = Executors.newFixedThreadPool(nThreads);
-        ExecutorCompletionService<Void> completionService = new ExecutorCompletionService<>(executor);
-
-        for (Map.Entry<String, Queue<Window>> entry : windowsMap.entrySet()) {
-            String name = entry.getKey();
-            Queue<Window> windows = entry.getValue();
-            List<Window> processed = Collections.synchronizedList(new ArrayList<>(windows.size()));
-            processedWindows.put(name, processed);
-
-            for (Window window : windows) {
-                completionService.submit(() -> {
-                    Fasta fasta = getFasta(window);
-                    Window processedWindow = processWindow(window, fasta, kmc);
-                    processed.add(processedWindow);
-                    int completed = completedWindows.incrementAndGet();
-                    float progress = (float) (completed * 100) / totalWindows;
-                    synchronized (System.out) {
-                        System.out.printf("\rProgress: %.2f%%", progress);
+        for (int p = 0; p < partitions; p++) {
+            ConcurrentLinkedQueue<PartitionRequest> queue = new ConcurrentLinkedQueue<>();
+            queues.add(queue);
+            workers[p] = new Thread(() -> {
+                KMCCursor cursor = kmcDb.newCursor();
+                while (true) {
+                    PartitionRequest request = queue.poll();
+                    if (request == null) {
+                        if (stopped.get()) {
+                            return;
+                        }
+                        // sleep until a scanner queues a part (or the run stops), both unpark this worker. An unpark
+                        // between the poll and the park is kept as a permit, so no part is missed
+                        LockSupport.park(queue);
+                        continue;
+                    }
+                    try {
+                        cursor.getCounts(request.batch);
+                    } catch (Exception e) {
+                        Logger.error(CLASS_NAME, "Error looking up kmers: " + e);
+                    }
+                    PartitionChunk chunk = request.chunk;
+                    for (int i = 0; i < request.batch.size(); i++) {
+                        chunk.counts[request.batch.getPosition(i)] = request.batch.getCount(i);
+                    }
+                    if (chunk.pending.decrementAndGet() == 0) {
+                        finished.accept(chunk);
+                    }
+                }
+            }, "kcftools-partition-" + p);
+            workers[p].setDaemon(true);
+            workers[p].start();
+        }
+
+        // cut the window stream into chunks, all windows of the chunks in flight fit in the reorder buffer
+        int maxChunkWindows = Math.max(1, output.getCapacity() / maxChunks);
+        ExecutorService scanners = Executors.newFixedThreadPool(nThreads);
+        Iterator<Window> windows = new WindowIterator();
+        List<Window> chunkWindows = new ArrayList<>();
+        long chunkBases = 0;
+        int firstOrdinal = 0;
+        try {
+            while (windows.hasNext()) {
+                Window window = windows.next();
+                chunkWindows.add(window);
+                chunkBases += window.getEnd() - window.getStart();
+                if (chunkBases < PARTITION_CHUNK_BASES && chunkWindows.size() < maxChunkWindows && windows.hasNext()) {
+                    continue;
+                }
+                PartitionChunk chunk = new PartitionChunk(chunkWindows, firstOrdinal);
+                firstOrdinal += chunkWindows.size();
+                chunkWindows = new ArrayList<>();
+                chunkBases = 0;
+                inFlight.acquire();
+                output.reserve(firstOrdinal - 1);
+                scanners.submit(() -> {
+                    try {
+                        scanChunk(kmcDb, partitioner, chunk, queues, workers);
+                    } catch (Exception e) {
+                        Logger.error(CLASS_NAME, "Error scanning windows: " + e);
+                    }
+                    if (chunk.pending.decrementAndGet() == 0) {
+                        finished.accept(chunk);
                     }
-                    return null;
                 });
             }
+            // all chunks are done when all permits are back
+            inFlight.acquire(maxChunks);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            Logger.error(CLASS_NAME, "Interrupted while processing windows");
         }
+        stopped.set(true);
+        for (Thread worker : workers) {
+            LockSupport.unpark(worker);
+        }
+        scanners.shutdown();
+        clearProgress();
+    }
 
-        for (int i = 0; i < totalWindows; i++) {
-            try {
-                completionService.take().get();
-            } catch (Exception e) {
-                e.printStackTrace();
+    /***
+     * Scan the windows of a chunk and route their kmers to the partition queues. The chunk holds one pending part for
+     * the scanner itself, released by the caller once all parts are queued.
+     */
+    private void scanChunk(KMC kmcDb, KmerPartitioner partitioner, PartitionChunk chunk,
+                           List<ConcurrentLinkedQueue<PartitionRequest>> queues, Thread[] workers) {
+        int partitions = partitioner.getPartitions();
+        KmerBatch[] parts = new KmerBatch[partitions];
+        KmerBatch batch = batches.get();
+        KmerScanner scanner = newScanner(kmcDb);
+        int words = batch.getWords();
+        int kmerIndex = 0;
+        for (int w = 0; w < chunk.windows.size(); w++) {
+            Window window = chunk.windows.get(w);
+            chunk.effLengths[w] = collectKmers(window, scanner, batch);
+            if (chunk.effLengths[w] < 0) {
+                return;
+            }
+            chunk.offsets[w] = kmerIndex;
+            long[] kmers = batch.getKmers();
+            for (int i = 0; i < batch.size(); i++) {
+                int signature = batch.getSignature(i);
+                int p = partitioner.partitionOf(kmers, i * words, signature);
+                if (parts[p] == null) {
+                    parts[p] = new KmerBatch(kmcDb.getKmerLength(), PARTITION_CHUNK_BASES / partitions);
+                }
+                parts[p].add(kmerIndex + i, kmers, i * words, signature);
+            }
+            kmerIndex += batch.size();
+        }
+        chunk.offsets[chunk.windows.size()] = kmerIndex;
+        chunk.counts = new int[kmerIndex];
+        for (KmerBatch part : parts) {
+            if (part != null) {
+                chunk.pending.incrementAndGet();
+            }
+        }
+        for (int p = 0; p < partitions; p++) {
+            if (parts[p] != null) {
+                queues.get(p).add(new PartitionRequest(chunk, parts[p]));
+                LockSupport.unpark(workers[p]);
+            }
+        }
+    }
+
+    /***
+     * Walk the resolved counts of the windows of a chunk in positional order, and hand them to the output
+     */
+    private void finishChunk(KMC kmcDb, PartitionChunk chunk, WindowReorderBuffer output) {
+        for (int w = 0; w < chunk.windows.size(); w++) {
+            WindowKmerCounter counter = new WindowKmerCounter(kmcDb);
+            for (int i = chunk.offsets[w]; i < chunk.offsets[w + 1]; i++) {
+                counter.add(chunk.counts[i]);
+            }
+            counter.finish();
+            addWindowData(chunk.windows.get(w), chunk.effLengths[w], new WindowKmerCounter[] {counter});
+            output.put(chunk.firstOrdinal + w, chunk.windows.get(w));
+        }
+    }
+
+    /***
+     * Windows scanned together by the bin partitioned scheduler, with the kmer counts of all of them. pending counts
+     * the parts still being resolved (plus one for the scanner)
+     */
+    private static class PartitionChunk {
+        final List<Window> windows;
+        final int firstOrdinal;
+        final int[] offsets;
+        final int[] effLengths;
+        int[] counts;
+        final AtomicInteger pending = new AtomicInteger(1);
+
+        PartitionChunk(List<Window> windows, int firstOrdinal) {
+            this.windows = windows;
+            this.firstOrdinal = firstOrdinal;
+            this.offsets = new int[windows.size() + 1];
+            this.effLengths = new int[windows.size()];
+        }
+    }
+
+    /***
+     * The kmers of a chunk that fall in one partition, the batch positions are the kmer indices in the chunk
+     */
+    private static class PartitionRequest {
+        final PartitionChunk chunk;
+        final KmerBatch batch;
+
+        PartitionRequest(PartitionChunk chunk, KmerBatch batch) {
+            this.chunk = chunk;
+            this.batch = batch;
+        }
+    }
+
+    private interface WindowTask {
+        void run(int ordinal, Window window) throws IOException;
+    }
+
+    /***
+     * Run a task for every window on the worker threads, with progress. The windows are generated lazily in output
+     * order and handed out only when they fit in the reorder buffer (or, without an output, while fewer than its
+     * capacity are in flight), so the number of windows in memory depends on the threads and not on the genome.
+     * With an output, every window is written as soon as its task and the tasks of all earlier windows are done, and
+     * a failed task stops the run.
+     */
+    private void forEachWindow(int totalWindows, WindowReorderBuffer output, WindowTask task) {
+        AtomicInteger completedWindows = new AtomicInteger(0);
+        int maxInFlight = WINDOWS_IN_FLIGHT_PER_THREAD * nThreads;
+        Semaphore inFlight = new Semaphore(maxInFlight);
+        ExecutorService executor = Executors.newFixedThreadPool(nThreads);
+        Iterator<Window> windows = new WindowIterator();
+        try {
+            for (int w = 0; windows.hasNext(); w++) {
+                Window window = windows.next();
+                int ordinal = w;
+                if (output != null) {
+                    output.reserve(ordinal);
+                } else {
+                    inFlight.acquire();
+                }
+                executor.execute(() -> {
+                    boolean done = false;
+                    try {
+                        task.run(ordinal, window);
+                        done = true;
+                    } catch (Exception e) {
+                        Logger.debug(CLASS_NAME, e);
+                        if (output == null) {
+                            // without an output (the first pass of the sort-merge) a lost window would go unnoticed
+                            Logger.error(CLASS_NAME, "Error processing window " + window.getWindowId() + ": " + e.getMessage());
+                        } else {
+                            // the window count is in the header already, a failed window stops the run (see reserve)
+                            output.fail("Error processing window " + window.getWindowId(), e);
+                        }
+                    } finally {
+                        if (output == null) {
+                            inFlight.release();
+                        } else if (done) {
+                            output.put(ordinal, window);
+                        }
+                        printProgress(completedWindows.incrementAndGet(), totalWindows);
+                    }
+                });
             }
+            executor.shutdown();
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            Logger.error(CLASS_NAME, "Interrupted while processing windows");
         }
+        clearProgress();
+    }
+
+    private static void printProgress(int completed, int totalWindows) {
+        float progress = (float) (completed * 100L) / totalWindows;
+        synchronized (System.out) {
+            System.out.printf("\rProgress: %.2f%%", progress);
+        }
+    }
 
+    private static void clearProgress() {
         System.out.print("\r");
         for (int i = 0; i < 100; i++) {
             System.out.print(" ");
         }
         System.out.print("\r");
         System.out.flush();
+    }
 
-        // sort the windows based on its start position
-        for (String name : processedWindows.keySet()) {
-            processedWindows.get(name).sort(Comparator.comparingInt(Window::getStart));
+    /***
+     * Read the manifest: one sample per line, the sample name and its KMC database prefix(es, comma separated to sum
+     * them) separated by a tab. Empty lines and lines starting with '#' are skipped.
+     */
+    private void readManifest() throws IOException {
+        try (BufferedReader reader = new BufferedReader(new FileReader(manifestFile))) {
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                line = line.strip();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] fields = line.split("\\t");
+                if (fields.length != 2 || fields[0].isBlank() || fields[1].isBlank()) {
+                    Logger.error(CLASS_NAME, "Invalid manifest line " + lineNumber + " in " + manifestFile + ", expected: <sample name><TAB><KMC prefix>[,<KMC prefix>...]");
+                }
+                String name = cleanSampleName(fields[0].strip());
+                if (sampleNames.contains(name)) {
+                    Logger.error(CLASS_NAME, "Sample " + name + " is listed more than once in " + manifestFile);
+                }
+                String[] prefixes = fields[1].strip().split(",");
+                for (String prefix : prefixes) {
+                    if (!HelperFunctions.checkFileExists(prefix + ".kmc_pre") || !HelperFunctions.checkFileExists(prefix + ".kmc_suf")) {
+                        Logger.error(CLASS_NAME, "KMC database of sample " + name + " not found: " + prefix);
+                    }
+                }
+                sampleNames.add(name);
+                samplePrefixes.add(prefixes);
+            }
         }
+        if (sampleNames.isEmpty()) {
+            Logger.error(CLASS_NAME, "No samples found in manifest " + manifestFile);
+        }
+        Logger.info(CLASS_NAME, "Samples in manifest: " + sampleNames.size());
+    }
 
-        header.setWindowCount(totalWindows);
-        try (KCFWriter writer = new KCFWriter(outFile)) {
-            writer.writeHeader(header);
-            for (String name : index.getSequenceNames()) {
-                writer.writeWindows(processedWindows.get(name));
+    /***
+     * The window kmers are extracted once for all samples, so all databases should give the same kmers
+     */
+    private void checkSameKmers(KmerLookup first, KmerLookup lookup, String sample) {
+        Signature firstSignature = first.getSignatureReference();
+        Signature signature = lookup.getSignatureReference();
+        if (lookup.getKmerLength() != first.getKmerLength() || lookup.isBothStrands() != first.isBothStrands()
+                || (firstSignature == null ? 0 : firstSignature.getSignLength()) != (signature == null ? 0 : signature.getSignLength())) {
+            Logger.error(CLASS_NAME, "KMC database of sample " + sample + " does not match the first sample (kmer length, strands or signature length)");
+        }
+    }
+
+    /***
+     * Open the KMC database(s) of a sample, the counts of several databases are summed. The usable Bloom filter
+     * sidecars are attached to their database and added to the given list.
+     */
+    private KmerLookup openKMC(String[] kmcDBprefixes, int nSamples, List<KmerBloomFilter> bloomFilters) throws IOException {
+        KMCOptions kmcOptions = new KMCOptions();
+        kmcOptions.setInMemory(loadMemory && !sortMerge);
+        // the sampled index budget is shared by the databases
+        kmcOptions.setSampledIndexBytes(sortMerge ? 0 : sampleIndexMB * 1024L * 1024L / ((long) kmcDBprefixes.length * nSamples));
+        kmcOptions.setSegmentMapped(mmapSegment);
+        kmcOptions.setWarmUp(warmUp);
+        kmcOptions.setMapPrefixArray(mapPrefix);
+        kmcOptions.setPrefixCache(prefixCache);
+        kmcOptions.setThreads(nThreads);
+        kmcOptions.setSearchGroupSize(searchGroupSize);
+        KMC[] databases = new KMC[kmcDBprefixes.length];
+        for (int i = 0; i < kmcDBprefixes.length; i++) {
+            databases[i] = new KMC(kmcDBprefixes[i], kmcOptions);
+            KmerBloomFilter bloomFilter = openBloomFilter(databases[i], kmcDBprefixes[i], databases.length > 1);
+            if (bloomFilter != null) {
+                bloomFilters.add(bloomFilter);
             }
         }
-        index.close();
-        kmc.close();
-        HelperFunctions.printMaxMemoryUsage();
+        return databases.length == 1 ? databases[0] : new KMCGroup(databases);
+    }
+
+    /***
+     * Create the kmer count cache in front of the lookup, if one is requested (and the kmers fit in its keys)
+     */
+    private KmerCountCache openLookupCache(KmerLookup lookup, int nSamples) {
+        if (lookupCacheMB <= 0 || sortMerge || partitionBins) {
+            return null;
+        }
+        if (lookup.getKmerLength() > KmerCountCache.MAX_KMER_LENGTH) {
+            Logger.warning(CLASS_NAME, "Lookup cache supports kmers up to " + KmerCountCache.MAX_KMER_LENGTH + " bases, not used");
+            return null;
+        }
+        return new KmerCountCache(lookup, lookupCacheMB * 1024L * 1024L / nSamples);
+    }
+
+    /***
+     * Open the kcftools index, and reject it if it can not give the same answers as the KMC database for this run
+     */
+    private KmerHashTable openIndex() {
+        KmerHashTable table;
+        try {
+            table = KmerHashTable.load(indexFile);
+        } catch (IOException e) {
+            Logger.error(CLASS_NAME, "Could not open index " + indexFile + ": " + e.getMessage());
+            throw new RuntimeException("Could not open index " + indexFile, e);
+        }
+        table.printSummary();
+        if (table.getMinCount() > minKmerCount) {
+            Logger.error(CLASS_NAME, "Index " + indexFile + " was built with min count " + table.getMinCount()
+                    + ", higher than --min-k-count " + minKmerCount);
+        }
+        if (table.getCountCap() < minKmerCount) {
+            Logger.error(CLASS_NAME, "Index " + indexFile + " caps counts at " + table.getCountCap()
+                    + ", lower than --min-k-count " + minKmerCount);
+        }
+        if (table.getMaxCount() > table.getCountCap()) {
+            Logger.warning(CLASS_NAME, "Index " + indexFile + " caps counts at " + table.getCountCap()
+                    + " (max count " + table.getMaxCount() + "), the kmer counts of the windows may be lower than with the KMC database");
+        }
+        return table;
+    }
+
+    /***
+     * Open the Bloom filter sidecar of the KMC database and attach it to the KMC object, if there is one and it is
+     * usable for this run. The filter should have been built from these exact database files (see
+     * KMC.getFingerprint()). A filter built with a higher minimum count than the run would drop kmers that count here.
+     * When the counts of several databases are summed, every kmer of the database counts, so the filter should hold
+     * all of them.
+     */
+    private KmerBloomFilter openBloomFilter(KMC kmc, String kmcDBprefix, boolean summed) {
+        if (noBloom) {
+            return null;
+        }
+        int maxFilterCount = summed ? kmc.getMinCount() : minKmerCount;
+        String fileName = bloomFile != null ? bloomFile : kmcDBprefix + KmerBloomFilter.EXTENSION;
+        if (!HelperFunctions.checkFileExists(fileName)) {
+            if (bloomFile != null) {
+                Logger.error(CLASS_NAME, "Bloom filter file not found: " + bloomFile);
+            }
+            return null;
+        }
+        try {
+            KmerBloomFilter filter = KmerBloomFilter.load(fileName, kmc.getFingerprint());
+            if (filter.getKmerLength() != kmc.getKmerLength() || filter.isCanonical() != kmc.isBothStrands()) {
+                Logger.warning(CLASS_NAME, "Bloom filter " + fileName + " does not match the KMC database (kmer length or strands), not used");
+            } else if (filter.getMinCount() > maxFilterCount) {
+                Logger.warning(CLASS_NAME, "Bloom filter " + fileName + " was built with min count " + filter.getMinCount()
+                        + (summed ? ", but the counts of several databases are summed" : ", higher than --min-k-count " + minKmerCount)
+                        + ", not used");
+            } else {
+                filter.printSummary();
+                kmc.setBloomFilter(filter);
+                return filter;
+            }
+            filter.close();
+        } catch (IOException e) {
+            if (bloomFile != null) {
+                Logger.error(CLASS_NAME, "Could not use the Bloom filter: " + e.getMessage());
+            }
+            Logger.warning(CLASS_NAME, "Bloom filter not used: " + e.getMessage());
+        }
+        return null;
+    }
+
+    /***
+     * Open the reference kmer cache, and check that it was prepared for this reference, these kmers and windows
+     */
+    private ReferenceKmerCache openReferenceCache(KmerLookup kmc) throws IOException {
+        ReferenceKmerCache cache;
+        try {
+            cache = ReferenceKmerCache.load(refCacheFile);
+        } catch (IOException e) {
+            Logger.error(CLASS_NAME, "Could not open reference cache " + refCacheFile + ": " + e.getMessage());
+            throw e;
+        }
+        int signatureLength = kmc.getSignatureReference() == null ? 0 : kmc.getSignatureReference().getSignLength();
+        if (cache.getKmerLength() != kmc.getKmerLength() || cache.isCanonical() != kmc.isBothStrands() || cache.getSignatureLength() != signatureLength) {
+            Logger.error(CLASS_NAME, "Reference cache " + refCacheFile + " was prepared for other kmers (k=" + cache.getKmerLength()
+                    + ", canonical=" + cache.isCanonical() + ", signature length=" + cache.getSignatureLength() + ") than the KMC database");
+        }
+        if (cache.getWindowSize() != windowSize || cache.getStepSize() != stepSize) {
+            Logger.error(CLASS_NAME, "Reference cache " + refCacheFile + " was prepared for other windows (window " + cache.getWindowSize()
+                    + ", step " + cache.getStepSize() + ")");
+        }
+        if (cache.getReferenceChecksum() != ReferenceKmerCache.checksum(index, nThreads)
+                || HelperFunctions.isOlder(new File(refCacheFile), new File(refFasta))) {
+            Logger.error(CLASS_NAME, "Reference cache " + refCacheFile + " was prepared for another (or an older) reference than " + refFasta);
+        }
+        List<String> names = index.getSequenceNames();
+        if (cache.getContigs() != names.size()) {
+            Logger.error(CLASS_NAME, "Reference cache " + refCacheFile + " has " + cache.getContigs() + " contigs, the reference has " + names.size());
+        }
+        for (int i = 0; i < names.size(); i++) {
+            contigIndices.put(names.get(i), i);
+        }
+        Logger.info(CLASS_NAME, "Reading the window kmers from the reference cache" + (cache.isSoftMask() ? " (soft-masked)" : "")
+                + (cache.getMaskChecksum() != 0 ? " (BED masked)" : ""));
+        cache.printSummary();
+        return cache;
     }
 
     /***
-     * Get the Fasta object based on the model type
+     * Get the bases of a window based on the model type. Windows are read straight from the fasta index without
+     * a lock (and the --mask regions are masked with N); genes and transcripts are spliced from their exons.
      */
-    private Fasta getFasta(Window window){
+    private byte[] getBases(Window window){
         return switch (featureType) {
-            case "window" -> window.getFasta(index);
-            case "gene", "transcript" -> gtf.getFasta(window.getWindowId(), index, featureType.equals("gene"));
+            case "window" -> {
+                byte[] bases = index.getBases(window.getSequenceName(), window.getStart(), window.length());
+                if (mask != null && bases != null) {
+                    mask.mask(window.getSequenceName(), window.getStart(), bases);
+                }
+                yield bases;
+            }
+            case "gene", "transcript" -> {
+                Fasta fasta = gtf.getFasta(window.getWindowId(), index, featureType.equals("gene"));
+                yield fasta == null ? null : fasta.getSequence().getBytes(StandardCharsets.ISO_8859_1);
+            }
             default -> {
                 Logger.error(CLASS_NAME, "Invalid model type: " + featureType + ". Supported models are 'window' or 'gene' or 'transcript'");
                 yield null;
@@ -196,75 +803,154 @@ public class GetVariants implements Callable<Integer>, Runnable {
         };
     }
 
+    /***
+     * Collect the kmers of a window into the (cleared) batch, from the reference cache or by scanning the window bases,
+     * and return the effective length of the window (-1 if the window has no sequence). With --unique-only, the repeated
+     * reference kmers are removed from the batch and counted in the window.
+     */
+    private int collectKmers(Window window, KmerScanner scanner, KmerBatch batch) {
+        int effLength = scanKmers(window, scanner, batch);
+        if (multiplicity != null && effLength >= 0) {
+            long[] kmers = batch.getKmers();
+            int words = batch.getWords();
+            window.setRepeatKmers(batch.removeIf(i -> multiplicity.getMultiplicity(kmers, i * words) > maxMultiplicity));
+        } else if (maxMultiplicity > 0 && effLength >= 0) {
+            // the multiplicities stored in the reference cache, in the order of the window kmers it loaded
+            int cached = refCache.findWindow(contigIndices.get(window.getSequenceName()), window.getStart());
+            window.setRepeatKmers(batch.removeIf(i -> refCache.getMultiplicity(cached, i) > maxMultiplicity));
+        }
+        return effLength;
+    }
+
+    private int scanKmers(Window window, KmerScanner scanner, KmerBatch batch) {
+        if (refCache != null) {
+            Integer contig = contigIndices.get(window.getSequenceName());
+            int cached = contig == null ? -1 : refCache.findWindow(contig, window.getStart());
+            if (cached < 0) {
+                Logger.error(CLASS_NAME, "Window not found in the reference cache: " + window.getWindowId());
+                return -1;
+            }
+            return refCache.read(cached, batch);
+        }
+        byte[] bases = getBases(window);
+        if (bases == null) {
+            Logger.error(CLASS_NAME, "Sequence is null for window: " + window.getWindowId());
+            return -1;
+        }
+        batch.clear();
+        return scanner.scan(bases, batch);
+    }
+
+    /***
+     * Create a kmer scanner (one per worker) for the kmers of a lookup
+     */
+    private KmerScanner newScanner(KmerLookup lookup) {
+        KmerScanner scanner = new KmerScanner(lookup.getKmerLength(), lookup.isBothStrands(), lookup.getSignatureReference());
+        scanner.setSoftMask(softMask);
+        return scanner;
+    }
+
     /***
      * Process a window and calculate the number of observed kmers and the variation
      */
-    private Window processWindow(Window window, Fasta fasta, KMC kmc) {
-        int localTotalKmers = 0;
-        int localObservedKmers = 0;
-        int localVariation = 0;
-        int localInnerDistance = 0;
-        int gapSize = 0;
-        boolean isTail = true;
-        int localLeftDist = 0;
-        int localRightDist = 0;
-        long localKmerCount = 0;
-
-        if (fasta == null) {
-            Logger.error(CLASS_NAME, "Fasta object is null for window: " + window.getWindowId());
+    private Window processWindow(Window window, KmerLookup[] lookups) {
+        // one scanner per task, the window kmers are collected once and looked up as one batch per sample
+        KmerBatch batch = batches.get();
+        int effLength = collectKmers(window, newScanner(lookups[0]), batch);
+        if (effLength < 0) {
             return window;
         }
-        List<Kmer> kmers = fasta.getKmersList(kmc.getKmerLength(), kmc.getPrefixLength(), false);
-
-        if (!kmers.isEmpty()) {
-            for (Kmer k : kmers) {
-                localTotalKmers++;
-                Kmer km = new Kmer(k, kmc.isBothStrands());
-                int kmerCount = kmc.getCount(km);
-                if (kmerCount >= minKmerCount) {
-                    // if the kmer exists in the KMC database, 1+ observed kmers
-                    localKmerCount += kmerCount;
-                    localObservedKmers++;
-                    if (gapSize > 0) {
-                        // if there is a gap, increment the variation
-                        localVariation++;
-                        // if the gap is at the beginning or end of the window, increment the distance
-                        if (isTail) {
-                            localLeftDist += gapSize;
-                        }
-                        else {
-                            // if the gap is in the middle of the window, calculate the distance based on the gap size and kmer size
-                            localInnerDistance += getDistance(kmc, gapSize);
-                        }
-                    }
-                    isTail = false;
-                    gapSize = 0;
-                } else {
-                    gapSize++;
-                }
-            }
 
-            // process the last gap if it exists
-            if (gapSize > 0) {
-                localVariation++;
-                localRightDist += gapSize;
+        WindowKmerCounter[] counters = new WindowKmerCounter[lookups.length];
+        for (int s = 0; s < lookups.length; s++) {
+            lookups[s].getCounts(batch);
+            // walk the counts in positional order to find the gaps
+            WindowKmerCounter counter = new WindowKmerCounter(lookups[s]);
+            for (int i = 0; i < batch.size(); i++) {
+                counter.add(batch.getCount(i));
             }
+            counter.finish();
+            counters[s] = counter;
         }
 
+        addWindowData(window, effLength, counters);
+        return window;
+    }
+
+    /***
+     * Add the data of the samples (one counter per sample) to the window
+     */
+    private void addWindowData(Window window, int effLength, WindowKmerCounter[] counters) {
         synchronized (window) {
-            window.addTotalKmers(localTotalKmers);
-            window.setEffLength(fasta.getEffectiveATGCCount(kmerSize));
-            window.addData(sampleName, localObservedKmers, localVariation, localInnerDistance, localLeftDist, localRightDist, localKmerCount, "N", getWeights());
+            window.addTotalKmers(counters[0].totalKmers);
+            window.setEffLength(effLength);
+            for (int s = 0; s < counters.length; s++) {
+                WindowKmerCounter counter = counters[s];
+                window.addData(sampleNames.get(s), counter.observedKmers, counter.variations, counter.innerDistance, counter.leftDistance, counter.rightDistance, counter.kmerCount, "N", getWeights());
+            }
         }
+    }
 
-        return window;
+    /***
+     * Collects the observed kmers and the gaps between them, from the kmer counts of a window in positional order
+     */
+    private class WindowKmerCounter {
+        private final KmerLookup kmc;
+        int totalKmers = 0;
+        int observedKmers = 0;
+        int variations = 0;
+        int innerDistance = 0;
+        int leftDistance = 0;
+        int rightDistance = 0;
+        long kmerCount = 0;
+        private int gapSize = 0;
+        private boolean isTail = true;
+
+        WindowKmerCounter(KmerLookup kmc) {
+            this.kmc = kmc;
+        }
+
+        void add(int count) {
+            totalKmers++;
+            if (count >= minKmerCount) {
+                // if the kmer exists in the KMC database, 1+ observed kmers
+                kmerCount += count;
+                observedKmers++;
+                if (gapSize > 0) {
+                    // if there is a gap, increment the variation
+                    variations++;
+                    // if the gap is at the beginning or end of the window, increment the distance
+                    if (isTail) {
+                        leftDistance += gapSize;
+                    }
+                    else {
+                        // if the gap is in the middle of the window, calculate the distance based on the gap size and kmer size
+                        innerDistance += getDistance(kmc, gapSize);
+                    }
+                }
+                isTail = false;
+                gapSize = 0;
+            } else {
+                gapSize++;
+            }
+        }
+
+        /***
+         * Process the last gap if it exists
+         */
+        void finish() {
+            if (gapSize > 0) {
+                variations++;
+                rightDistance += gapSize;
+            }
+        }
     }
 
     /***
      * Get the distance based on the gap size
      * if the actual missing base is 1, and the kmer size is 3, we will have 3 missing kmers, hence the distance is 1 (3 - (3-1)) = 1
      */
-    private static int getDistance(KMC kmc, int gapSize) {
+    private static int getDistance(KmerLookup kmc, int gapSize) {
         int distance = gapSize - (kmc.getKmerLength() - 1);
         if (distance <= 0) {
             distance = Math.abs(distance + 1);
@@ -273,54 +959,59 @@ public class GetVariants implements Callable<Integer>, Runnable {
     }
 
     /***
-     * Get the windows based on the model type
+     * Count the windows of a sequence based on the model type (the windows of the window model are not created)
      */
-    private Queue<Window> getWindows(String sequenceName) {
-        Queue<Window> windows = new ConcurrentLinkedDeque<>();
-        int sequenceLength = index.getSequenceLength(sequenceName);
-        switch (featureType) {
-            case "window" -> {
-//                int lastEnd = 0;
-//                while (lastEnd < sequenceLength) {
-//                    int start = Math.max(0, lastEnd - kmerSize + 1);
-//                    int end = Math.min(start + windowSize, sequenceLength);
-//                    if (end - start >= kmerSize) {
-//                        windows.add(new Window(sequenceName + "_" + start, sequenceName, start, end));
-//                    }
-//                    lastEnd = end;
-//                }
-
-                int lastPos = 0;
-
-                if (stepSize > 0) {
-                    // Sliding window mode
-                    while (lastPos < sequenceLength) {
-                        int start = lastPos;
-                        int end = Math.min(start + windowSize, sequenceLength);
-
-                        if (end - start >= kmerSize) {
-                            windows.add(new Window(sequenceName + "_" + start, sequenceName, start, end));
-                        }
+    private long countWindows(String sequenceName) {
+        if (featureType.equals("window")) {
+            return Window.countTiles(index.getSequenceLength(sequenceName), windowSize, stepSize, kmerSize);
+        }
+        List<Window> windows = getFeatureWindows(sequenceName);
+        featureWindows.put(sequenceName, windows);
+        return windows.size();
+    }
 
-                        lastPos += stepSize; // slide by stepSize
-                    }
-                } else {
-                    // Old tiling mode (non-overlapping but with kmer overlap at boundary)
-                    int lastEnd = 0;
-                    while (lastEnd < sequenceLength) {
-                        int start = Math.max(0, lastEnd - kmerSize + 1);
-                        int end = Math.min(start + windowSize, sequenceLength);
-
-                        if (end - start >= kmerSize) {
-                            windows.add(new Window(sequenceName + "_" + start, sequenceName, start, end));
-                        }
+    /***
+     * Get the windows of a sequence based on the model type, in output order. The windows of the window model are
+     * generated one at a time, the genes and transcripts are sorted on their start.
+     */
+    private Iterator<Window> getWindows(String sequenceName) {
+        if (featureType.equals("window")) {
+            return Window.tiles(sequenceName, index.getSequenceLength(sequenceName), windowSize, stepSize, kmerSize);
+        }
+        List<Window> windows = featureWindows.remove(sequenceName);
+        return (windows != null ? windows : getFeatureWindows(sequenceName)).iterator();
+    }
 
-                        lastEnd = end;
-                    }
-                }
+    /***
+     * Generates the windows of all sequences (in the order of the fasta index) lazily, in output order
+     */
+    private class WindowIterator implements Iterator<Window> {
+        private final Iterator<String> names = index.getSequenceNames().iterator();
+        private Iterator<Window> windows = Collections.emptyIterator();
 
+        @Override
+        public boolean hasNext() {
+            while (!windows.hasNext() && names.hasNext()) {
+                windows = getWindows(names.next());
+            }
+            return windows.hasNext();
+        }
 
+        @Override
+        public Window next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
             }
+            return windows.next();
+        }
+    }
+
+    /***
+     * Get the gene or transcript windows of a sequence, sorted on their start
+     */
+    private List<Window> getFeatureWindows(String sequenceName) {
+        List<Window> windows = new ArrayList<>();
+        switch (featureType) {
             case "gene" -> {
                 String[] genes = gtf.getGenes(sequenceName);
                 for (String gene : genes) {
@@ -348,6 +1039,7 @@ public class GetVariants implements Callable<Integer>, Runnable {
             }
             default -> Logger.error(CLASS_NAME, "Invalid model type: " + featureType + ". Supported models are 'window' or 'gene' or 'transcript'");
         }
+        windows.sort(Comparator.comparingLong(Window::getStart));
         return windows;
     }
 
@@ -355,6 +1047,30 @@ public class GetVariants implements Callable<Integer>, Runnable {
      * Validate the command line arguments
      */
     private void validateCMD() {
+        if (manifestFile != null) {
+            if (kmcDBprefixes != null || indexFile != null || sampleName != null) {
+                Logger.error(CLASS_NAME, "--manifest replaces --kmc, --index and --sample");
+            }
+            if (!HelperFunctions.checkFileExists(manifestFile)) {
+                Logger.error(CLASS_NAME, "Manifest file not found: " + manifestFile);
+            }
+            if (bloomFile != null) {
+                Logger.error(CLASS_NAME, "--bloom can only be used with a single KMC database, the <kmc prefix>.kcfbloom sidecars are used with a manifest");
+            }
+        } else {
+            if ((kmcDBprefixes == null) == (indexFile == null)) {
+                Logger.error(CLASS_NAME, "Either a KMC database (--kmc) or a kcftools index (--index) is required, not both");
+            }
+            if (sampleName == null) {
+                Logger.error(CLASS_NAME, "Sample name (--sample) is required");
+            }
+        }
+        if (kmcDBprefixes != null && kmcDBprefixes.length > 1 && bloomFile != null) {
+            Logger.error(CLASS_NAME, "--bloom can only be used with a single KMC database, the <kmc prefix>.kcfbloom sidecars are used with several databases");
+        }
+        if (indexFile != null && (loadMemory || mmapSegment || warmUp || sampleIndexMB > 0 || bloomFile != null || mapPrefix || prefixCache)) {
+            Logger.warning(CLASS_NAME, "KMC database options (--memory, --mmap-segment, --warmup, --sample-index-mb, --bloom, --map-prefix, --prefix-cache) are ignored with --index");
+        }
         switch (featureType) {
             case "window" -> {
                 if (windowSize <= 0) {
@@ -376,6 +1092,29 @@ public class GetVariants implements Callable<Integer>, Runnable {
                     Logger.error(CLASS_NAME, "Invalid model type: " + featureType + ". Supported models are 'window' or 'gene' or 'transcript'");
         }
 
+        if (refCacheFile != null) {
+            if (!featureType.equals("window")) {
+                Logger.error(CLASS_NAME, "--ref-cache is only valid for the window model");
+            }
+            if (!HelperFunctions.checkFileExists(refCacheFile)) {
+                Logger.error(CLASS_NAME, "Reference cache not found: " + refCacheFile);
+            }
+            if (softMask || maskFile != null) {
+                Logger.error(CLASS_NAME, "--soft-mask and --mask are applied by prepareReference, they can not be used with --ref-cache");
+            }
+        }
+        if (maxMultiplicity < 0 || maxMultiplicity >= ReferenceMultiplicity.MAX_COUNT) {
+            Logger.error(CLASS_NAME, "--unique-only should be between 0 and " + (ReferenceMultiplicity.MAX_COUNT - 1));
+        }
+        if (maskFile != null) {
+            if (!featureType.equals("window")) {
+                Logger.error(CLASS_NAME, "--mask is only valid for the window model, use --soft-mask for genes and transcripts");
+            }
+            if (!HelperFunctions.checkFileExists(maskFile)) {
+                Logger.error(CLASS_NAME, "Mask file not found: " + maskFile);
+            }
+        }
+
         if (nThreads <= 0) {
             Logger.error(CLASS_NAME, "Number of threads should be greater than 0");
         }
@@ -383,6 +1122,46 @@ public class GetVariants implements Callable<Integer>, Runnable {
         if (minKmerCount < 1) {
             Logger.error(CLASS_NAME, "Minimum kmer count should be at least 1");
         }
+
+        if (lookupCacheMB < 0) {
+            Logger.error(CLASS_NAME, "Lookup cache memory should not be negative");
+        }
+
+        if (searchGroupSize < 0) {
+            Logger.error(CLASS_NAME, "Search group size should not be negative");
+        }
+
+        if (sampleIndexMB < 0) {
+            Logger.error(CLASS_NAME, "Sampled index memory budget should not be negative");
+        }
+
+        if (sortMerge) {
+            if (manifestFile != null || indexFile != null || (kmcDBprefixes != null && kmcDBprefixes.length > 1)) {
+                Logger.error(CLASS_NAME, "--sort-merge works on a single KMC database, not with --manifest, --index or summed databases");
+            }
+            if (sortMemoryMB <= 0) {
+                Logger.error(CLASS_NAME, "Sort memory should be greater than 0");
+            }
+            if (!new File(tmpDir).isDirectory()) {
+                Logger.error(CLASS_NAME, "Temporary directory not found: " + tmpDir);
+            }
+            if (loadMemory || lookupCacheMB > 0 || sampleIndexMB > 0) {
+                Logger.warning(CLASS_NAME, "--memory, --lookup-cache-mb and --sample-index-mb do not apply to --sort-merge, ignored");
+            }
+        }
+
+        if (partitionBins) {
+            if (manifestFile != null || indexFile != null || (kmcDBprefixes != null && kmcDBprefixes.length > 1) || sortMerge) {
+                Logger.error(CLASS_NAME, "--partition-bins works on a single KMC database, not with --manifest, --index, --sort-merge or summed databases");
+            }
+            if (lookupCacheMB > 0) {
+                Logger.warning(CLASS_NAME, "--lookup-cache-mb does not apply to --partition-bins, ignored");
+            }
+        }
+
+        if (loadMemory && (mmapSegment || warmUp)) {
+            Logger.warning(CLASS_NAME, "--mmap-segment and --warmup only apply to the memory mapped KMC database, ignored with --memory");
+        }
     }
 
     private double[] getWeights(){
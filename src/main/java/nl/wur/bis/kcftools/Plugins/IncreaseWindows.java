@@ -135,11 +135,12 @@ public class IncreaseWindows implements Runnable, Callable<Integer> {
             throw new IllegalArgumentException("Window list cannot be empty");
         }
 
-        int newStart = windows.getFirst().getStart();
-        int newEnd = windows.getLast().getEnd();
+        long newStart = windows.getFirst().getStart();
+        long newEnd = windows.getLast().getEnd();
         int totalWindows = windows.size();
 
         int tot = 0;
+        int repeats = 0;
         int[] va = new int[headerSamples.length];
         int[] ob = new int[headerSamples.length];
         int[] id = new int[headerSamples.length];
@@ -153,6 +154,8 @@ public class IncreaseWindows implements Runnable, Callable<Integer> {
 
         for (Window window : windows) {
             tot += window.getTotalKmers();
+            // the repeat kmers are only known if every window was screened (getVariations --unique-only)
+            repeats = repeats < 0 || window.getRepeatKmers() < 0 ? -1 : repeats + window.getRepeatKmers();
 
             for (int i = 0; i < headerSamples.length; i++) {
                 Data data = window.getData().get(headerSamples[i]);
@@ -194,7 +197,8 @@ public class IncreaseWindows implements Runnable, Callable<Integer> {
         }
         Window newWindow = new Window(windows.getFirst().getSequenceName() + "_" + newStart, windows.getFirst().getSequenceName(), newStart, newEnd);
         newWindow.addTotalKmers(tot);
-        newWindow.setEffLength(newEnd - newStart);
+        newWindow.setEffLength((int) (newEnd - newStart));
+        newWindow.setRepeatKmers(repeats);
         for (int i = 0; i < headerSamples.length; i++) {
             newWindow.addData(
                 headerSamples[i],
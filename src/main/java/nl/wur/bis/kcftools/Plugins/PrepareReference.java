@@ -0,0 +1,202 @@
+package nl.wur.bis.kcftools.Plugins;
+
+import nl.wur.bis.kcftools.Data.*;
+import nl.wur.bis.kcftools.Utils.HelperFunctions;
+import nl.wur.bis.kcftools.Utils.Logger;
+
+import picocli.CommandLine;
+import picocli.CommandLine.Command;
+import picocli.CommandLine.Option;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/***
+ * This is a command line plugin that extracts the kmers of all windows of a reference once, and writes them to a
+ * reference kmer cache (.kcfref). getVariations --ref-cache then reads the windows from the memory mapped cache for
+ * every sample, instead of extracting, validating and encoding the reference again.
+ * The kmer length, strand mode and signature length are taken from a KMC database (of any sample, they are counted
+ * with the same settings). With --multiplicity, the reference multiplicity of every kmer is counted as well and
+ * stored with it, so getVariations --unique-only does not count it for every sample.
+ */
+@Command(name = "prepareReference", description = "Write the kmers of the reference windows to a cache for getVariations --ref-cache", sortOptions = false)
+public class PrepareReference implements Callable<Integer>, Runnable {
+    @Option(names = {"-r", "--reference"}, description = "Reference file name", required = true)
+    private String refFasta;
+    @Option(names = {"-k", "--kmc"}, description = "KMC database prefix (of any sample), for the kmer length, strand mode and signature length", required = true)
+    private String kmcDBprefix;
+    @Option(names = {"-o", "--output"}, description = "Output file name [<reference>.kcfref]", required = false)
+    private String outFile;
+    @Option(names = {"-w", "--window"}, description = "Window size", required = true)
+    private int windowSize;
+    @Option(names = {"-p", "--step"}, description = "Step size for sliding window [window size]", required = false)
+    private int stepSize = 0;
+    @Option(names = {"-t", "--threads"}, description = "Number of threads [2]", required = false)
+    private int nThreads = 2;
+    @Option(names = {"--soft-mask"}, description = "Skip the kmers with soft-masked (lower case) reference bases", required = false)
+    private boolean softMask = false;
+    @Option(names = {"--mask"}, description = "BED file of reference regions whose kmers are skipped", required = false)
+    private String maskFile;
+    @Option(names = {"--multiplicity"}, description = "Store the reference multiplicity of every kmer, for getVariations --unique-only (k <= 31)", required = false)
+    private boolean storeMultiplicity = false;
+
+    private final String CLASS_NAME = this.getClass().getSimpleName();
+    // windows scanned by one task
+    private static final int WINDOWS_PER_TASK = 64;
+
+    public PrepareReference() {
+    }
+
+    @Override
+    public Integer call() throws IOException, InterruptedException {
+        HelperFunctions.printCommandLine(new CommandLine(this), CLASS_NAME);
+        validateCMD();
+        prepareReference();
+        return 0;
+    }
+
+    @Override
+    public void run() {
+        try {
+            call();
+        } catch (IOException | InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /***
+     * Scan the windows of every contig on several threads, and write them to the cache in order
+     */
+    private void prepareReference() throws IOException {
+        if (outFile == null) {
+            outFile = refFasta + ReferenceKmerCache.EXTENSION;
+        }
+        int kmerLength;
+        boolean canonical;
+        Signature signature;
+        try (KMC kmc = new KMC(kmcDBprefix, new KMCOptions())) {
+            kmerLength = kmc.getKmerLength();
+            canonical = kmc.isBothStrands();
+            signature = kmc.getSignatureReference();
+        }
+        long startTime = System.currentTimeMillis();
+        ExecutorService executor = Executors.newFixedThreadPool(nThreads);
+        try (FastaIndex index = new FastaIndex(refFasta)) {
+            SequenceMask mask = maskFile == null ? null : new SequenceMask(maskFile);
+            if (mask != null) {
+                mask.printSummary(index.getSequenceNames());
+            }
+            // the multiplicity is counted like getVariations does: over all bases, the masked ones included
+            ReferenceMultiplicity multiplicity = storeMultiplicity ? ReferenceMultiplicity.count(index, kmerLength, canonical, nThreads) : null;
+            List<String> contigs = index.getSequenceNames();
+            ReferenceKmerCache cache = ReferenceKmerCache.create(outFile, kmerLength, canonical,
+                    signature == null ? 0 : signature.getSignLength(), windowSize, stepSize, softMask, storeMultiplicity, contigs.size(),
+                    ReferenceKmerCache.checksum(index, nThreads), ReferenceKmerCache.checksum(maskFile));
+            // the header and the window table are written when the cache is closed
+            try (cache) {
+                for (int contig = 0; contig < contigs.size(); contig++) {
+                    String name = contigs.get(contig);
+                    Iterator<Window> windows = Window.tiles(name, index.getSequenceLength(name), windowSize, stepSize, kmerLength);
+
+                    // scan a round of tasks in parallel, then write their windows in order; the windows are generated
+                    // one round at a time, so a long contig is never tiled in memory at once
+                    while (windows.hasNext()) {
+                        List<Future<List<ScannedWindow>>> futures = new ArrayList<>();
+                        for (int task = 0; task < nThreads * 4 && windows.hasNext(); task++) {
+                            List<Window> taskWindows = new ArrayList<>(WINDOWS_PER_TASK);
+                            while (taskWindows.size() < WINDOWS_PER_TASK && windows.hasNext()) {
+                                taskWindows.add(windows.next());
+                            }
+                            futures.add(executor.submit(() -> scanWindows(taskWindows, index, mask, multiplicity, kmerLength, canonical, signature)));
+                        }
+                        for (Future<List<ScannedWindow>> future : futures) {
+                            for (ScannedWindow scanned : future.get()) {
+                                cache.addWindow(contig, scanned.window.getStart(), scanned.window.getEnd(), scanned.effLength, scanned.batch, scanned.multiplicities);
+                            }
+                        }
+                    }
+                }
+            }
+            cache.printSummary();
+        } catch (Exception e) {
+            Logger.error(CLASS_NAME, "Error writing reference cache " + outFile + ": " + e.getMessage());
+        } finally {
+            executor.shutdown();
+        }
+        Logger.info(CLASS_NAME, "Reference cache written to " + outFile + " in " + (System.currentTimeMillis() - startTime) + " ms");
+    }
+
+    /***
+     * The kmers and the effective length of a window
+     */
+    private static class ScannedWindow {
+        private final Window window;
+        private final KmerBatch batch;
+        private final int effLength;
+        private final byte[] multiplicities;
+
+        private ScannedWindow(Window window, KmerBatch batch, int effLength, byte[] multiplicities) {
+            this.window = window;
+            this.batch = batch;
+            this.effLength = effLength;
+            this.multiplicities = multiplicities;
+        }
+    }
+
+    private List<ScannedWindow> scanWindows(List<Window> windows, FastaIndex index, SequenceMask mask,
+                                            ReferenceMultiplicity multiplicity, int kmerLength, boolean canonical,
+                                            Signature signature) {
+        KmerScanner scanner = new KmerScanner(kmerLength, canonical, signature);
+        scanner.setSoftMask(softMask);
+        List<ScannedWindow> scanned = new ArrayList<>(windows.size());
+        for (Window window : windows) {
+            byte[] bases = index.getBases(window.getSequenceName(), window.getStart(), window.length());
+            if (bases == null) {
+                Logger.error(CLASS_NAME, "Sequence is null for window: " + window.getWindowId());
+                continue;
+            }
+            if (mask != null) {
+                mask.mask(window.getSequenceName(), window.getStart(), bases);
+            }
+            KmerBatch batch = new KmerBatch(kmerLength, window.length());
+            int effLength = scanner.scan(bases, batch);
+            byte[] multiplicities = null;
+            if (multiplicity != null) {
+                multiplicities = new byte[batch.size()];
+                for (int i = 0; i < batch.size(); i++) {
+                    multiplicities[i] = (byte) multiplicity.getMultiplicity(batch.getKmers(), i * batch.getWords());
+                }
+            }
+            scanned.add(new ScannedWindow(window, batch, effLength, multiplicities));
+        }
+        return scanned;
+    }
+
+    private void validateCMD() {
+        if (!HelperFunctions.checkFileExists(refFasta)) {
+            Logger.error(CLASS_NAME, "Reference file not found: " + refFasta);
+        }
+        if (!HelperFunctions.checkFileExists(kmcDBprefix + ".kmc_pre") || !HelperFunctions.checkFileExists(kmcDBprefix + ".kmc_suf")) {
+            Logger.error(CLASS_NAME, "KMC database not found: " + kmcDBprefix);
+        }
+        if (windowSize <= 0) {
+            Logger.error(CLASS_NAME, "Window size should be greater than 0");
+        }
+        if (stepSize < 0) {
+            Logger.error(CLASS_NAME, "Step size should not be negative");
+        }
+        if (nThreads <= 0) {
+            Logger.error(CLASS_NAME, "Number of threads should be greater than 0");
+        }
+        if (maskFile != null && !HelperFunctions.checkFileExists(maskFile)) {
+            Logger.error(CLASS_NAME, "Mask file not found: " + maskFile);
+        }
+    }
+}
+//EOF
@@ -22,7 +22,8 @@ public enum Configs {
                     <ID=MO,Type=Integer,Description="Mean observed kmers in the window">
                     <ID=IV,Type=Integer,Description="Minimum variations in the window">
                     <ID=XV,Type=Integer,Description="Maximum variations in the window">
-                    <ID=MV,Type=Integer,Description="Mean variations in the window">"""
+                    <ID=MV,Type=Integer,Description="Mean variations in the window">
+                    <ID=RK,Type=Integer,Description="Reference kmers of the window skipped as repeats (getVariations --unique-only)">"""
     ),
     KCF_FORMAT_LINES(
             """
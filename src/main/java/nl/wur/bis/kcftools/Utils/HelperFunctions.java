@@ -2,7 +2,11 @@ package nl.wur.bis.kcftools.Utils;
 
 import picocli.CommandLine;
 
+import com.sun.management.HotSpotDiagnosticMXBean;
+
 import java.io.*;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.text.SimpleDateFormat;
@@ -290,6 +294,30 @@ public class HelperFunctions {
         Logger.info(className, "==================================================");
     }
 
+    /***
+     * Get the direct (off-heap) memory that can still be allocated: the JVM limit (-XX:MaxDirectMemorySize, the max
+     * heap size by default) minus the direct buffers allocated so far
+     */
+    public static long getAvailableDirectMemory() {
+        long maxDirectMemory = 0;
+        try {
+            HotSpotDiagnosticMXBean diagnostics = ManagementFactory.getPlatformMXBean(HotSpotDiagnosticMXBean.class);
+            maxDirectMemory = Long.parseLong(diagnostics.getVMOption("MaxDirectMemorySize").getValue());
+        } catch (RuntimeException e) {
+            // not a HotSpot JVM, assume the default limit
+        }
+        if (maxDirectMemory <= 0) {
+            maxDirectMemory = Runtime.getRuntime().maxMemory();
+        }
+        long used = 0;
+        for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+            if (pool.getName().equals("direct")) {
+                used = pool.getMemoryUsed();
+            }
+        }
+        return maxDirectMemory - used;
+    }
+
     /***
      * Print the memory usage
      */
@@ -1,5 +1,7 @@
 package nl.wur.bis.kcftools.Utils;
 
+import java.io.PrintWriter;
+import java.io.StringWriter;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 
@@ -71,5 +73,14 @@ public class Logger {
     public static void debug(String className, String message) {
         log(LogLevel.DEBUG, className, message);
     }
+
+    /***
+     * Log the stack trace of an exception with the DEBUG log level
+     */
+    public static void debug(String className, Throwable throwable) {
+        StringWriter trace = new StringWriter();
+        throwable.printStackTrace(new PrintWriter(trace));
+        log(LogLevel.DEBUG, className, trace.toString());
+    }
 }
 //EOF
\ No newline at end of file
@@ -0,0 +1,153 @@
+package nl.wur.bis.kcftools.Data;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/***
+ * Checks that the batch lookup paths of KMCCursor (the sorted merge and the interleaved searches) find the same count
+ * as the single kmer search, kmer by kmer, on small generated KMC databases
+ */
+public class KMCCursorTest {
+    private static final int[] GROUP_SIZES = {0, 1, 2, 3, 8, 16, 32};
+    private static final int BATCH_SIZE = 2000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static String randomSequence(Random random, int length) {
+        StringBuilder sb = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            sb.append("ACGT".charAt(random.nextInt(4)));
+        }
+        return sb.toString();
+    }
+
+    private static String mutate(Random random, String sequence, double rate) {
+        char[] bases = sequence.toCharArray();
+        for (int i = 0; i < bases.length; i++) {
+            if (random.nextDouble() < rate) {
+                bases[i] = "ACGT".charAt(random.nextInt(4));
+            }
+        }
+        return new String(bases);
+    }
+
+    private static String canonical(String kmer) {
+        StringBuilder reverse = new StringBuilder(kmer.length());
+        for (int i = kmer.length() - 1; i >= 0; i--) {
+            reverse.append(switch (kmer.charAt(i)) {
+                case 'A' -> 'T';
+                case 'C' -> 'G';
+                case 'G' -> 'C';
+                default -> 'A';
+            });
+        }
+        String rc = reverse.toString();
+        return rc.compareTo(kmer) < 0 ? rc : kmer;
+    }
+
+    /***
+     * Count the kmers of the sample sequence (with random multiplicities), write them as a KMC database, and check the
+     * lookups of the kmers of the reference sequence, about half of which are absent from the sample
+     */
+    private void checkLookups(int kmerLength, int lutPrefixLength, int signatureLength, int counterSize,
+                              boolean canonical, int bins, long sampledIndexBytes) throws IOException {
+        Random random = new Random(kmerLength * 31L + lutPrefixLength);
+        String reference = randomSequence(random, 60000);
+        String sample = mutate(random, reference, 0.02);
+        Map<String, Integer> counts = new HashMap<>();
+        for (int i = 0; i + kmerLength <= sample.length(); i++) {
+            String kmer = sample.substring(i, i + kmerLength);
+            counts.merge(canonical ? canonical(kmer) : kmer, 1 + random.nextInt(300), Integer::sum);
+        }
+        String prefix = KmcTestDatabase.write(folder.getRoot().toPath(), "db", counts, kmerLength, lutPrefixLength,
+                signatureLength, counterSize, canonical, bins);
+
+        KMCOptions options = new KMCOptions();
+        options.setSampledIndexBytes(sampledIndexBytes);
+        try (KMC kmc = new KMC(prefix, options)) {
+            assertEquals(counts.size(), kmc.getTotalKmers());
+            KMCCursor cursor = kmc.newCursor();
+            KmerScanner scanner = new KmerScanner(kmerLength, canonical, kmc.getSignatureReference());
+            List<KmerBatch> batches = new ArrayList<>();
+            scanner.scan(reference, (position, kmer, signature) -> {
+                if (batches.isEmpty() || batches.get(batches.size() - 1).size() == BATCH_SIZE) {
+                    batches.add(new KmerBatch(kmerLength, BATCH_SIZE));
+                }
+                batches.get(batches.size() - 1).add(position, kmer, signature);
+            });
+
+            int maxCount = (int) Math.min(Integer.MAX_VALUE, (1L << (8 * counterSize)) - 1);
+            int found = 0;
+            for (KmerBatch batch : batches) {
+                int[] expected = new int[batch.size()];
+                long[] kmers = batch.getKmers();
+                int words = batch.getWords();
+                for (int i = 0; i < batch.size(); i++) {
+                    long[] kmer = Arrays.copyOfRange(kmers, i * words, (i + 1) * words);
+                    expected[i] = cursor.getCount(kmer, batch.getSignature(i));
+                    String bases = reference.substring(batch.getPosition(i), batch.getPosition(i) + kmerLength);
+                    assertEquals("single key lookup of " + bases,
+                            Math.min(counts.getOrDefault(canonical ? canonical(bases) : bases, 0), maxCount), expected[i]);
+                    if (expected[i] > 0) {
+                        found++;
+                    }
+                }
+                for (int groupSize : GROUP_SIZES) {
+                    cursor.setSearchGroupSize(groupSize);
+                    for (int i = 0; i < batch.size(); i++) {
+                        batch.setCount(i, -1);
+                    }
+                    cursor.getCounts(batch);
+                    for (int i = 0; i < batch.size(); i++) {
+                        assertEquals("group size " + groupSize + ", kmer at " + batch.getPosition(i), expected[i], batch.getCount(i));
+                    }
+                    cursor.addCounts(batch);
+                    for (int i = 0; i < batch.size(); i++) {
+                        assertEquals("accumulated, group size " + groupSize, (int) Math.min((long) expected[i] * 2, Integer.MAX_VALUE), batch.getCount(i));
+                    }
+                }
+            }
+            // both present and absent kmers were queried
+            assertTrue(found > 0);
+            assertTrue(found < batches.stream().mapToInt(KmerBatch::size).sum());
+        }
+    }
+
+    @Test
+    public void batchLookupsMatchSingleKeyK31() throws IOException {
+        checkLookups(31, 3, 9, 2, true, 2, 0);
+    }
+
+    @Test
+    public void batchLookupsMatchSingleKeyWithSampledIndex() throws IOException {
+        checkLookups(31, 3, 9, 2, true, 2, 4096);
+    }
+
+    @Test
+    public void batchLookupsMatchSingleKeyTwoWordSuffix() throws IOException {
+        checkLookups(41, 5, 7, 1, true, 16, 0);
+    }
+
+    @Test
+    public void batchLookupsMatchSingleKeyForwardStrand() throws IOException {
+        checkLookups(21, 1, 7, 4, false, 16, 0);
+    }
+
+    @Test
+    public void batchLookupsMatchSingleKeyLongKmers() throws IOException {
+        checkLookups(71, 7, 9, 2, true, 16, 1024);
+    }
+}
+//EOF
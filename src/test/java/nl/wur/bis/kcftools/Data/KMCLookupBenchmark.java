@@ -0,0 +1,205 @@
+package nl.wur.bis.kcftools.Data;
+
+import nl.wur.bis.kcftools.Utils.Logger;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/***
+ * Benchmarks the KMC lookup paths on the kmers of a reference: one binary search per kmer, the sorted merge of a
+ * batch (the getVariations default), and the interleaved binary searches (--search-group) for several group sizes.
+ * The lookups run on a single thread, so the numbers are the latency of one worker, and every path has to find the
+ * same counts. It is not one of the unit tests (the class name does not end in Test), run it with:
+ *   mvn test -Dtest=KMCLookupBenchmark [-Dbench.kmc=prefix -Dbench.reference=ref.fa] [-Dbench.memory=false]
+ *       [-Dbench.kmers=1000000] [-Dbench.batch=2000] [-Dbench.groups=4,8,16,32] [-Dbench.rounds=3]
+ * Without a database, a KMC database is generated from a sample of a random 1 Mbp reference. The database is
+ * loaded into memory (like getVariations -m) unless bench.memory is false.
+ */
+public class KMCLookupBenchmark {
+    private static final String CLASS_NAME = KMCLookupBenchmark.class.getSimpleName();
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static String randomSequence(Random random, int length) {
+        StringBuilder sb = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            sb.append("ACGT".charAt(random.nextInt(4)));
+        }
+        return sb.toString();
+    }
+
+    private static String canonical(String kmer) {
+        StringBuilder reverse = new StringBuilder(kmer.length());
+        for (int i = kmer.length() - 1; i >= 0; i--) {
+            reverse.append(switch (kmer.charAt(i)) {
+                case 'A' -> 'T';
+                case 'C' -> 'G';
+                case 'G' -> 'C';
+                default -> 'A';
+            });
+        }
+        String rc = reverse.toString();
+        return rc.compareTo(kmer) < 0 ? rc : kmer;
+    }
+
+    @Test
+    public void benchmarkLookupPaths() throws IOException {
+        String kmcPrefix = System.getProperty("bench.kmc");
+        String reference = System.getProperty("bench.reference");
+        boolean inMemory = Boolean.parseBoolean(System.getProperty("bench.memory", "true"));
+        int maxKmers = Integer.getInteger("bench.kmers", 1000000);
+        int batchSize = Integer.getInteger("bench.batch", 2000);
+        int rounds = Integer.getInteger("bench.rounds", 3);
+        int[] groupSizes = Arrays.stream(System.getProperty("bench.groups", "4,8,16,32").split(","))
+                .mapToInt(Integer::parseInt).toArray();
+
+        List<byte[]> sequences = new ArrayList<>();
+        if (kmcPrefix == null) {
+            // a random reference, and a sample with 1% mutated bases, so a quarter of the reference kmers are absent
+            Random random = new Random(15);
+            String sequence = randomSequence(random, 1000000);
+            char[] bases = sequence.toCharArray();
+            for (int i = 0; i < bases.length; i++) {
+                if (random.nextDouble() < 0.01) {
+                    bases[i] = "ACGT".charAt(random.nextInt(4));
+                }
+            }
+            String sample = new String(bases);
+            Map<String, Integer> counts = new HashMap<>();
+            for (int i = 0; i + 31 <= sample.length(); i++) {
+                counts.putIfAbsent(canonical(sample.substring(i, i + 31)), 1 + random.nextInt(50));
+            }
+            kmcPrefix = KmcTestDatabase.write(folder.getRoot().toPath(), "bench", counts, 31, 3, 9, 2, true, 64);
+            sequences.add(sequence.getBytes());
+        } else {
+            assertNotNull("bench.reference is required with bench.kmc", reference);
+            try (FastaIndex index = new FastaIndex(reference)) {
+                long collected = 0;
+                for (String name : index.getSequenceNames()) {
+                    if (collected >= maxKmers) {
+                        break;
+                    }
+                    int length = (int) Math.min(index.getSequenceLength(name), maxKmers - collected + 100);
+                    sequences.add(index.getBases(name, 0, length));
+                    collected += length;
+                }
+            }
+        }
+
+        KMCOptions options = new KMCOptions();
+        options.setInMemory(inMemory);
+        try (KMC kmc = new KMC(kmcPrefix, options)) {
+            List<KmerBatch> batches = readBatches(kmc, sequences, maxKmers, batchSize);
+            long totalKmers = batches.stream().mapToLong(KmerBatch::size).sum();
+            Logger.info(CLASS_NAME, "Query kmers: " + totalKmers + " in " + batches.size() + " batches of " + batchSize
+                    + (inMemory ? ", database in memory" : ", database memory mapped"));
+            KMCCursor cursor = kmc.newCursor();
+
+            // sort the batches once (cached in the batch), and check every path against the sorted merge, kmer by kmer
+            cursor.setSearchGroupSize(0);
+            int[][] expected = resolveBatches(cursor, batches);
+            Logger.info(CLASS_NAME, String.format("%-22s %12s %14s", "Lookup path", "ns/kmer", "Mkmers/s"));
+            report("single key", totalKmers, timeSingleKey(cursor, batches, expected, rounds));
+            report("sorted merge", totalKmers, timeBatches(cursor, batches, 0, expected, rounds));
+            for (int groupSize : groupSizes) {
+                report("interleaved, group " + groupSize, totalKmers, timeBatches(cursor, batches, groupSize, expected, rounds));
+            }
+        }
+    }
+
+    /***
+     * Extract the kmers of the sequences into batches, up to maxKmers
+     */
+    private static List<KmerBatch> readBatches(KMC kmc, List<byte[]> sequences, int maxKmers, int batchSize) {
+        List<KmerBatch> batches = new ArrayList<>();
+        KmerScanner scanner = new KmerScanner(kmc.getKmerLength(), kmc.isBothStrands(), kmc.getSignatureReference());
+        long[] collected = {0};
+        for (byte[] sequence : sequences) {
+            scanner.scan(sequence, (position, kmer, signature) -> {
+                if (collected[0] >= maxKmers) {
+                    return;
+                }
+                if (batches.isEmpty() || batches.get(batches.size() - 1).size() == batchSize) {
+                    batches.add(new KmerBatch(kmc.getKmerLength(), batchSize));
+                }
+                batches.get(batches.size() - 1).add(position, kmer, signature);
+                collected[0]++;
+            });
+        }
+        return batches;
+    }
+
+    private static int[][] resolveBatches(KMCCursor cursor, List<KmerBatch> batches) {
+        int[][] counts = new int[batches.size()][];
+        for (int b = 0; b < batches.size(); b++) {
+            KmerBatch batch = batches.get(b);
+            cursor.getCounts(batch);
+            counts[b] = new int[batch.size()];
+            for (int i = 0; i < batch.size(); i++) {
+                counts[b][i] = batch.getCount(i);
+            }
+        }
+        return counts;
+    }
+
+    /***
+     * Best time of the batch lookups with the given group size (0 for the sorted merge)
+     */
+    private static long timeBatches(KMCCursor cursor, List<KmerBatch> batches, int groupSize, int[][] expected, int rounds) {
+        cursor.setSearchGroupSize(groupSize);
+        long best = Long.MAX_VALUE;
+        // round 0 is a warm-up (JIT compilation), not timed
+        for (int round = 0; round <= rounds; round++) {
+            long start = System.nanoTime();
+            int[][] counts = resolveBatches(cursor, batches);
+            if (round > 0) {
+                best = Math.min(best, System.nanoTime() - start);
+            }
+            assertArrayEquals("group size " + groupSize, expected, counts);
+        }
+        return best;
+    }
+
+    /***
+     * Best time of one binary search per kmer, in positional order
+     */
+    private static long timeSingleKey(KMCCursor cursor, List<KmerBatch> batches, int[][] expected, int rounds) {
+        long best = Long.MAX_VALUE;
+        for (int round = 0; round <= rounds; round++) {
+            long start = System.nanoTime();
+            int[][] counts = new int[batches.size()][];
+            for (int b = 0; b < batches.size(); b++) {
+                KmerBatch batch = batches.get(b);
+                int words = batch.getWords();
+                long[] kmer = new long[words];
+                counts[b] = new int[batch.size()];
+                for (int i = 0; i < batch.size(); i++) {
+                    System.arraycopy(batch.getKmers(), i * words, kmer, 0, words);
+                    counts[b][i] = cursor.getCount(kmer, batch.getSignature(i));
+                }
+            }
+            if (round > 0) {
+                best = Math.min(best, System.nanoTime() - start);
+            }
+            assertArrayEquals("single key", expected, counts);
+        }
+        return best;
+    }
+
+    private static void report(String path, long kmers, long nanos) {
+        Logger.info(CLASS_NAME, String.format("%-22s %12.1f %14.2f", path, (double) nanos / Math.max(1, kmers),
+                kmers * 1000.0 / Math.max(1, nanos)));
+    }
+}
+//EOF
@@ -0,0 +1,114 @@
+package nl.wur.bis.kcftools.Data;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/***
+ * Writes a small KMC (version 0x200) database from a map of kmers and counts, laid out like the files of kmc: the
+ * records sorted by (signature bin, LUT prefix, suffix) in kmc_suf, and the prefix array, the signature map and the
+ * header in kmc_pre. The signatures are mapped round robin to the bins.
+ */
+public final class KmcTestDatabase {
+    private KmcTestDatabase() {
+    }
+
+    private static class Record {
+        final int bin;
+        final int prefix;
+        final byte[] suffix;
+        final int count;
+
+        Record(int bin, int prefix, byte[] suffix, int count) {
+            this.bin = bin;
+            this.prefix = prefix;
+            this.suffix = suffix;
+            this.count = count;
+        }
+    }
+
+    /***
+     * Write <dir>/<name>.kmc_pre and .kmc_suf and return the database prefix. The kmers should already be canonical if
+     * canonical is set, and kmerLength - lutPrefixLength should be a multiple of 4.
+     */
+    public static String write(Path dir, String name, Map<String, Integer> counts, int kmerLength, int lutPrefixLength,
+                        int signatureLength, int counterSize, boolean canonical, int bins) throws IOException {
+        KmerCodec codec = KmerCodec.of(kmerLength);
+        Signature signature = new Signature(signatureLength);
+        int suffixBases = kmerLength - lutPrefixLength;
+        List<Record> records = new ArrayList<>();
+        for (Map.Entry<String, Integer> entry : counts.entrySet()) {
+            long[] kmer = LegacyKmer.kmerToLong(entry.getKey());
+            int bin = codec.getSignature(kmer, 0, signature) % bins;
+            int prefix = LegacyKmer.extractIntFromBits(kmer, 0, lutPrefixLength);
+            records.add(new Record(bin, prefix, LegacyKmer.extractSuffix(kmer, kmerLength, lutPrefixLength), entry.getValue()));
+        }
+        records.sort((a, b) -> a.bin != b.bin ? Integer.compare(a.bin, b.bin)
+                : a.prefix != b.prefix ? Integer.compare(a.prefix, b.prefix)
+                : Arrays.compareUnsigned(a.suffix, b.suffix));
+
+        String prefix = dir.resolve(name).toString();
+        int maxCount = (int) Math.min(Integer.MAX_VALUE, (1L << (8 * counterSize)) - 1);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(prefix + ".kmc_suf")))) {
+            out.writeBytes("KMCS");
+            for (Record record : records) {
+                out.write(record.suffix, 0, suffixBases / 4);
+                int count = Math.min(record.count, maxCount);
+                for (int i = 0; i < counterSize; i++) {
+                    out.write(count >>> (8 * i));
+                }
+            }
+            out.writeBytes("KMCS");
+        }
+
+        int lutSize = 1 << (2 * lutPrefixLength);
+        long[] lut = new long[bins * lutSize];
+        for (Record record : records) {
+            lut[record.bin * lutSize + record.prefix]++;
+        }
+        long start = 0;
+        for (int i = 0; i < lut.length; i++) {
+            long slotRecords = lut[i];
+            lut[i] = start;
+            start += slotRecords;
+        }
+        int signatureMapSize = (1 << (2 * signatureLength)) + 1;
+        ByteBuffer pre = ByteBuffer.allocate(4 + lut.length * 8 + 8 + signatureMapSize * 4 + 128)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        pre.put("KMCP".getBytes());
+        for (long value : lut) {
+            pre.putLong(value);
+        }
+        pre.putLong(records.size());
+        for (int i = 0; i < signatureMapSize; i++) {
+            pre.putInt(i % bins);
+        }
+        int headerStart = pre.position();
+        pre.putInt(kmerLength);
+        pre.putInt(0);
+        pre.putInt(counterSize);
+        pre.putInt(lutPrefixLength);
+        pre.putInt(signatureLength);
+        pre.putInt(1);
+        pre.putInt(maxCount);
+        pre.putLong(records.size());
+        pre.put((byte) (canonical ? 0 : 1));
+        pre.put(new byte[3 + 24]);
+        pre.putInt(0x200);
+        pre.putInt(pre.position() - headerStart);
+        pre.put("KMCP".getBytes());
+        try (FileOutputStream out = new FileOutputStream(prefix + ".kmc_pre")) {
+            out.write(pre.array(), 0, pre.position());
+        }
+        return prefix;
+    }
+}
+//EOF
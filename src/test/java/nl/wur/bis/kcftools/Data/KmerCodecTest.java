@@ -0,0 +1,141 @@
+package nl.wur.bis.kcftools.Data;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/***
+ * Checks the specialised (k <= 32, k <= 64) and the general kmer codecs against the bit-by-bit operations of the
+ * original Kmer class
+ */
+public class KmerCodecTest {
+    private static final int[] KMER_LENGTHS = {1, 5, 11, 16, 17, 21, 31, 32, 33, 41, 47, 63, 64, 65, 77, 96, 127, 128, 129};
+    private static final int KMERS_PER_LENGTH = 500;
+
+    private static String randomKmer(Random random, int length) {
+        StringBuilder sb = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            sb.append("ACGT".charAt(random.nextInt(4)));
+        }
+        return sb.toString();
+    }
+
+    /***
+     * Copy the kmer into a larger array at a non zero offset, so the offsets of the codecs are exercised as well
+     */
+    private static long[] embed(long[] kmer, int offset) {
+        long[] array = new long[offset + kmer.length + 2];
+        Arrays.fill(array, 0x5A5A5A5A5A5A5A5AL);
+        System.arraycopy(kmer, 0, array, offset, kmer.length);
+        return array;
+    }
+
+    private static long[] slice(long[] array, int offset, int words) {
+        return Arrays.copyOfRange(array, offset, offset + words);
+    }
+
+    @Test
+    public void reverseComplementMatchesLegacy() {
+        Random random = new Random(17);
+        for (int k : KMER_LENGTHS) {
+            KmerCodec codec = KmerCodec.of(k);
+            for (int n = 0; n < KMERS_PER_LENGTH; n++) {
+                long[] kmer = LegacyKmer.kmerToLong(randomKmer(random, k));
+                long[] in = embed(kmer, 1);
+                long[] out = embed(new long[kmer.length], 2);
+                codec.reverseComplement(in, 1, out, 2);
+                assertArrayEquals("k=" + k, LegacyKmer.getReverseComplement(kmer, k), slice(out, 2, kmer.length));
+                assertArrayEquals("input changed, k=" + k, kmer, slice(in, 1, kmer.length));
+            }
+        }
+    }
+
+    @Test
+    public void canonicalizeMatchesLegacy() {
+        Random random = new Random(18);
+        for (int k : KMER_LENGTHS) {
+            KmerCodec codec = KmerCodec.of(k);
+            for (int n = 0; n < KMERS_PER_LENGTH; n++) {
+                String bases = randomKmer(random, k);
+                // palindromes (reverse complement equal to the kmer) are an edge case of the in place comparison
+                if (n == 0 && k % 2 == 0) {
+                    String half = bases.substring(0, k / 2);
+                    bases = half + new StringBuilder(half).reverse().toString()
+                            .replace('A', 't').replace('T', 'a').replace('C', 'g').replace('G', 'c').toUpperCase();
+                }
+                long[] kmer = LegacyKmer.kmerToLong(bases);
+                long[] array = embed(kmer, 3);
+                codec.canonicalize(array, 3);
+                assertArrayEquals("k=" + k + " " + bases, LegacyKmer.canonical(kmer, k), slice(array, 3, kmer.length));
+                assertEquals(0x5A5A5A5A5A5A5A5AL, array[2]);
+                assertEquals(0x5A5A5A5A5A5A5A5AL, array[3 + kmer.length]);
+            }
+        }
+    }
+
+    @Test
+    public void mmersAndPrefixesMatchLegacy() {
+        Random random = new Random(19);
+        for (int k : KMER_LENGTHS) {
+            KmerCodec codec = KmerCodec.of(k);
+            for (int n = 0; n < KMERS_PER_LENGTH / 10; n++) {
+                long[] kmer = LegacyKmer.kmerToLong(randomKmer(random, k));
+                long[] array = embed(kmer, 1);
+                for (int length = 1; length <= Math.min(16, k); length++) {
+                    assertEquals("prefix k=" + k + " length=" + length,
+                            LegacyKmer.extractIntFromBits(kmer, 0, length), codec.getPrefix(array, 1, length));
+                    for (int start = 0; start + length <= k; start++) {
+                        assertEquals("mmer k=" + k + " start=" + start + " length=" + length,
+                                LegacyKmer.extractIntFromBits(kmer, start, length), codec.getMmer(array, 1, start, length));
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void suffixesAndBasesMatchLegacy() {
+        Random random = new Random(20);
+        for (int k : KMER_LENGTHS) {
+            KmerCodec codec = KmerCodec.of(k);
+            for (int n = 0; n < KMERS_PER_LENGTH / 10; n++) {
+                long[] kmer = LegacyKmer.kmerToLong(randomKmer(random, k));
+                long[] array = embed(kmer, 1);
+                for (int prefixLength = 0; prefixLength <= Math.min(16, k); prefixLength++) {
+                    byte[] suffix = new byte[(k - prefixLength + 3) / 4];
+                    codec.getSuffixBytes(array, 1, prefixLength, suffix);
+                    assertArrayEquals("suffix k=" + k + " prefix=" + prefixLength,
+                            LegacyKmer.extractSuffix(kmer, k, prefixLength), suffix);
+                }
+                byte[] bases = new byte[k];
+                codec.getBases(array, 1, bases);
+                for (int i = 0; i < k; i++) {
+                    assertEquals("base k=" + k + " i=" + i, LegacyKmer.baseAt(kmer, i), bases[i]);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void compareAndSignatureMatchLegacy() {
+        Random random = new Random(21);
+        for (int k : KMER_LENGTHS) {
+            KmerCodec codec = KmerCodec.of(k);
+            Signature signature = k >= 9 ? new Signature(9) : null;
+            for (int n = 0; n < KMERS_PER_LENGTH; n++) {
+                long[] a = LegacyKmer.kmerToLong(randomKmer(random, k));
+                long[] b = n % 5 == 0 ? a.clone() : LegacyKmer.kmerToLong(randomKmer(random, k));
+                assertEquals("compare k=" + k, Integer.signum(LegacyKmer.compareLongArrays(a, b)),
+                        Integer.signum(codec.compare(embed(a, 1), 1, embed(b, 2), 2)));
+                if (signature != null) {
+                    assertEquals("signature k=" + k, LegacyKmer.getSignature(a, k, signature),
+                            codec.getSignature(embed(a, 2), 2, signature));
+                }
+            }
+        }
+    }
+}
+//EOF
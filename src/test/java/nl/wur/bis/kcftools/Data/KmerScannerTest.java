@@ -0,0 +1,133 @@
+package nl.wur.bis.kcftools.Data;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/***
+ * Checks the kmers and the rolling signatures of KmerScanner against the per-kmer encoding and signature rescan
+ */
+public class KmerScannerTest {
+    private static final int[] KMER_LENGTHS = {5, 15, 21, 31, 32, 33, 41, 63, 64, 65, 101};
+    private static final int[] SIGNATURE_LENGTHS = {5, 7, 9, 11};
+
+    /***
+     * A random sequence with mixed case bases and short runs of N
+     */
+    private static String randomSequence(Random random, int length) {
+        String bases = "ACGTACGTACGTacgtN";
+        StringBuilder sb = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            char base = bases.charAt(random.nextInt(bases.length()));
+            if (base == 'N') {
+                // keep most stretches longer than a kmer
+                if (random.nextInt(8) != 0) {
+                    base = 'A';
+                }
+            }
+            sb.append(base);
+        }
+        return sb.toString();
+    }
+
+    private static class Visited {
+        final int position;
+        final long[] kmer;
+        final int signature;
+
+        Visited(int position, long[] kmer, int signature) {
+            this.position = position;
+            this.kmer = kmer;
+            this.signature = signature;
+        }
+    }
+
+    private static List<Visited> scan(KmerScanner scanner, String sequence) {
+        List<Visited> visited = new ArrayList<>();
+        scanner.scan(sequence, (position, kmer, signature) -> visited.add(new Visited(position, kmer.clone(), signature)));
+        return visited;
+    }
+
+    @Test
+    public void kmersAndSignaturesMatchPerKmerComputation() {
+        Random random = new Random(42);
+        for (int kmerLength : KMER_LENGTHS) {
+            for (int signatureLength : SIGNATURE_LENGTHS) {
+                if (signatureLength > kmerLength) {
+                    continue;
+                }
+                Signature signature = new Signature(signatureLength);
+                for (boolean canonical : new boolean[]{true, false}) {
+                    String sequence = randomSequence(random, 2000);
+                    KmerScanner scanner = new KmerScanner(kmerLength, canonical, signature);
+                    List<Visited> visited = scan(scanner, sequence);
+
+                    int expectedIndex = 0;
+                    for (int i = 0; i + kmerLength <= sequence.length(); i++) {
+                        String kmer = sequence.substring(i, i + kmerLength);
+                        if (kmer.toUpperCase().indexOf('N') >= 0) {
+                            continue;
+                        }
+                        String context = "k=" + kmerLength + " m=" + signatureLength + " canonical=" + canonical + " position=" + i;
+                        assertTrue("missing kmer, " + context, expectedIndex < visited.size());
+                        Visited v = visited.get(expectedIndex++);
+                        long[] expected = LegacyKmer.kmerToLong(kmer);
+                        if (canonical) {
+                            expected = LegacyKmer.canonical(expected, kmerLength);
+                        }
+                        assertEquals("position, " + context, i, v.position);
+                        assertArrayEquals("kmer, " + context, expected, v.kmer);
+                        assertEquals("signature, " + context, LegacyKmer.getSignature(expected, kmerLength, signature), v.signature);
+                    }
+                    assertEquals("extra kmers, k=" + kmerLength, expectedIndex, visited.size());
+                }
+            }
+        }
+    }
+
+    @Test
+    public void byteScanMatchesStringScan() {
+        Random random = new Random(7);
+        Signature signature = new Signature(9);
+        for (int kmerLength : KMER_LENGTHS) {
+            if (kmerLength < 9) {
+                continue;
+            }
+            String sequence = randomSequence(random, 1500);
+            KmerScanner scanner = new KmerScanner(kmerLength, true, signature);
+            List<Visited> fromString = scan(scanner, sequence);
+            List<Visited> fromBytes = new ArrayList<>();
+            byte[] bases = ("NN" + sequence + "NN").getBytes(StandardCharsets.ISO_8859_1);
+            int effLength = scanner.scan(bases, 2, sequence.length(), (position, kmer, sign) -> fromBytes.add(new Visited(position, kmer.clone(), sign)));
+            assertEquals(fromString.size(), fromBytes.size());
+            for (int i = 0; i < fromString.size(); i++) {
+                assertEquals(fromString.get(i).position, fromBytes.get(i).position);
+                assertArrayEquals(fromString.get(i).kmer, fromBytes.get(i).kmer);
+                assertEquals(fromString.get(i).signature, fromBytes.get(i).signature);
+            }
+            assertEquals(new Fasta(1, "s", sequence).getEffectiveATGCCount(kmerLength), effLength);
+        }
+    }
+
+    @Test
+    public void softMaskSkipsLowerCaseKmers() {
+        String sequence = "ACGTACGTACgtacgtACGTACGTACGTAC";
+        KmerScanner scanner = new KmerScanner(5, false);
+        scanner.setSoftMask(true);
+        List<Visited> visited = scan(scanner, sequence);
+        for (Visited v : visited) {
+            String kmer = sequence.substring(v.position, v.position + 5);
+            assertEquals(kmer.toUpperCase(), kmer);
+        }
+        // ACGTACGTAC (6 kmers) and ACGTACGTACGTAC (10 kmers)
+        assertEquals(16, visited.size());
+        assertEquals(Arrays.asList(0, 16), Arrays.asList(visited.get(0).position, visited.get(6).position));
+    }
+}
+//EOF
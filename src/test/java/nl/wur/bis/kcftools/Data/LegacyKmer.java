@@ -0,0 +1,98 @@
+package nl.wur.bis.kcftools.Data;
+
+/***
+ * The bit-by-bit kmer encoding, reverse complement and signature of the original Kmer class, kept as the reference
+ * the streaming scanner and the specialised codecs are checked against
+ */
+final class LegacyKmer {
+
+    private LegacyKmer() {
+    }
+
+    static long[] kmerToLong(String kmer) {
+        long[] result = new long[(kmer.length() * 2 + 63) / 64];
+        for (int i = 0; i < kmer.length(); i++) {
+            int val = baseToBits(kmer.charAt(i));
+            int bitIndex = i * 2;
+            result[bitIndex / 64] |= ((long) val) << (62 - bitIndex % 64);
+        }
+        return result;
+    }
+
+    static long[] getReverseComplement(long[] binaryKmer, int kmerLength) {
+        long[] reverse = new long[binaryKmer.length];
+        for (int i = 0; i < kmerLength; i++) {
+            int compBits = (~baseAt(binaryKmer, i)) & 0b11;
+            int revIndex = (kmerLength - i - 1) * 2;
+            reverse[revIndex / 64] |= ((long) compBits) << (62 - revIndex % 64);
+        }
+        return reverse;
+    }
+
+    static long[] canonical(long[] kmer, int kmerLength) {
+        long[] reverse = getReverseComplement(kmer, kmerLength);
+        return compareLongArrays(kmer, reverse) > 0 ? reverse : kmer;
+    }
+
+    static int compareLongArrays(long[] a, long[] b) {
+        for (int i = 0; i < a.length; i++) {
+            if (a[i] != b[i]) {
+                return Long.compareUnsigned(a[i], b[i]);
+            }
+        }
+        return 0;
+    }
+
+    /***
+     * The signature as computed per kmer before the rolling scanner: a rescan of all m-mers of the kmer
+     */
+    static int getSignature(long[] kmerLong, int kmerLength, Signature signature) {
+        int signatureLength = signature.getSignLength();
+        int currentSignature = extractIntFromBits(kmerLong, 0, signatureLength);
+        int minSignature = signature.getSignature(currentSignature);
+        for (int i = 1; i <= kmerLength - signatureLength; i++) {
+            currentSignature = ((currentSignature << 2) & ((1 << (2 * signatureLength)) - 1)) |
+                    extractIntFromBits(kmerLong, i + signatureLength - 1, 1);
+            if (signature.getSignature(currentSignature) < minSignature) {
+                minSignature = signature.getSignature(currentSignature);
+            }
+        }
+        return minSignature;
+    }
+
+    /***
+     * The bases after the prefix, four bases per byte with the first base in the high bits
+     */
+    static byte[] extractSuffix(long[] kmerLong, int kmerLength, int prefixLength) {
+        int suffixLength = kmerLength - prefixLength;
+        byte[] suffix = new byte[(suffixLength + 3) / 4];
+        for (int i = 0; i < suffixLength; ++i) {
+            suffix[i / 4] |= (byte) (baseAt(kmerLong, prefixLength + i) << ((3 - i % 4) * 2));
+        }
+        return suffix;
+    }
+
+    static int extractIntFromBits(long[] bitArray, int startBase, int lengthBases) {
+        int result = 0;
+        for (int i = 0; i < lengthBases; i++) {
+            result = (result << 2) | baseAt(bitArray, startBase + i);
+        }
+        return result;
+    }
+
+    static int baseAt(long[] bitArray, int base) {
+        int bitIndex = base * 2;
+        return (int) ((bitArray[bitIndex / 64] >>> (62 - bitIndex % 64)) & 0b11);
+    }
+
+    private static int baseToBits(char base) {
+        return switch (base) {
+            case 'A', 'a' -> 0b00;
+            case 'C', 'c' -> 0b01;
+            case 'G', 'g' -> 0b10;
+            case 'T', 't' -> 0b11;
+            default -> throw new IllegalArgumentException("Invalid nucleotide in k-mer: " + base);
+        };
+    }
+}
+//EOF
@@ -0,0 +1,141 @@
+package nl.wur.bis.kcftools.Plugins;
+
+import nl.wur.bis.kcftools.Data.KmcTestDatabase;
+import nl.wur.bis.kcftools.Utils.Logger;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import picocli.CommandLine;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.*;
+
+/***
+ * Benchmarks the getVariations schedulers (one task per window, --partition-bins and --sort-merge) on a generated
+ * reference and KMC database, and checks that they write the same windows. The times are wall clock times of whole
+ * runs, so they include opening the database and indexing the reference. It is not one of the unit tests (the class
+ * name does not end in Test), run it with:
+ *   mvn test -Dtest=GetVariantsSchedulerBenchmark [-Dbench.bases=2000000] [-Dbench.threads=4] [-Dbench.rounds=3]
+ *       [-Dbench.memory=true]
+ * The threads default to the number of processors (at least 2), the database is loaded into memory (-m) unless
+ * bench.memory is false.
+ */
+public class GetVariantsSchedulerBenchmark {
+    private static final String CLASS_NAME = GetVariantsSchedulerBenchmark.class.getSimpleName();
+    private static final int KMER_LENGTH = 31;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static String randomSequence(Random random, int length) {
+        StringBuilder sb = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            sb.append("ACGT".charAt(random.nextInt(4)));
+        }
+        return sb.toString();
+    }
+
+    private static String canonical(String kmer) {
+        StringBuilder reverse = new StringBuilder(kmer.length());
+        for (int i = kmer.length() - 1; i >= 0; i--) {
+            reverse.append(switch (kmer.charAt(i)) {
+                case 'A' -> 'T';
+                case 'C' -> 'G';
+                case 'G' -> 'C';
+                default -> 'A';
+            });
+        }
+        String rc = reverse.toString();
+        return rc.compareTo(kmer) < 0 ? rc : kmer;
+    }
+
+    /***
+     * Write a reference of four contigs, and a KMC database of a sample with 1% mutated bases, and return the
+     * database prefix
+     */
+    private String writeFixture(Path reference, int bases) throws IOException {
+        Random random = new Random(16);
+        Map<String, Integer> counts = new HashMap<>();
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(reference))) {
+            for (int c = 0; c < 4; c++) {
+                String contig = randomSequence(random, bases / 4);
+                out.println(">chr" + (c + 1));
+                for (int i = 0; i < contig.length(); i += 60) {
+                    out.println(contig.substring(i, Math.min(contig.length(), i + 60)));
+                }
+                char[] sample = contig.toCharArray();
+                for (int i = 0; i < sample.length; i++) {
+                    if (random.nextDouble() < 0.01) {
+                        sample[i] = "ACGT".charAt(random.nextInt(4));
+                    }
+                }
+                for (int i = 0; i + KMER_LENGTH <= sample.length; i++) {
+                    counts.merge(canonical(new String(sample, i, KMER_LENGTH)), 1 + random.nextInt(20), Integer::sum);
+                }
+            }
+        }
+        return KmcTestDatabase.write(folder.getRoot().toPath(), "sample", counts, KMER_LENGTH, 3, 9, 2, true, 64);
+    }
+
+    @Test
+    public void benchmarkSchedulers() throws IOException {
+        int bases = Integer.getInteger("bench.bases", 2000000);
+        int threads = Integer.getInteger("bench.threads", Math.max(2, Runtime.getRuntime().availableProcessors()));
+        int rounds = Integer.getInteger("bench.rounds", 3);
+        boolean inMemory = Boolean.parseBoolean(System.getProperty("bench.memory", "true"));
+
+        Path reference = folder.getRoot().toPath().resolve("ref.fa");
+        String kmcPrefix = writeFixture(reference, bases);
+        Map<String, List<String>> schedulers = new LinkedHashMap<>();
+        schedulers.put("one task per window", List.of());
+        schedulers.put("partition bins", List.of("--partition-bins"));
+        schedulers.put("sort-merge", List.of("--sort-merge", "--tmp-dir", folder.getRoot().toString()));
+
+        Map<String, Long> best = new LinkedHashMap<>();
+        List<String> expected = null;
+        // round 0 is a warm-up (JIT compilation, page cache), not timed
+        for (int round = 0; round <= rounds; round++) {
+            for (Map.Entry<String, List<String>> scheduler : schedulers.entrySet()) {
+                Path output = folder.getRoot().toPath().resolve("out.kcf");
+                List<String> args = new ArrayList<>(List.of("-r", reference.toString(), "-k", kmcPrefix, "-o", output.toString(),
+                        "-s", "S1", "-f", "window", "-w", "5000", "-t", String.valueOf(threads)));
+                // --memory does not apply to the sort-merge
+                if (inMemory && !scheduler.getValue().contains("--sort-merge")) {
+                    args.add("-m");
+                }
+                args.addAll(scheduler.getValue());
+                long start = System.nanoTime();
+                assertEquals(0, new CommandLine(new GetVariants()).execute(args.toArray(new String[0])));
+                long elapsed = System.nanoTime() - start;
+                // the header holds the command line, compare the windows
+                List<String> kcf = Files.readAllLines(output).stream().filter(line -> !line.startsWith("#")).collect(Collectors.toList());
+                if (expected == null) {
+                    expected = kcf;
+                }
+                assertEquals(scheduler.getKey(), expected, kcf);
+                if (round > 0) {
+                    best.merge(scheduler.getKey(), elapsed, Math::min);
+                }
+            }
+        }
+        Logger.info(CLASS_NAME, "Reference: " + bases + " bases in windows of 5000, threads: " + threads
+                + (inMemory ? ", database in memory" : ", database memory mapped"));
+        Logger.info(CLASS_NAME, String.format("%-22s %12s %14s", "Scheduler", "ms", "Mbases/s"));
+        for (Map.Entry<String, Long> time : best.entrySet()) {
+            Logger.info(CLASS_NAME, String.format("%-22s %12.1f %14.2f", time.getKey(), time.getValue() / 1e6,
+                    bases * 1000.0 / time.getValue()));
+        }
+    }
+}
+//EOF
@@ -0,0 +1,116 @@
+package nl.wur.bis.kcftools.Plugins;
+
+import nl.wur.bis.kcftools.Data.KmcTestDatabase;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import picocli.CommandLine;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.*;
+
+/***
+ * Checks that the three getVariations schedulers (one task per window, --sort-merge and --partition-bins) write the
+ * same windows in the same order, on a small generated reference and KMC database. There are more windows than fit in
+ * the reorder buffer, and the sort-merge spills sorted runs.
+ */
+public class GetVariantsSchedulerTest {
+    private static final int KMER_LENGTH = 31;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static String randomSequence(Random random, int length) {
+        StringBuilder sb = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            sb.append("ACGT".charAt(random.nextInt(4)));
+        }
+        return sb.toString();
+    }
+
+    private static String canonical(String kmer) {
+        StringBuilder reverse = new StringBuilder(kmer.length());
+        for (int i = kmer.length() - 1; i >= 0; i--) {
+            reverse.append(switch (kmer.charAt(i)) {
+                case 'A' -> 'T';
+                case 'C' -> 'G';
+                case 'G' -> 'C';
+                default -> 'A';
+            });
+        }
+        String rc = reverse.toString();
+        return rc.compareTo(kmer) < 0 ? rc : kmer;
+    }
+
+    /***
+     * Write a reference of two contigs, and a KMC database of a sample with a few percent of mutated bases and a
+     * deleted stretch, and return the database prefix
+     */
+    private String writeFixture(Path reference) throws IOException {
+        Random random = new Random(25);
+        String[] contigs = {randomSequence(random, 70000), randomSequence(random, 40000)};
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(reference))) {
+            for (int c = 0; c < contigs.length; c++) {
+                out.println(">chr" + (c + 1));
+                for (int i = 0; i < contigs[c].length(); i += 60) {
+                    out.println(contigs[c].substring(i, Math.min(contigs[c].length(), i + 60)));
+                }
+            }
+        }
+        Map<String, Integer> counts = new HashMap<>();
+        for (String contig : contigs) {
+            char[] bases = contig.toCharArray();
+            for (int i = 0; i < bases.length; i++) {
+                if (random.nextDouble() < 0.01) {
+                    bases[i] = "ACGT".charAt(random.nextInt(4));
+                }
+            }
+            String sample = new String(bases, 0, 20000) + new String(bases, 22000, bases.length - 22000);
+            for (int i = 0; i + KMER_LENGTH <= sample.length(); i++) {
+                counts.merge(canonical(sample.substring(i, i + KMER_LENGTH)), 1 + random.nextInt(20), Integer::sum);
+            }
+        }
+        return KmcTestDatabase.write(folder.getRoot().toPath(), "sample", counts, KMER_LENGTH, 3, 9, 2, true, 16);
+    }
+
+    /***
+     * Run getVariations with the scheduler options, and return the window lines of the KCF file
+     */
+    private List<String> getVariations(Path reference, String kmcPrefix, String name, String... options) throws IOException {
+        Path output = folder.getRoot().toPath().resolve(name + ".kcf");
+        List<String> args = new ArrayList<>(List.of("-r", reference.toString(), "-k", kmcPrefix, "-o", output.toString(),
+                "-s", "S1", "-f", "window", "-w", "100", "-p", "50", "-t", "2"));
+        args.addAll(List.of(options));
+        assertEquals(0, new CommandLine(new GetVariants()).execute(args.toArray(new String[0])));
+        return Files.readAllLines(output).stream().filter(line -> !line.startsWith("#")).collect(Collectors.toList());
+    }
+
+    @Test
+    public void schedulersWriteTheSameWindowsInOrder() throws IOException {
+        Path reference = folder.getRoot().toPath().resolve("ref.fa");
+        String kmcPrefix = writeFixture(reference);
+
+        List<String> perWindow = getVariations(reference, kmcPrefix, "window");
+        // more windows than the 2048 of the reorder buffer (1024 per thread)
+        assertEquals(70000 / 50 + 40000 / 50, perWindow.size());
+        assertTrue(perWindow.get(0).startsWith("chr1\t"));
+        assertTrue(perWindow.get(perWindow.size() - 1).startsWith("chr2\t"));
+
+        List<String> sortMerge = getVariations(reference, kmcPrefix, "sortMerge", "--sort-merge", "--sort-memory-mb", "1",
+                "--tmp-dir", folder.getRoot().toString());
+        assertEquals(perWindow, sortMerge);
+        List<String> partitioned = getVariations(reference, kmcPrefix, "partitioned", "--partition-bins");
+        assertEquals(perWindow, partitioned);
+    }
+}
+//EOF